@@ -30,10 +30,8 @@ import android.telecom.GatewayInfo;
 import android.telecom.InCallService.VideoCall;
 import android.telecom.PhoneAccount;
 import android.telecom.PhoneAccountHandle;
-import android.telecom.TelecomManager;
 import android.telecom.VideoProfile;
 import android.telephony.SubscriptionManager;
-import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 
 import java.util.ArrayList;
@@ -175,6 +173,24 @@ public class Call {
     }
 
 
+    /**
+     * Fields of the call to refresh from the telecom call, one per telecom callback. The same
+     * bits describe what observably changed when passed to {@link CallList#onUpdate(Call, int)}.
+     */
+    public static final int DIRTY_STATE = 1 << 0;
+    public static final int DIRTY_DETAILS = 1 << 1;
+    public static final int DIRTY_CHILDREN = 1 << 2;
+    public static final int DIRTY_VIDEO_CALL = 1 << 3;
+    public static final int DIRTY_PARENT = 1 << 4;
+    public static final int DIRTY_CONFERENCEABLE = 1 << 5;
+    public static final int DIRTY_TEXT_RESPONSES = 1 << 6;
+    public static final int DIRTY_POST_DIAL = 1 << 7;
+    /** Set locally, nothing to refresh from the telecom call. */
+    public static final int DIRTY_SESSION_MODIFICATION = 1 << 8;
+    public static final int DIRTY_ALL = DIRTY_STATE | DIRTY_DETAILS | DIRTY_CHILDREN
+            | DIRTY_VIDEO_CALL | DIRTY_PARENT | DIRTY_CONFERENCEABLE | DIRTY_TEXT_RESPONSES
+            | DIRTY_POST_DIAL | DIRTY_SESSION_MODIFICATION;
+
     private static final String ID_PREFIX = Call.class.getSimpleName() + "_";
     private static int sIdCounter = 0;
 
@@ -182,73 +198,78 @@ public class Call {
             new android.telecom.Call.Callback() {
                 @Override
                 public void onStateChanged(android.telecom.Call call, int newState) {
-                    Log.d(this, "TelecommCallCallback onStateChanged call=" + call + " newState="
-                            + newState);
-                    update();
+                    Log.df(this, "TelecommCallCallback onStateChanged call=%s newState=%d",
+                            call, newState);
+                    update(DIRTY_STATE);
                 }
 
                 @Override
                 public void onParentChanged(android.telecom.Call call,
                         android.telecom.Call newParent) {
-                    Log.d(this, "TelecommCallCallback onParentChanged call=" + call + " newParent="
-                            + newParent);
-                    update();
+                    Log.df(this, "TelecommCallCallback onParentChanged call=%s newParent=%s",
+                            call, newParent);
+                    update(DIRTY_PARENT);
                 }
 
                 @Override
                 public void onChildrenChanged(android.telecom.Call call,
                         List<android.telecom.Call> children) {
-                    update();
+                    update(DIRTY_CHILDREN);
                 }
 
                 @Override
                 public void onDetailsChanged(android.telecom.Call call,
                         android.telecom.Call.Details details) {
-                    Log.d(this, "TelecommCallCallback onStateChanged call=" + call + " details="
-                            + details);
-                    update();
+                    Log.df(this, "TelecommCallCallback onStateChanged call=%s details=%s",
+                            call, details);
+                    update(DIRTY_DETAILS);
                 }
 
                 @Override
                 public void onCannedTextResponsesLoaded(android.telecom.Call call,
                         List<String> cannedTextResponses) {
-                    Log.d(this, "TelecommCallCallback onStateChanged call=" + call
-                            + " cannedTextResponses=" + cannedTextResponses);
-                    update();
+                    Log.df(this, "TelecommCallCallback onStateChanged call=%s"
+                            + " cannedTextResponses=%s", call, cannedTextResponses);
+                    update(DIRTY_TEXT_RESPONSES);
                 }
 
                 @Override
                 public void onPostDialWait(android.telecom.Call call,
                         String remainingPostDialSequence) {
-                    Log.d(this, "TelecommCallCallback onStateChanged call=" + call
-                            + " remainingPostDialSequence=" + remainingPostDialSequence);
-                    update();
+                    Log.df(this, "TelecommCallCallback onStateChanged call=%s"
+                            + " remainingPostDialSequence=%s", call, remainingPostDialSequence);
+                    update(DIRTY_POST_DIAL);
                 }
 
                 @Override
                 public void onVideoCallChanged(android.telecom.Call call,
                         VideoCall videoCall) {
-                    Log.d(this, "TelecommCallCallback onStateChanged call=" + call + " videoCall="
-                            + videoCall);
-                    update();
+                    Log.df(this, "TelecommCallCallback onStateChanged call=%s videoCall=%s",
+                            call, videoCall);
+                    update(DIRTY_VIDEO_CALL);
                 }
 
                 @Override
                 public void onCallDestroyed(android.telecom.Call call) {
-                    Log.d(this, "TelecommCallCallback onStateChanged call=" + call);
+                    Log.d(this, "TelecommCallCallback onStateChanged call=", call);
                     call.unregisterCallback(mTelecomCallCallback);
                 }
 
                 @Override
                 public void onConferenceableCallsChanged(android.telecom.Call call,
                         List<android.telecom.Call> conferenceableCalls) {
-                    update();
+                    update(DIRTY_CONFERENCEABLE);
                 }
             };
 
     public boolean mIsActiveSub = false;
     private android.telecom.Call mTelecommCall;
     private boolean mIsEmergencyCall;
+    /** The number and account the special number class was computed for. */
+    private String mClassifiedNumber;
+    private PhoneAccountHandle mClassifiedAccountHandle;
+    private int mClassifiedGeneration;
+    private int mSpecialNumberClass = SpecialNumberClassifier.CLASS_NONE;
     private Uri mHandle;
     private final String mId;
     private int mState = State.INVALID;
@@ -262,18 +283,16 @@ public class Call {
     private int mModifyToVideoState = VideoProfile.STATE_AUDIO_ONLY;
 
     private InCallVideoCallCallback mVideoCallCallback;
+    /** The video call {@link #mVideoCallCallback} is registered with. */
+    private VideoCall mRegisteredVideoCall;
+    /** The details the UI was last updated with. */
+    private android.telecom.Call.Details mLastDetails;
     private String mChildNumber;
     private String mLastForwardedNumber;
     private String mCallSubject;
     private PhoneAccountHandle mPhoneAccountHandle;
     private boolean mIsOutgoing = false;
 
-    /**
-     * Indicates whether the phone account associated with this call supports specifying a call
-     * subject.
-     */
-    private boolean mIsCallSubjectSupported;
-
     /**
      * Used only to create mock calls for testing
      */
@@ -288,7 +307,7 @@ public class Call {
         mTelecommCall = telecommCall;
         mId = ID_PREFIX + Integer.toString(sIdCounter++);
 
-        updateFromTelecommCall();
+        updateFromTelecommCall(DIRTY_ALL);
         mTelecommCall.registerCallback(mTelecomCallCallback);
     }
 
@@ -304,62 +323,158 @@ public class Call {
         return mVideoSettings;
     }
 
-    private void update() {
+    private void update(int dirtyFields) {
         Trace.beginSection("Update");
         int oldState = getState();
-        updateFromTelecommCall();
+        final int changedFields = updateFromTelecommCall(dirtyFields);
         if (oldState != getState() && getState() == Call.State.DISCONNECTED) {
             CallList.getInstance().onDisconnect(this);
         } else {
-            CallList.getInstance().onUpdate(this);
+            CallList.getInstance().onUpdate(this, changedFields);
         }
         Trace.endSection();
     }
 
-    private void updateFromTelecommCall() {
-        Log.d(this, "updateFromTelecommCall: " + mTelecommCall.toString());
-        setState(translateState(mTelecommCall.getState()));
-        setDisconnectCause(mTelecommCall.getDetails().getDisconnectCause());
-        mIsActiveSub = mTelecommCall.isActive();
+    /**
+     * Refreshes the given {@code DIRTY_*} fields from the telecom call.
+     *
+     * @return The subset of the fields which changed in a way observable by the UI.
+     */
+    private int updateFromTelecommCall(int dirtyFields) {
+        Log.df(this, "updateFromTelecommCall: %s dirty: %x", mTelecommCall, dirtyFields);
+        int changedFields = dirtyFields
+                & (DIRTY_PARENT | DIRTY_CONFERENCEABLE | DIRTY_TEXT_RESPONSES
+                        | DIRTY_POST_DIAL | DIRTY_SESSION_MODIFICATION);
+
+        if ((dirtyFields & (DIRTY_STATE | DIRTY_DETAILS)) != 0) {
+            // The disconnect cause is part of the details, but may come with the state change.
+            setDisconnectCause(mTelecommCall.getDetails().getDisconnectCause());
+        }
+
+        if ((dirtyFields & DIRTY_STATE) != 0) {
+            final int oldState = mState;
+            final boolean wasActiveSub = mIsActiveSub;
+            setState(translateState(mTelecommCall.getState()));
+            mIsActiveSub = mTelecommCall.isActive();
+            if (oldState != mState || wasActiveSub != mIsActiveSub) {
+                changedFields |= DIRTY_STATE;
+            }
+            if (oldState != mState && oldState != State.INVALID) {
+                CallEventJournal.getInstance().record(
+                        CallEventJournal.EVENT_CALL_STATE, this, oldState, mState);
+            }
+        }
 
-        if (mTelecommCall.getVideoCall() != null) {
-            if (mVideoCallCallback == null) {
-                mVideoCallCallback = new InCallVideoCallCallback(this);
+        if ((dirtyFields & DIRTY_VIDEO_CALL) != 0) {
+            final VideoCall videoCall = mTelecommCall.getVideoCall();
+            if (videoCall != mRegisteredVideoCall) {
+                if (videoCall != null) {
+                    if (mVideoCallCallback == null) {
+                        mVideoCallCallback = new InCallVideoCallCallback(this);
+                    }
+                    videoCall.registerCallback(mVideoCallCallback);
+                }
+                mRegisteredVideoCall = videoCall;
+                changedFields |= DIRTY_VIDEO_CALL;
             }
-            mTelecommCall.getVideoCall().registerCallback(mVideoCallCallback);
         }
 
-        mChildCallIds.clear();
-        for (int i = 0; i < mTelecommCall.getChildren().size(); i++) {
-            mChildCallIds.add(
-                    CallList.getInstance().getCallByTelecommCall(
-                            mTelecommCall.getChildren().get(i)).getId());
+        if ((dirtyFields & DIRTY_CHILDREN) != 0) {
+            final List<android.telecom.Call> children = mTelecommCall.getChildren();
+            boolean childrenChanged = children.size() != mChildCallIds.size();
+            final List<String> childCallIds = new ArrayList<>(children.size());
+            for (int i = 0; i < children.size(); i++) {
+                final String childCallId = CallList.getInstance().getCallByTelecommCall(
+                        children.get(i)).getId();
+                if (!childrenChanged && !childCallId.equals(mChildCallIds.get(i))) {
+                    childrenChanged = true;
+                }
+                childCallIds.add(childCallId);
+            }
+            if (childrenChanged) {
+                mChildCallIds.clear();
+                mChildCallIds.addAll(childCallIds);
+                changedFields |= DIRTY_CHILDREN;
+            }
         }
 
-        updateFromCallExtras(mTelecommCall.getDetails().getExtras());
+        if ((dirtyFields & DIRTY_DETAILS) != 0) {
+            final android.telecom.Call.Details details = mTelecommCall.getDetails();
+            if (!areDetailsEqual(mLastDetails, details)) {
+                changedFields |= DIRTY_DETAILS;
+            }
+            mLastDetails = details;
+            updateFromCallExtras(details.getExtras());
+
+            // If the handle of the call has changed, update state for the call determining if it
+            // is an emergency call.
+            Uri newHandle = mTelecommCall.getDetails().getHandle();
+            if (!Objects.equals(mHandle, newHandle)) {
+                mHandle = newHandle;
+                updateEmergencyCallState();
+            }
 
-        // If the handle of the call has changed, update state for the call determining if it is an
-        // emergency call.
-        Uri newHandle = mTelecommCall.getDetails().getHandle();
-        if (!Objects.equals(mHandle, newHandle)) {
-            mHandle = newHandle;
-            updateEmergencyCallState();
+            // Start loading the phone account of the call, its capabilities are read from the
+            // cache later on.
+            PhoneAccountHandle newPhoneAccountHandle =
+                    mTelecommCall.getDetails().getAccountHandle();
+            if (!Objects.equals(mPhoneAccountHandle, newPhoneAccountHandle)) {
+                mPhoneAccountHandle = newPhoneAccountHandle;
+                PhoneAccountCache.getInstance().getPhoneAccount(mPhoneAccountHandle);
+            }
         }
+        return changedFields;
+    }
 
-        // If the phone account handle of the call is set, cache capability bit indicating whether
-        // the phone account supports call subjects.
-        PhoneAccountHandle newPhoneAccountHandle = mTelecommCall.getDetails().getAccountHandle();
-        if (!Objects.equals(mPhoneAccountHandle, newPhoneAccountHandle)) {
-            mPhoneAccountHandle = newPhoneAccountHandle;
+    /**
+     * Compares the details the UI reads from the call.
+     */
+    private static boolean areDetailsEqual(android.telecom.Call.Details oldDetails,
+            android.telecom.Call.Details newDetails) {
+        if (oldDetails == null || newDetails == null) {
+            return oldDetails == newDetails;
+        }
+        return Objects.equals(oldDetails.getHandle(), newDetails.getHandle())
+                && oldDetails.getHandlePresentation() == newDetails.getHandlePresentation()
+                && Objects.equals(oldDetails.getCallerDisplayName(),
+                        newDetails.getCallerDisplayName())
+                && oldDetails.getCallerDisplayNamePresentation()
+                        == newDetails.getCallerDisplayNamePresentation()
+                && Objects.equals(oldDetails.getAccountHandle(), newDetails.getAccountHandle())
+                && oldDetails.getCallCapabilities() == newDetails.getCallCapabilities()
+                && oldDetails.getCallProperties() == newDetails.getCallProperties()
+                && Objects.equals(oldDetails.getDisconnectCause(),
+                        newDetails.getDisconnectCause())
+                && oldDetails.getConnectTimeMillis() == newDetails.getConnectTimeMillis()
+                && Objects.equals(oldDetails.getGatewayInfo(), newDetails.getGatewayInfo())
+                && oldDetails.getVideoState() == newDetails.getVideoState()
+                && Objects.equals(oldDetails.getStatusHints(), newDetails.getStatusHints())
+                && areBundlesEqual(oldDetails.getExtras(), newDetails.getExtras())
+                && areBundlesEqual(oldDetails.getIntentExtras(), newDetails.getIntentExtras());
+    }
 
-            if (mPhoneAccountHandle != null) {
-                TelecomManager mgr = InCallPresenter.getInstance().getTelecomManager();
-                PhoneAccount phoneAccount = mgr.getPhoneAccount(mPhoneAccountHandle);
-                if (phoneAccount != null) {
-                    mIsCallSubjectSupported = phoneAccount.hasCapabilities(
-                            PhoneAccount.CAPABILITY_CALL_SUBJECT);
+    /**
+     * Shallow comparison of two bundles; values without a meaningful {@code equals}, such as
+     * arrays, compare as changed.
+     */
+    private static boolean areBundlesEqual(Bundle bundle, Bundle newBundle) {
+        if (bundle == null || newBundle == null) {
+            return bundle == newBundle;
+        }
+        try {
+            if (bundle.size() != newBundle.size()) {
+                return false;
+            }
+            for (String key : bundle.keySet()) {
+                if (!newBundle.containsKey(key)
+                        || !Objects.equals(bundle.get(key), newBundle.get(key))) {
+                    return false;
                 }
             }
+            return true;
+        } catch (IllegalArgumentException e) {
+            // Corrupted extras, see areCallExtrasCorrupted().
+            return false;
         }
     }
 
@@ -481,6 +596,34 @@ public class Call {
         return mIsEmergencyCall;
     }
 
+    /**
+     * @return {@code true} if {@link #getSpecialNumberClass} was computed for the number and
+     *         account, with the given {@link SpecialNumberClassifier#getGeneration} of the
+     *         classifier.
+     */
+    /* package */ boolean isSpecialNumberClassFor(String number, PhoneAccountHandle handle,
+            int generation) {
+        return mClassifiedNumber != null && mClassifiedNumber.equals(number)
+                && Objects.equals(mClassifiedAccountHandle, handle)
+                && mClassifiedGeneration == generation;
+    }
+
+    /**
+     * @return The {@link SpecialNumberClassifier} class of the number, as last computed by
+     *         {@link CallerInfoUtils#getSpecialNumberClass}.
+     */
+    public int getSpecialNumberClass() {
+        return mSpecialNumberClass;
+    }
+
+    /* package */ void setSpecialNumberClass(String number, PhoneAccountHandle handle,
+            int generation, int numberClass) {
+        mClassifiedNumber = number;
+        mClassifiedAccountHandle = handle;
+        mClassifiedGeneration = generation;
+        mSpecialNumberClass = numberClass;
+    }
+
     public int getState() {
         if (mTelecommCall != null && mTelecommCall.getParent() != null) {
             return State.CONFERENCED;
@@ -548,7 +691,8 @@ public class Call {
      *      otherwise.
      */
     public boolean isCallSubjectSupported() {
-        return mIsCallSubjectSupported;
+        return PhoneAccountCache.getInstance().hasCapabilities(mPhoneAccountHandle,
+                PhoneAccount.CAPABILITY_CALL_SUBJECT);
     }
 
     /** Returns call disconnect cause, defined by {@link DisconnectCause}. */
@@ -707,6 +851,7 @@ public class Call {
      */
     public void setSessionModificationTo(int videoState) {
         Log.d(this, "setSessionModificationTo - video state= " + videoState);
+        final int oldSessionModificationState = mSessionModificationState;
         if (videoState == getVideoState()) {
             mSessionModificationState = Call.SessionModificationState.NO_REQUEST;
             Log.w(this,"setSessionModificationTo - Clearing session modification state");
@@ -719,7 +864,11 @@ public class Call {
 
         Log.d(this, "setSessionModificationTo - mSessionModificationState="
             + mSessionModificationState + " video state= " + videoState);
-        update();
+        if (oldSessionModificationState != mSessionModificationState) {
+            CallEventJournal.getInstance().record(CallEventJournal.EVENT_SESSION_MODIFICATION,
+                    this, oldSessionModificationState, mSessionModificationState);
+        }
+        update(DIRTY_SESSION_MODIFICATION);
     }
 
     /**
@@ -735,6 +884,10 @@ public class Call {
         }
 
         boolean hasChanged = mSessionModificationState != state;
+        if (hasChanged) {
+            CallEventJournal.getInstance().record(CallEventJournal.EVENT_SESSION_MODIFICATION,
+                    this, mSessionModificationState, state);
+        }
         mSessionModificationState = state;
         Log.d(this, "setSessionModificationState " + state + " mSessionModificationState="
                 + mSessionModificationState);
@@ -745,11 +898,11 @@ public class Call {
 
     /**
      * Determines if the call handle is an emergency number or not and caches the result to avoid
-     * repeated calls to isEmergencyNumber.
+     * repeated lookups in the {@link SpecialNumberClassifier}.
      */
     private void updateEmergencyCallState() {
         Uri handle = mTelecommCall.getDetails().getHandle();
-        mIsEmergencyCall = PhoneNumberUtils.isEmergencyNumber(
+        mIsEmergencyCall = SpecialNumberClassifier.isEmergencyNumber(
                 handle == null ? "" : handle.getSchemeSpecificPart());
     }
 
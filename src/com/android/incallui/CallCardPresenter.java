@@ -58,14 +58,21 @@ import java.lang.ref.WeakReference;
  */
 public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
         implements InCallStateListener, IncomingCallListener, InCallDetailsListener,
-        InCallEventListener, CallList.CallUpdateListener {
+        InCallEventListener, CallList.CallUpdateListener, PhoneAccountCache.Listener,
+        InCallUiStateNotifierListener {
 
     public interface EmergencyCallListener {
         public void onCallUpdated(BaseFragment fragment, boolean isEmergency);
     }
 
     private static final String TAG = CallCardPresenter.class.getSimpleName();
-    private static final long CALL_TIME_UPDATE_INTERVAL_MS = 1000;
+
+    // Parts of the call card which went stale while the in-call UI was hidden.
+    private static final int DEFERRED_PRIMARY_INFO = 1 << 0;
+    private static final int DEFERRED_PRIMARY_IMAGE = 1 << 1;
+    private static final int DEFERRED_SECONDARY_INFO = 1 << 2;
+    private static final int DEFERRED_CALL_STATE = 1 << 3;
+    private static final int DEFERRED_CALL_TIME = 1 << 4;
 
     private final EmergencyCallListener mEmergencyCallListener =
             ObjectFactory.newEmergencyCallListener();
@@ -74,12 +81,22 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
     private Call mSecondary;
     private ContactCacheEntry mPrimaryContactInfo;
     private ContactCacheEntry mSecondaryContactInfo;
-    private CallTimer mCallTimer;
+    private final CallTickScheduler.TickListener mCallTimeTicker =
+            new CallTickScheduler.TickListener() {
+                @Override
+                public void onTick(long nowMillis) {
+                    updateCallTime();
+                }
+            };
     private Context mContext;
     private boolean mSpinnerShowing = false;
     private boolean mIsFullscreen = false;
     private long mBaseChronometerTime = 0;
     private boolean mHasShownToast = false;
+    private boolean mIsUiShowing = true;
+    private int mDeferredUpdates = 0;
+    private Drawable mDeferredPrimaryImage;
+    private String mDeferredPrimaryImageCallId;
 
     public static class ContactLookupCallback implements ContactInfoCacheCallback {
         private final WeakReference<CallCardPresenter> mCallCardPresenter;
@@ -108,16 +125,6 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
 
     }
 
-    public CallCardPresenter() {
-        // create the call timer
-        mCallTimer = new CallTimer(new Runnable() {
-            @Override
-            public void run() {
-                updateCallTime();
-            }
-        });
-    }
-
     public void init(Context context, Call call) {
         mContext = Preconditions.checkNotNull(context);
 
@@ -147,6 +154,9 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
     public void onUiReady(CallCardUi ui) {
         super.onUiReady(ui);
 
+        mIsUiShowing = InCallUiStateNotifier.getInstance().isUiShowing();
+        InCallUiStateNotifier.getInstance().addListener(this);
+
         // Contact search may have completed before ui is ready.
         if (mPrimaryContactInfo != null) {
             updatePrimaryDisplayInfo();
@@ -157,6 +167,7 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
         InCallPresenter.getInstance().addIncomingCallListener(this);
         InCallPresenter.getInstance().addDetailsListener(this);
         InCallPresenter.getInstance().addInCallEventListener(this);
+        PhoneAccountCache.getInstance().addListener(this);
     }
 
     @Override
@@ -168,15 +179,29 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
         InCallPresenter.getInstance().removeIncomingCallListener(this);
         InCallPresenter.getInstance().removeDetailsListener(this);
         InCallPresenter.getInstance().removeInCallEventListener(this);
+        PhoneAccountCache.getInstance().removeListener(this);
+        InCallUiStateNotifier.getInstance().removeListener(this);
         if (mPrimary != null) {
             CallList.getInstance().removeCallUpdateListener(mPrimary.getId(), this);
         }
+        mDeferredUpdates = 0;
+        mDeferredPrimaryImage = null;
+        mDeferredPrimaryImageCallId = null;
 
         mPrimary = null;
         mPrimaryContactInfo = null;
         mSecondaryContactInfo = null;
     }
 
+    @Override
+    public void onPhoneAccountsChanged() {
+        // Account labels and numbers may have been loaded since the call card was drawn.
+        if (mPrimary != null) {
+            updatePrimaryDisplayInfo();
+        }
+        updateSecondaryDisplayInfo();
+    }
+
     @Override
     public void onIncomingCall(InCallState oldState, InCallState newState, Call call) {
         // same logic should happen as with onStateChange()
@@ -294,12 +319,14 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
             Log.d(this, "Starting the calltime timer");
             mBaseChronometerTime = mPrimary.getConnectTimeMillis() - System.currentTimeMillis()
                     + SystemClock.elapsedRealtime();
-            mCallTimer.start(CALL_TIME_UPDATE_INTERVAL_MS);
+            CallTickScheduler.getInstance().addUiTickListener(mCallTimeTicker);
         } else {
             Log.d(this, "Canceling the calltime timer");
-            mCallTimer.cancel();
+            CallTickScheduler.getInstance().removeUiTickListener(mCallTimeTicker);
             mBaseChronometerTime = 0;
-            ui.setPrimaryCallElapsedTime(false, 0);
+            if (!deferWhileHidden(DEFERRED_CALL_TIME)) {
+                ui.setPrimaryCallElapsedTime(false, 0);
+            }
         }
 
         // Set the call state
@@ -400,8 +427,7 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
         // number directly from the telephony layer).
         PhoneAccountHandle accountHandle = mPrimary.getAccountHandle();
         if (accountHandle != null) {
-            TelecomManager mgr = InCallPresenter.getInstance().getTelecomManager();
-            PhoneAccount account = mgr.getPhoneAccount(accountHandle);
+            PhoneAccount account = PhoneAccountCache.getInstance().getPhoneAccount(accountHandle);
             if (account != null) {
                 return getNumberFromHandle(account.getSubscriptionAddress());
             }
@@ -410,7 +436,7 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
     }
 
     private void updatePrimaryCallState() {
-        if (getUi() != null && mPrimary != null) {
+        if (getUi() != null && mPrimary != null && !deferWhileHidden(DEFERRED_CALL_STATE)) {
             getUi().setCallState(
                     mPrimary.getState(),
                     mPrimary.getVideoState(),
@@ -524,10 +550,10 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
         final CallCardUi ui = getUi();
 
         if (ui == null) {
-            mCallTimer.cancel();
+            CallTickScheduler.getInstance().removeUiTickListener(mCallTimeTicker);
         } else if (!isPrimaryCallActive()) {
             ui.setPrimaryCallElapsedTime(false, 0);
-            mCallTimer.cancel();
+            CallTickScheduler.getInstance().removeUiTickListener(mCallTimeTicker);
             mBaseChronometerTime = 0;
         } else if (mBaseChronometerTime > 0) {
             final long duration = SystemClock.elapsedRealtime() - mBaseChronometerTime;
@@ -535,6 +561,61 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
         }
     }
 
+    /**
+     * Called when the in-call UI is hidden, e.g. because the proximity sensor turned the display
+     * off or another app took the foreground, or shown again. While hidden, updates to the call
+     * card are only recorded, and rendered once when it is shown again.
+     */
+    @Override
+    public void onUiShowing(boolean showing) {
+        mIsUiShowing = showing;
+        if (!showing || mDeferredUpdates == 0 || getUi() == null) {
+            return;
+        }
+
+        final int updates = mDeferredUpdates;
+        final Drawable primaryImage = mDeferredPrimaryImage;
+        final String primaryImageCallId = mDeferredPrimaryImageCallId;
+        mDeferredUpdates = 0;
+        mDeferredPrimaryImage = null;
+        mDeferredPrimaryImageCallId = null;
+        Log.d(this, "Rendering updates deferred while hidden: " + updates);
+
+        if ((updates & DEFERRED_PRIMARY_INFO) != 0) {
+            updatePrimaryDisplayInfo();
+        }
+        // The primary call may have changed since the image was loaded.
+        if ((updates & DEFERRED_PRIMARY_IMAGE) != 0 && primaryImage != null && mPrimary != null
+                && TextUtils.equals(primaryImageCallId, mPrimary.getId())) {
+            getUi().setPrimaryImage(primaryImage, !VideoCallPresenter.showIncomingVideo(
+                    mPrimary.getVideoState(), mPrimary.getState()));
+            CallSetupMetrics.getInstance().onPhotoShown(primaryImageCallId);
+        }
+        if ((updates & DEFERRED_SECONDARY_INFO) != 0) {
+            updateSecondaryDisplayInfo();
+        }
+        if ((updates & DEFERRED_CALL_STATE) != 0) {
+            updatePrimaryCallState();
+        }
+        if ((updates & DEFERRED_CALL_TIME) != 0) {
+            updateCallTime();
+        }
+    }
+
+    /**
+     * Records the update instead of rendering it if the in-call UI is hidden. Only the latest
+     * state is rendered once it is shown again, since every update is rebuilt from the calls.
+     *
+     * @return {@code true} if the update was deferred.
+     */
+    private boolean deferWhileHidden(int update) {
+        if (mIsUiShowing) {
+            return false;
+        }
+        mDeferredUpdates |= update;
+        return true;
+    }
+
     public void onCallStateButtonTouched() {
         Intent broadcastIntent = ObjectFactory.getCallStateButtonBroadcastIntent(mContext);
         if (broadcastIntent != null) {
@@ -595,9 +676,15 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
 
         if (entry.photo != null) {
             if (mPrimary != null && callId.equals(mPrimary.getId())) {
+                if (deferWhileHidden(DEFERRED_PRIMARY_IMAGE)) {
+                    mDeferredPrimaryImage = entry.photo;
+                    mDeferredPrimaryImageCallId = callId;
+                    return;
+                }
                 boolean showContactPhoto = !VideoCallPresenter.showIncomingVideo(
                         mPrimary.getVideoState(), mPrimary.getState());
                 getUi().setPrimaryImage(entry.photo, showContactPhoto);
+                CallSetupMetrics.getInstance().onPhotoShown(callId);
             }
         }
     }
@@ -679,6 +766,9 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
             Log.d(TAG, "updatePrimaryDisplayInfo called but ui is null!");
             return;
         }
+        if (deferWhileHidden(DEFERRED_PRIMARY_INFO)) {
+            return;
+        }
 
         if (mPrimary == null) {
             // Clear the primary display info.
@@ -758,6 +848,13 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
                     mPrimaryContactInfo.lookupStatus,
                     mPrimaryContactInfo.isSpam,
                     mPrimaryContactInfo.spamCount);
+
+            if (!TextUtils.isEmpty(name)) {
+                CallSetupMetrics.getInstance().onNameShown(mPrimary.getId());
+            }
+            if (mPrimaryContactInfo.photo != null) {
+                CallSetupMetrics.getInstance().onPhotoShown(mPrimary.getId());
+            }
         } else {
             // Clear the primary display info.
             ui.setPrimary(null, null, false, null, null, false, false, false, null, null, false,
@@ -772,7 +869,7 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
 
     private void updateSecondaryDisplayInfo() {
         final CallCardUi ui = getUi();
-        if (ui == null) {
+        if (ui == null || deferWhileHidden(DEFERRED_SECONDARY_INFO)) {
             return;
         }
 
@@ -822,7 +919,7 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
         if (accountHandle == null) {
             return null;
         }
-        return InCallPresenter.getInstance().getTelecomManager().getPhoneAccount(accountHandle);
+        return PhoneAccountCache.getInstance().getPhoneAccount(accountHandle);
     }
 
     /**
@@ -840,9 +937,8 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
      */
     private String getCallProviderLabel(Call call) {
         PhoneAccount account = getAccountForCall(call);
-        TelecomManager mgr = InCallPresenter.getInstance().getTelecomManager();
         if (account != null && !TextUtils.isEmpty(account.getLabel())
-                && mgr.getCallCapablePhoneAccounts().size() > 1) {
+                && PhoneAccountCache.getInstance().getCallCapableAccountCount() > 1) {
             return account.getLabel().toString();
         }
         return null;
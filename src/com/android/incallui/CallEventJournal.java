@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.os.SystemClock;
+
+import com.android.contacts.common.testing.NeededForTesting;
+import com.android.incallui.InCallPresenter.InCallState;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size journal of the call state transitions, kept for post-call diagnostics.
+ *
+ * Recording an event only writes a few primitives into preallocated arrays: it neither takes a
+ * lock nor allocates, and nothing is formatted until the journal is dumped, e.g. with
+ * {@code adb shell dumpsys activity service com.android.incallui/.InCallServiceImpl}. Once full,
+ * the oldest events are overwritten.
+ *
+ * Writers claim a slot by incrementing a sequence number, and publish the slot by storing that
+ * number once its fields are written. The dump skips slots which are being rewritten.
+ */
+public class CallEventJournal {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /** A call was added by telecom, with its initial state. */
+    public static final int EVENT_CALL_ADDED = 1;
+    /** The state of a call changed. */
+    public static final int EVENT_CALL_STATE = 2;
+    /** The session modification state of a call changed. */
+    public static final int EVENT_SESSION_MODIFICATION = 3;
+    /** A call was reported to the call list as incoming. */
+    public static final int EVENT_CALL_INCOMING = 4;
+    /** A call was reported to the call list as disconnected. */
+    public static final int EVENT_CALL_DISCONNECTED = 5;
+    /** A call was removed by telecom. */
+    public static final int EVENT_CALL_REMOVED = 6;
+    /** The in-call state changed; the states are {@link InCallState} ordinals. */
+    public static final int EVENT_IN_CALL_STATE = 7;
+
+    private static final String[] EVENT_NAMES = new String[] {
+            "?", "CallList.onCallAdded", "Call.onStateChanged",
+            "Call.setSessionModificationState", "CallList.onIncoming", "CallList.onDisconnect",
+            "CallList.onCallRemoved", "InCallPresenter.onStateChange" };
+
+    private static CallEventJournal sInstance;
+
+    private final int mCapacity;
+    private final AtomicLong mNextSequence = new AtomicLong();
+    /** The sequence number + 1 of the event in each slot, 0 while it is being written. */
+    private final AtomicLongArray mSequences;
+    private final long[] mTimesNanos;
+    private final String[] mCallIds;
+    private final byte[] mEvents;
+    private final byte[] mOldStates;
+    private final byte[] mNewStates;
+    private final byte[] mSessionStates;
+
+    public static synchronized CallEventJournal getInstance() {
+        if (sInstance == null) {
+            sInstance = new CallEventJournal(DEFAULT_CAPACITY);
+        }
+        return sInstance;
+    }
+
+    @NeededForTesting
+    CallEventJournal(int capacity) {
+        mCapacity = capacity;
+        mSequences = new AtomicLongArray(capacity);
+        mTimesNanos = new long[capacity];
+        mCallIds = new String[capacity];
+        mEvents = new byte[capacity];
+        mOldStates = new byte[capacity];
+        mNewStates = new byte[capacity];
+        mSessionStates = new byte[capacity];
+    }
+
+    /**
+     * Records an event of the call.
+     */
+    public void record(int event, Call call, int oldState, int newState) {
+        record(event, call.getId(), oldState, newState, call.getSessionModificationState());
+    }
+
+    /**
+     * Records a change of the in-call state.
+     */
+    public void recordInCallState(InCallState oldState, InCallState newState) {
+        record(EVENT_IN_CALL_STATE, null, oldState.ordinal(), newState.ordinal(), 0);
+    }
+
+    @NeededForTesting
+    void record(int event, String callId, int oldState, int newState, int sessionState) {
+        final long sequence = mNextSequence.getAndIncrement();
+        final int slot = (int) (sequence % mCapacity);
+        mSequences.set(slot, 0);
+        mTimesNanos[slot] = SystemClock.elapsedRealtimeNanos();
+        mCallIds[slot] = callId;
+        mEvents[slot] = (byte) event;
+        mOldStates[slot] = (byte) oldState;
+        mNewStates[slot] = (byte) newState;
+        mSessionStates[slot] = (byte) sessionState;
+        mSequences.lazySet(slot, sequence + 1);
+    }
+
+    /**
+     * @return The number of events recorded since the process started, including the ones which
+     *         were overwritten.
+     */
+    public long getEventCount() {
+        return mNextSequence.get();
+    }
+
+    /**
+     * Decodes the journal into a timeline, oldest event first.
+     */
+    public void dump(PrintWriter pw) {
+        final long end = mNextSequence.get();
+        final long start = Math.max(0, end - mCapacity);
+        final long nowNanos = SystemClock.elapsedRealtimeNanos();
+        final long nowMillis = System.currentTimeMillis();
+        final SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+
+        pw.println("CallEventJournal: " + (end - start) + " of " + end + " events");
+        long previousNanos = 0;
+        for (long sequence = start; sequence < end; sequence++) {
+            final int slot = (int) (sequence % mCapacity);
+            if (mSequences.get(slot) != sequence + 1) {
+                continue;
+            }
+            final long timeNanos = mTimesNanos[slot];
+            final String callId = mCallIds[slot];
+            final int event = mEvents[slot];
+            final int oldState = mOldStates[slot];
+            final int newState = mNewStates[slot];
+            final int sessionState = mSessionStates[slot];
+            if (mSequences.get(slot) != sequence + 1) {
+                // Overwritten while reading.
+                continue;
+            }
+
+            final StringBuilder sb = new StringBuilder();
+            sb.append("  ").append(format.format(
+                    new Date(nowMillis - (nowNanos - timeNanos) / 1000000)));
+            sb.append(String.format(Locale.US, " %+8.1fms ",
+                    previousNanos == 0 ? 0f : (timeNanos - previousNanos) / 1000000f));
+            sb.append(getEventName(event));
+            if (callId != null) {
+                sb.append(' ').append(callId);
+            }
+            sb.append(": ");
+            appendStates(sb, event, oldState, newState, sessionState);
+            pw.println(sb.toString());
+            previousNanos = timeNanos;
+        }
+    }
+
+    private static String getEventName(int event) {
+        return event > 0 && event < EVENT_NAMES.length ? EVENT_NAMES[event] : EVENT_NAMES[0];
+    }
+
+    private static void appendStates(StringBuilder sb, int event, int oldState, int newState,
+            int sessionState) {
+        switch (event) {
+            case EVENT_IN_CALL_STATE:
+                sb.append(getInCallStateName(oldState)).append(" -> ")
+                        .append(getInCallStateName(newState));
+                break;
+            case EVENT_SESSION_MODIFICATION:
+                sb.append("session ").append(oldState).append(" -> ").append(newState);
+                break;
+            default:
+                sb.append(Call.State.toString(oldState)).append(" -> ")
+                        .append(Call.State.toString(newState));
+                if (sessionState != Call.SessionModificationState.NO_REQUEST) {
+                    sb.append(", session ").append(sessionState);
+                }
+                break;
+        }
+    }
+
+    private static String getInCallStateName(int ordinal) {
+        final InCallState[] states = InCallState.values();
+        return ordinal >= 0 && ordinal < states.length ? states[ordinal].name() : "?";
+    }
+}
@@ -23,7 +23,6 @@ import android.telecom.DisconnectCause;
 import android.telecom.PhoneAccount;
 import android.telecom.PhoneAccountHandle;
 import android.telephony.SubscriptionManager;
-import android.text.TextUtils;
 
 import com.android.contacts.common.testing.NeededForTesting;
 import com.google.common.base.Preconditions;
@@ -52,12 +51,15 @@ public class CallList {
 
     private static final int EVENT_DISCONNECTED_TIMEOUT = 1;
     private static final int EVENT_NOTIFY_CHANGE = 2;
+    private static final int EVENT_NOTIFY_CALL_LIST_CHANGE = 3;
 
 
     private static CallList sInstance = new CallList();
 
     private final HashMap<String, Call> mCallById = new HashMap<>();
     private final HashMap<android.telecom.Call, Call> mCallByTelecommCall = new HashMap<>();
+    /** Per-state (and per-subscription) view of {@link #mCallById}, ordered by creation time. */
+    private final CallStateIndex mCallStateIndex = new CallStateIndex();
     private final HashMap<String, List<String>> mCallTextReponsesMap = Maps.newHashMap();
     /**
      * ConcurrentHashMap constructor params: 8 is initial table size, 0.9f is
@@ -73,6 +75,12 @@ public class CallList {
     private int mSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
     private final ArrayList<ActiveSubChangeListener> mActiveSubChangeListeners =
             Lists.newArrayList();
+    private final CallListChange.Tracker mChangeTracker = new CallListChange.Tracker();
+    /**
+     * When enabled, generic change notifications raised in the same looper pass are merged and
+     * delivered once from {@link #mHandler}.
+     */
+    private boolean mBatchNotifications = true;
 
     /**
      * Static singleton accessor method.
@@ -92,7 +100,10 @@ public class CallList {
     public void onCallAdded(android.telecom.Call telecommCall) {
         Trace.beginSection("onCallAdded");
         Call call = new Call(telecommCall);
-        Log.d(this, "onCallAdded: callState=" + call.getState());
+        Log.d(this, "onCallAdded: callState=", call.getState());
+        CallEventJournal.getInstance().record(CallEventJournal.EVENT_CALL_ADDED, call,
+                Call.State.INVALID, call.getState());
+        CallSetupMetrics.getInstance().onCallAdded(call);
         if (call.getState() == Call.State.INCOMING ||
                 call.getState() == Call.State.CALL_WAITING) {
             onIncoming(call, call.getCannedSmsResponses());
@@ -105,6 +116,9 @@ public class CallList {
     public void onCallRemoved(android.telecom.Call telecommCall) {
         if (mCallByTelecommCall.containsKey(telecommCall)) {
             Call call = mCallByTelecommCall.get(telecommCall);
+            CallEventJournal.getInstance().record(CallEventJournal.EVENT_CALL_REMOVED, call,
+                    call.getState(), call.getState());
+            CallSetupMetrics.getInstance().onCallRemoved(call);
             if (updateCallInMap(call)) {
                 Log.w(this, "Removing call not previously disconnected " + call.getId());
             }
@@ -130,6 +144,11 @@ public class CallList {
     public void onDisconnect(Call call) {
         if (updateCallInMap(call)) {
             Log.i(this, "onDisconnect: " + call);
+            CallEventJournal.getInstance().record(CallEventJournal.EVENT_CALL_DISCONNECTED, call,
+                    call.getState(), call.getState());
+            CallSetupMetrics.getInstance().onCallRemoved(call);
+            // deliver pending changes first so listeners observe them in order
+            flushPendingNotification();
             // notify those listening for changes on this specific change
             notifyCallUpdateListeners(call);
             // notify those listening for all disconnects
@@ -141,7 +160,7 @@ public class CallList {
      * Called when a single call has changed.
      */
     public void onIncoming(Call call, List<String> textMessages) {
-        Log.d(this, "onIncoming - " + call);
+        Log.d(this, "onIncoming - ", call);
 
         // Update active subscription from call object. it will be set by
         // Telecomm service for incoming call and whenever active sub changes.
@@ -156,15 +175,19 @@ public class CallList {
         if (updateCallInMap(call)) {
             Log.i(this, "onIncoming - " + call);
         }
+        CallEventJournal.getInstance().record(CallEventJournal.EVENT_CALL_INCOMING, call,
+                call.getState(), call.getState());
         updateCallTextMap(call, textMessages);
 
+        flushPendingNotification();
         for (Listener listener : mListeners) {
             listener.onIncomingCall(call);
         }
     }
 
     public void onUpgradeToVideo(Call call){
-        Log.d(this, "onUpgradeToVideo call=" + call);
+        Log.d(this, "onUpgradeToVideo call=", call);
+        flushPendingNotification();
         for (Listener listener : mListeners) {
             listener.onUpgradeToVideo(call);
         }
@@ -173,9 +196,23 @@ public class CallList {
      * Called when a single call has changed.
      */
     public void onUpdate(Call call) {
+        onUpdate(call, Call.DIRTY_ALL);
+    }
+
+    /**
+     * Called when a single call has changed.
+     *
+     * @param changedFields The {@code Call.DIRTY_*} fields which changed. Nothing is notified
+     * if none did.
+     */
+    public void onUpdate(Call call, int changedFields) {
+        if (changedFields == 0) {
+            Log.v(this, "onUpdate - nothing changed for ", call);
+            return;
+        }
         Trace.beginSection("onUpdate");
         PhoneAccountHandle ph = call.getAccountHandle();
-        Log.d(this, "onUpdate - " + call  + " ph:" + ph);
+        Log.df(this, "onUpdate - %s ph:%s", call, ph);
         try {
             if (call.mIsActiveSub && ph != null) {
                 int sub = Integer.parseInt(ph.getId());
@@ -188,7 +225,7 @@ public class CallList {
                 Log.w(this,"Sub Id is not a number " + e);
         }
         onUpdateCall(call);
-        notifyGenericListeners();
+        scheduleNotifyGenericListeners();
         Trace.endSection();
     }
 
@@ -290,6 +327,18 @@ public class CallList {
         }
     }
 
+    /**
+     * Enables or disables merging of the change notifications raised in the same looper pass.
+     * Disabling it delivers any pending notification immediately.
+     */
+    @NeededForTesting
+    void setBatchNotifications(boolean batch) {
+        mBatchNotifications = batch;
+        if (!batch) {
+            flushPendingNotification();
+        }
+    }
+
     /**
      * TODO: Change so that this function is not needed. Instead of assuming there is an active
      * call, the code should rely on the status of a specific Call and allow the presenters to
@@ -430,8 +479,7 @@ public class CallList {
     }
 
     /**
-     * Returns the [position]th call found in the call map with the specified state.
-     * TODO: Improve this logic to sort by call time.
+     * Returns the [position]th oldest call in the call map with the specified state.
      */
     public Call getCallWithState(int state, int positionToFind) {
         // if DSDA is enabled call getCallWithState with active subscription.
@@ -441,20 +489,7 @@ public class CallList {
             return getCallWithState(state, positionToFind, getActiveSubId());
         }
 
-        Call retval = null;
-        int position = 0;
-        for (Call call : mCallById.values()) {
-            if (call.getState() == state) {
-                if (position >= positionToFind) {
-                    retval = call;
-                    break;
-                } else {
-                    position++;
-                }
-            }
-        }
-
-        return retval;
+        return mCallStateIndex.getCallWithState(state, positionToFind);
     }
 
     /**
@@ -497,7 +532,7 @@ public class CallList {
      * @param call The call to update.
      */
     private void onUpdateCall(Call call) {
-        Log.d(this, "\t" + call);
+        Log.d(this, "\t", call);
         if (updateCallInMap(call)) {
             Log.i(this, "onUpdate - " + call);
         }
@@ -507,11 +542,39 @@ public class CallList {
 
     /**
      * Sends a generic notification to all listeners that something has changed.
-     * It is up to the listeners to call back to determine what changed.
+     * Listeners implementing {@link ChangeSetListener} receive the set of changes since the
+     * previous notification, the others have to call back to determine what changed.
      */
     private void notifyGenericListeners() {
+        mHandler.removeMessages(EVENT_NOTIFY_CALL_LIST_CHANGE);
+        final CallListChange change = mChangeTracker.computeAndReset(mCallById, mSubId);
+        Log.v(this, "notifyGenericListeners: ", change);
         for (Listener listener : mListeners) {
-            listener.onCallListChange(this);
+            if (listener instanceof ChangeSetListener) {
+                ((ChangeSetListener) listener).onCallListChange(this, change);
+            } else {
+                listener.onCallListChange(this);
+            }
+        }
+    }
+
+    /**
+     * Queues a generic notification, merging it with any other raised before the handler runs.
+     */
+    private void scheduleNotifyGenericListeners() {
+        if (!mBatchNotifications) {
+            notifyGenericListeners();
+        } else if (!mHandler.hasMessages(EVENT_NOTIFY_CALL_LIST_CHANGE)) {
+            mHandler.sendEmptyMessage(EVENT_NOTIFY_CALL_LIST_CHANGE);
+        }
+    }
+
+    /**
+     * Delivers a queued generic notification right away, if there is one.
+     */
+    private void flushPendingNotification() {
+        if (mHandler.hasMessages(EVENT_NOTIFY_CALL_LIST_CHANGE)) {
+            notifyGenericListeners();
         }
     }
 
@@ -543,15 +606,18 @@ public class CallList {
 
                 mCallById.put(call.getId(), call);
                 mCallByTelecommCall.put(call.getTelecommCall(), call);
+                mCallStateIndex.update(call);
                 updated = true;
             }
         } else if (!isCallDead(call)) {
             mCallById.put(call.getId(), call);
             mCallByTelecommCall.put(call.getTelecommCall(), call);
+            mCallStateIndex.update(call);
             updated = true;
         } else if (mCallById.containsKey(call.getId())) {
             mCallById.remove(call.getId());
             mCallByTelecommCall.remove(call.getTelecommCall());
+            mCallStateIndex.remove(call);
             updated = true;
         }
 
@@ -612,7 +678,7 @@ public class CallList {
         }
         call.setState(Call.State.IDLE);
         updateCallInMap(call);
-        notifyGenericListeners();
+        scheduleNotifyGenericListeners();
     }
 
     /**
@@ -644,6 +710,9 @@ public class CallList {
                     Log.d(this, "EVENT_DISCONNECTED_TIMEOUT ", msg.obj);
                     finishDisconnectedCall((Call) msg.obj);
                     break;
+                case EVENT_NOTIFY_CALL_LIST_CHANGE:
+                    notifyGenericListeners();
+                    break;
                 case EVENT_NOTIFY_CHANGE:
                     Log.d(this, "EVENT_NOTIFY_CHANGE: ");
                     notifyGenericListeners();
@@ -693,6 +762,17 @@ public class CallList {
 
     }
 
+    /**
+     * Listener which additionally receives what changed since the previous notification, so it
+     * can skip work when nothing relevant to it changed. Such listeners receive
+     * {@link #onCallListChange(CallList, CallListChange)} instead of
+     * {@link Listener#onCallListChange(CallList)} for change notifications; the latter is still
+     * called once when the listener is added.
+     */
+    public interface ChangeSetListener extends Listener {
+        public void onCallListChange(CallList callList, CallListChange change);
+    }
+
     public interface CallUpdateListener {
         // TODO: refactor and limit arg to be call state.  Caller info is not needed.
         public void onCallChanged(Call call);
@@ -768,7 +848,7 @@ public class CallList {
     boolean hasAnyLiveCall() {
         for (Call call : mCallById.values()) {
             if (!isCallDead(call)) {
-                Log.d(this, "hasAnyLiveCall call = " + call);
+                Log.d(this, "hasAnyLiveCall call = ", call);
                 return true;
             }
         }
@@ -824,40 +904,15 @@ public class CallList {
     }
 
     /**
-     * Returns the [position]th call which belongs to provided subscription and
+     * Returns the [position]th oldest call which belongs to provided subscription and
      * found in the call map with the specified state.
      */
     Call getCallWithState(int state, int positionToFind, int subId) {
-        Call retval = null;
-        int position = 0;
-        for (Call call : mCallById.values()) {
-            PhoneAccountHandle ph = call.getAccountHandle();
-            try {
-                if ((call.getState() == state) && ((ph == null) ||
-                        (ph != null && (ph.getId() != null) &&
-                        (ph.getId().contains("sip") ||
-                        Integer.parseInt(ph.getId()) == subId)))) {
-                    if (position >= positionToFind) {
-                        retval = call;
-                        break;
-                    } else {
-                        position++;
-                    }
-                }
-            } catch (NumberFormatException e) {
-                   Log.w(this,"Sub Id is not a number " + e);
-            }
-        }
-        return retval;
+        return mCallStateIndex.getCallWithState(state, positionToFind, subId);
     }
 
-     public Call getCallWithStateAndNumber(int state, String number) {
-         for (Call call : mCallById.values()) {
-             if (TextUtils.equals(call.getNumber(), number) && call.getState() == state) {
-                 return call;
-             }
-         }
-         return null;
+    public Call getCallWithStateAndNumber(int state, String number) {
+        return mCallStateIndex.getCallWithStateAndNumber(state, number);
     }
 
     void addActiveSubChangeListener(ActiveSubChangeListener listener) {
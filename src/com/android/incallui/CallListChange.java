@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.telecom.PhoneAccountHandle;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Describes what changed in the {@link CallList} since the previous change notification: the
+ * calls that were added and removed, for every other call a bitmask of the fields which
+ * changed, and whether the active subscription changed. Several updates received in the same
+ * looper pass are merged into a single change.
+ */
+public class CallListChange {
+    /** The {@link Call.State} of the call changed. */
+    public static final int FIELD_STATE = 1 << 0;
+    /** The phone account (and thereby the subscription) of the call changed. */
+    public static final int FIELD_ACCOUNT = 1 << 1;
+    /** The video state of the call changed. */
+    public static final int FIELD_VIDEO_STATE = 1 << 2;
+    /** The session modification state of the call changed. */
+    public static final int FIELD_SESSION_MODIFICATION = 1 << 3;
+    /** The conference parent, children or conferenceable calls changed. */
+    public static final int FIELD_CONFERENCE = 1 << 4;
+    /** Any other telecom call detail (capabilities, properties, extras...) changed. */
+    public static final int FIELD_DETAILS = 1 << 5;
+    /** The canned text responses of the call changed. */
+    public static final int FIELD_TEXT_RESPONSES = 1 << 6;
+
+    private static final CallListChange EMPTY = new CallListChange(
+            Collections.<String>emptySet(), Collections.<String>emptySet(),
+            Collections.<String, Integer>emptyMap(), false);
+
+    private final Set<String> mAddedCallIds;
+    private final Set<String> mRemovedCallIds;
+    private final Map<String, Integer> mChangedFields;
+    private final boolean mActiveSubChanged;
+
+    private CallListChange(Set<String> added, Set<String> removed, Map<String, Integer> changed,
+            boolean activeSubChanged) {
+        mAddedCallIds = added;
+        mRemovedCallIds = removed;
+        mChangedFields = changed;
+        mActiveSubChanged = activeSubChanged;
+    }
+
+    public Set<String> getAddedCallIds() {
+        return mAddedCallIds;
+    }
+
+    public Set<String> getRemovedCallIds() {
+        return mRemovedCallIds;
+    }
+
+    /**
+     * @return {@code true} if the active subscription was switched, e.g. between the two live
+     * subscriptions of a DSDA device. No call has to change for that.
+     */
+    public boolean isActiveSubChanged() {
+        return mActiveSubChanged;
+    }
+
+    /**
+     * @return the {@code FIELD_*} bits which changed for the call, {@code 0} if the call did not
+     * change or was added/removed.
+     */
+    public int getChangedFields(String callId) {
+        final Integer fields = mChangedFields.get(callId);
+        return fields == null ? 0 : fields;
+    }
+
+    /**
+     * @return {@code true} if calls were added or removed, or any of the given fields changed
+     * for at least one call.
+     */
+    public boolean hasChanges(int fieldMask) {
+        if (!mAddedCallIds.isEmpty() || !mRemovedCallIds.isEmpty()) {
+            return true;
+        }
+        for (Integer fields : mChangedFields.values()) {
+            if ((fields & fieldMask) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isEmpty() {
+        return mAddedCallIds.isEmpty() && mRemovedCallIds.isEmpty() && mChangedFields.isEmpty()
+                && !mActiveSubChanged;
+    }
+
+    @Override
+    public String toString() {
+        return "[added:" + mAddedCallIds + ", removed:" + mRemovedCallIds
+                + ", changed:" + mChangedFields + ", activeSubChanged:" + mActiveSubChanged + "]";
+    }
+
+    /**
+     * Value snapshot of the observable fields of a call at the time of the last notification.
+     */
+    static final class Snapshot {
+        final int state;
+        final PhoneAccountHandle accountHandle;
+        final int videoState;
+        final int sessionModificationState;
+        final android.telecom.Call parent;
+        final int childCount;
+        final int conferenceableCount;
+        final android.telecom.Call.Details details;
+        final Object textResponses;
+
+        Snapshot(Call call) {
+            final android.telecom.Call telecomCall = call.getTelecommCall();
+            state = call.getState();
+            accountHandle = call.getAccountHandle();
+            sessionModificationState = call.getSessionModificationState();
+            childCount = call.getChildCallIds().size();
+            if (telecomCall != null) {
+                videoState = call.getVideoState();
+                parent = telecomCall.getParent();
+                conferenceableCount = telecomCall.getConferenceableCalls().size();
+                details = telecomCall.getDetails();
+                textResponses = telecomCall.getCannedTextResponses();
+            } else {
+                videoState = 0;
+                parent = null;
+                conferenceableCount = 0;
+                details = null;
+                textResponses = null;
+            }
+        }
+
+        int diff(Snapshot previous) {
+            int fields = 0;
+            if (state != previous.state) {
+                fields |= FIELD_STATE;
+            }
+            if (!Objects.equals(accountHandle, previous.accountHandle)) {
+                fields |= FIELD_ACCOUNT;
+            }
+            if (videoState != previous.videoState) {
+                fields |= FIELD_VIDEO_STATE;
+            }
+            if (sessionModificationState != previous.sessionModificationState) {
+                fields |= FIELD_SESSION_MODIFICATION;
+            }
+            if (parent != previous.parent || childCount != previous.childCount
+                    || conferenceableCount != previous.conferenceableCount) {
+                fields |= FIELD_CONFERENCE;
+            }
+            if (!Objects.equals(details, previous.details)) {
+                fields |= FIELD_DETAILS;
+            }
+            if (textResponses != previous.textResponses) {
+                fields |= FIELD_TEXT_RESPONSES;
+            }
+            return fields;
+        }
+    }
+
+    /**
+     * Computes changes against the snapshots taken at the previous notification.
+     */
+    static final class Tracker {
+        private final HashMap<String, Snapshot> mLastNotified = new HashMap<>();
+        private int mLastNotifiedActiveSubId;
+        private boolean mHasNotified = false;
+
+        /**
+         * Diffs the given calls and active subscription against the last notified state and
+         * records them as the new baseline.
+         */
+        CallListChange computeAndReset(Map<String, Call> calls, int activeSubId) {
+            final boolean activeSubChanged =
+                    mHasNotified && activeSubId != mLastNotifiedActiveSubId;
+            mLastNotifiedActiveSubId = activeSubId;
+            mHasNotified = true;
+
+            HashSet<String> added = null;
+            HashSet<String> removed = null;
+            HashMap<String, Integer> changed = null;
+
+            for (Map.Entry<String, Snapshot> entry : mLastNotified.entrySet()) {
+                if (!calls.containsKey(entry.getKey())) {
+                    if (removed == null) {
+                        removed = new HashSet<>();
+                    }
+                    removed.add(entry.getKey());
+                }
+            }
+            if (removed != null) {
+                mLastNotified.keySet().removeAll(removed);
+            }
+
+            for (Map.Entry<String, Call> entry : calls.entrySet()) {
+                final Snapshot current = new Snapshot(entry.getValue());
+                final Snapshot previous = mLastNotified.put(entry.getKey(), current);
+                if (previous == null) {
+                    if (added == null) {
+                        added = new HashSet<>();
+                    }
+                    added.add(entry.getKey());
+                } else {
+                    final int fields = current.diff(previous);
+                    if (fields != 0) {
+                        if (changed == null) {
+                            changed = new HashMap<>();
+                        }
+                        changed.put(entry.getKey(), fields);
+                    }
+                }
+            }
+
+            if (added == null && removed == null && changed == null && !activeSubChanged) {
+                return EMPTY;
+            }
+            return new CallListChange(
+                    added == null ? Collections.<String>emptySet() : added,
+                    removed == null ? Collections.<String>emptySet() : removed,
+                    changed == null ? Collections.<String, Integer>emptyMap() : changed,
+                    activeSubChanged);
+        }
+    }
+}
@@ -20,7 +20,6 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
-import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.RemoteException;
@@ -43,7 +42,7 @@ import java.util.HashSet;
  * Manages the call recorder service lifecycle.  We bind to the service whenever an active call
  * is established, and unbind when all calls have been disconnected.
  */
-public class CallRecorder implements CallList.Listener {
+public class CallRecorder implements CallList.ChangeSetListener {
     public static final String TAG = "CallRecorder";
 
     public static final String[] REQUIRED_PERMISSIONS = new String[] {
@@ -59,17 +58,22 @@ public class CallRecorder implements CallList.Listener {
 
     private HashSet<RecordingProgressListener> mProgressListeners =
             new HashSet<RecordingProgressListener>();
-    private Handler mHandler = new Handler();
+    /** Start time of the active recording, 0 if not recording. */
+    private long mRecordingStartTime = 0;
 
     private ServiceConnection mConnection = new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
             mService = ICallRecorderService.Stub.asInterface(service);
+            // The service may still be recording if we were restarted.
+            final CallRecording active = getActiveRecording();
+            setRecordingStartTime(active != null ? active.startRecordingTime : 0);
         }
 
         @Override
         public void onServiceDisconnected(ComponentName name) {
             mService = null;
+            setRecordingStartTime(0);
         }
     };
 
@@ -117,7 +121,9 @@ public class CallRecorder implements CallList.Listener {
                 for (RecordingProgressListener l : mProgressListeners) {
                     l.onStartRecording();
                 }
-                mUpdateRecordingProgressTask.run();
+                final CallRecording active = getActiveRecording();
+                setRecordingStartTime(active != null
+                        ? active.startRecordingTime : System.currentTimeMillis());
                 return true;
             } else {
                 Toast.makeText(mContext, R.string.call_recording_failed_message,
@@ -189,7 +195,7 @@ public class CallRecorder implements CallList.Listener {
         for (RecordingProgressListener l : mProgressListeners) {
             l.onStopRecording();
         }
-        mHandler.removeCallbacks(mUpdateRecordingProgressTask);
+        setRecordingStartTime(0);
     }
 
     //
@@ -220,6 +226,14 @@ public class CallRecorder implements CallList.Listener {
         }
     }
 
+    @Override
+    public void onCallListChange(CallList callList, CallListChange change) {
+        // Only call state transitions affect the recorder lifecycle
+        if (change.hasChanges(CallListChange.FIELD_STATE)) {
+            onCallListChange(callList);
+        }
+    }
+
     @Override
     public void onDisconnect(final Call call) {
         CallRecording active = getActiveRecording();
@@ -246,25 +260,38 @@ public class CallRecorder implements CallList.Listener {
 
     public void addRecordingProgressListener(RecordingProgressListener listener) {
         mProgressListeners.add(listener);
+        updateProgressTicks();
     }
 
     public void removeRecordingProgressListener(RecordingProgressListener listener) {
         mProgressListeners.remove(listener);
+        updateProgressTicks();
     }
 
-    private static final int UPDATE_INTERVAL = 500;
+    private void setRecordingStartTime(long startTime) {
+        mRecordingStartTime = startTime;
+        updateProgressTicks();
+    }
 
-    private Runnable mUpdateRecordingProgressTask = new Runnable() {
-        @Override
-        public void run() {
-            CallRecording active = getActiveRecording();
-            if (active != null) {
-                long elapsed = System.currentTimeMillis() - active.startRecordingTime;
-                for (RecordingProgressListener l : mProgressListeners) {
-                    l.onRecordingTimeProgress(elapsed);
-                }
-            }
-            mHandler.postDelayed(mUpdateRecordingProgressTask, UPDATE_INTERVAL);
+    /**
+     * Ticks the progress listeners only while there are some and a recording is running.
+     */
+    private void updateProgressTicks() {
+        if (mRecordingStartTime > 0 && !mProgressListeners.isEmpty()) {
+            CallTickScheduler.getInstance().addUiTickListener(mProgressTicker);
+        } else {
+            CallTickScheduler.getInstance().removeUiTickListener(mProgressTicker);
         }
-    };
+    }
+
+    private final CallTickScheduler.TickListener mProgressTicker =
+            new CallTickScheduler.TickListener() {
+                @Override
+                public void onTick(long nowMillis) {
+                    long elapsed = nowMillis - mRecordingStartTime;
+                    for (RecordingProgressListener l : mProgressListeners) {
+                        l.onRecordingTimeProgress(elapsed);
+                    }
+                }
+            };
 }
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import com.android.contacts.common.testing.NeededForTesting;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Measures how long it takes for a call to be displayed: from the in-call service binding or the
+ * call being added, to the first frame of the in-call UI, the first caller name and the first
+ * contact photo shown on the call card. Each span is recorded into a fixed-bucket histogram.
+ *
+ * The histograms are printed by {@code dumpsys activity service
+ * com.android.incallui/.InCallServiceImpl}, and broadcast as {@link #ACTION_SNAPSHOT} to holders
+ * of the DUMP permission when the service unbinds. Only accessed from the main thread.
+ */
+public class CallSetupMetrics {
+
+    public static final String ACTION_SNAPSHOT =
+            "com.android.incallui.action.CALL_SETUP_METRICS";
+    /** Extra of {@link #ACTION_SNAPSHOT} holding a {@link Bundle} per span, by span name. */
+    public static final String EXTRA_SPANS = "spans";
+    /** Keys of the per-span bundles. */
+    public static final String KEY_COUNT = "count";
+    public static final String KEY_MEAN_MS = "mean_ms";
+    public static final String KEY_MAX_MS = "max_ms";
+    public static final String KEY_P50_MS = "p50_ms";
+    public static final String KEY_P90_MS = "p90_ms";
+    public static final String KEY_P99_MS = "p99_ms";
+    public static final String KEY_BUCKET_BOUNDS_MS = "bucket_bounds_ms";
+    public static final String KEY_BUCKET_COUNTS = "bucket_counts";
+
+    public static final int SPAN_BIND_TO_FIRST_FRAME = 0;
+    public static final int SPAN_ADDED_TO_FIRST_FRAME = 1;
+    public static final int SPAN_ADDED_TO_NAME = 2;
+    public static final int SPAN_ADDED_TO_PHOTO = 3;
+    public static final int SPAN_INCOMING_TO_FIRST_FRAME = 4;
+    public static final int SPAN_INCOMING_TO_NAME = 5;
+    public static final int SPAN_INCOMING_TO_PHOTO = 6;
+
+    private static final String[] SPAN_NAMES = new String[] {
+            "bind_to_first_frame", "added_to_first_frame", "added_to_name", "added_to_photo",
+            "incoming_to_first_frame", "incoming_to_name", "incoming_to_photo" };
+
+    private static final int MILESTONE_FIRST_FRAME = 1 << 0;
+    private static final int MILESTONE_NAME = 1 << 1;
+    private static final int MILESTONE_PHOTO = 1 << 2;
+
+    /**
+     * Upper bounds of the histogram buckets; the last bucket holds everything slower.
+     */
+    @NeededForTesting
+    static final long[] BUCKET_BOUNDS_MS = new long[] {
+            50, 100, 150, 200, 300, 400, 500, 750, 1000, 1500, 2000, 3000, 5000 };
+
+    /**
+     * Histogram of durations, with fixed buckets so that recording never allocates.
+     */
+    @NeededForTesting
+    static class Histogram {
+        private final int[] mCounts = new int[BUCKET_BOUNDS_MS.length + 1];
+        private int mCount = 0;
+        private long mSumMs = 0;
+        private long mMaxMs = 0;
+
+        void record(long durationMs) {
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_MS.length && durationMs > BUCKET_BOUNDS_MS[bucket]) {
+                bucket++;
+            }
+            mCounts[bucket]++;
+            mCount++;
+            mSumMs += durationMs;
+            mMaxMs = Math.max(mMaxMs, durationMs);
+        }
+
+        int getCount() {
+            return mCount;
+        }
+
+        long getMeanMs() {
+            return mCount == 0 ? 0 : mSumMs / mCount;
+        }
+
+        long getMaxMs() {
+            return mMaxMs;
+        }
+
+        /**
+         * @return The upper bound of the bucket holding the percentile, or the largest duration
+         *         if it falls in the last bucket.
+         */
+        long getPercentileMs(int percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            final int rank = (int) Math.ceil(mCount * percentile / 100.0);
+            int seen = 0;
+            for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(BUCKET_BOUNDS_MS[i], mMaxMs);
+                }
+            }
+            return mMaxMs;
+        }
+
+        Bundle toBundle() {
+            final Bundle bundle = new Bundle();
+            bundle.putInt(KEY_COUNT, mCount);
+            bundle.putLong(KEY_MEAN_MS, getMeanMs());
+            bundle.putLong(KEY_MAX_MS, mMaxMs);
+            bundle.putLong(KEY_P50_MS, getPercentileMs(50));
+            bundle.putLong(KEY_P90_MS, getPercentileMs(90));
+            bundle.putLong(KEY_P99_MS, getPercentileMs(99));
+            bundle.putLongArray(KEY_BUCKET_BOUNDS_MS, BUCKET_BOUNDS_MS);
+            bundle.putIntArray(KEY_BUCKET_COUNTS, mCounts.clone());
+            return bundle;
+        }
+    }
+
+    private static final class PendingCall {
+        final long addedAt;
+        final boolean isIncoming;
+        int milestones = 0;
+
+        PendingCall(long addedAt, boolean isIncoming) {
+            this.addedAt = addedAt;
+            this.isIncoming = isIncoming;
+        }
+    }
+
+    private static CallSetupMetrics sInstance;
+
+    private final Histogram[] mHistograms = new Histogram[SPAN_NAMES.length];
+    /** Calls which have not reached every milestone yet, by call id. */
+    private final HashMap<String, PendingCall> mPendingCalls = new HashMap<String, PendingCall>();
+    private int mCallsAwaitingFrame = 0;
+    private long mBoundAt = 0;
+    private boolean mHasNewSamples = false;
+
+    public static synchronized CallSetupMetrics getInstance() {
+        if (sInstance == null) {
+            sInstance = new CallSetupMetrics();
+        }
+        return sInstance;
+    }
+
+    @NeededForTesting
+    CallSetupMetrics() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new Histogram();
+        }
+    }
+
+    public void onServiceBind() {
+        mBoundAt = now();
+    }
+
+    public void onCallAdded(Call call) {
+        final int state = call.getState();
+        final PendingCall previous = mPendingCalls.put(call.getId(), new PendingCall(now(),
+                state == Call.State.INCOMING || state == Call.State.CALL_WAITING));
+        if (previous == null || (previous.milestones & MILESTONE_FIRST_FRAME) != 0) {
+            mCallsAwaitingFrame++;
+        }
+    }
+
+    public void onCallRemoved(Call call) {
+        final PendingCall pendingCall = mPendingCalls.remove(call.getId());
+        if (pendingCall != null && (pendingCall.milestones & MILESTONE_FIRST_FRAME) == 0) {
+            mCallsAwaitingFrame--;
+        }
+    }
+
+    /**
+     * Called before every frame drawn by the in-call UI while it is started. Returns right away
+     * unless a span is waiting for a frame.
+     */
+    public void onFrame() {
+        if (mBoundAt == 0 && mCallsAwaitingFrame == 0) {
+            return;
+        }
+        final long now = now();
+        if (mBoundAt != 0) {
+            record(SPAN_BIND_TO_FIRST_FRAME, now - mBoundAt);
+            mBoundAt = 0;
+        }
+        final Iterator<PendingCall> iterator = mPendingCalls.values().iterator();
+        while (iterator.hasNext()) {
+            final PendingCall pendingCall = iterator.next();
+            if (onMilestone(pendingCall, MILESTONE_FIRST_FRAME, now)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Called when the call card shows the caller name of the call.
+     */
+    public void onNameShown(String callId) {
+        onMilestone(callId, MILESTONE_NAME);
+    }
+
+    /**
+     * Called when the call card shows the contact photo of the call.
+     */
+    public void onPhotoShown(String callId) {
+        onMilestone(callId, MILESTONE_PHOTO);
+    }
+
+    private void onMilestone(String callId, int milestone) {
+        final PendingCall pendingCall = mPendingCalls.get(callId);
+        if (pendingCall != null && onMilestone(pendingCall, milestone, now())) {
+            mPendingCalls.remove(callId);
+        }
+    }
+
+    /**
+     * @return {@code true} if the call reached every milestone.
+     */
+    private boolean onMilestone(PendingCall pendingCall, int milestone, long now) {
+        if ((pendingCall.milestones & milestone) != 0) {
+            return false;
+        }
+        pendingCall.milestones |= milestone;
+        if (milestone == MILESTONE_FIRST_FRAME) {
+            mCallsAwaitingFrame--;
+        }
+
+        final long durationMs = now - pendingCall.addedAt;
+        switch (milestone) {
+            case MILESTONE_FIRST_FRAME:
+                record(SPAN_ADDED_TO_FIRST_FRAME, durationMs);
+                if (pendingCall.isIncoming) {
+                    record(SPAN_INCOMING_TO_FIRST_FRAME, durationMs);
+                }
+                break;
+            case MILESTONE_NAME:
+                record(SPAN_ADDED_TO_NAME, durationMs);
+                if (pendingCall.isIncoming) {
+                    record(SPAN_INCOMING_TO_NAME, durationMs);
+                }
+                break;
+            case MILESTONE_PHOTO:
+                record(SPAN_ADDED_TO_PHOTO, durationMs);
+                if (pendingCall.isIncoming) {
+                    record(SPAN_INCOMING_TO_PHOTO, durationMs);
+                }
+                break;
+        }
+        return pendingCall.milestones
+                == (MILESTONE_FIRST_FRAME | MILESTONE_NAME | MILESTONE_PHOTO);
+    }
+
+    private void record(int span, long durationMs) {
+        mHistograms[span].record(durationMs);
+        mHasNewSamples = true;
+    }
+
+    @NeededForTesting
+    Histogram getHistogram(int span) {
+        return mHistograms[span];
+    }
+
+    /**
+     * @return The histograms of every span, see {@link #EXTRA_SPANS}.
+     */
+    public Bundle getSnapshot() {
+        final Bundle spans = new Bundle();
+        for (int i = 0; i < mHistograms.length; i++) {
+            spans.putBundle(SPAN_NAMES[i], mHistograms[i].toBundle());
+        }
+        return spans;
+    }
+
+    /**
+     * Broadcasts the histograms if spans were recorded since the last broadcast.
+     */
+    public void sendSnapshot(Context context) {
+        if (!mHasNewSamples) {
+            return;
+        }
+        mHasNewSamples = false;
+        final Intent intent = new Intent(ACTION_SNAPSHOT);
+        intent.putExtra(EXTRA_SPANS, getSnapshot());
+        context.sendBroadcast(intent, Manifest.permission.DUMP);
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("CallSetupMetrics: (count, mean, p50, p90, p99, max in ms)");
+        for (int i = 0; i < mHistograms.length; i++) {
+            final Histogram histogram = mHistograms[i];
+            pw.println(String.format(Locale.US, "  %-24s %5d %6d %6d %6d %6d %6d",
+                    SPAN_NAMES[i], histogram.getCount(), histogram.getMeanMs(),
+                    histogram.getPercentileMs(50), histogram.getPercentileMs(90),
+                    histogram.getPercentileMs(99), histogram.getMaxMs()));
+        }
+    }
+
+    protected long now() {
+        return SystemClock.elapsedRealtime();
+    }
+}
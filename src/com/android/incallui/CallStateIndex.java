@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.telecom.PhoneAccountHandle;
+import android.text.TextUtils;
+import android.util.SparseArray;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Index of the calls held by {@link CallList}, bucketed by call state and ordered by creation
+ * time. Calls which belong to a specific subscription are additionally indexed per subscription
+ * so that DSDA lookups do not need to parse the account handle of every call.
+ *
+ * The index does not observe calls by itself; {@link CallList} must call {@link #update} whenever
+ * a call is (re)inserted in its map, and {@link #remove} when it is dropped.
+ */
+final class CallStateIndex {
+
+    /**
+     * Indexed snapshot of a single call. The state and subscription are captured at update time,
+     * the ordering key is captured once when the call is first seen.
+     */
+    private static final class Entry {
+        final Call call;
+        final long createTime;
+        final long sequence;
+        int state;
+        PhoneAccountHandle accountHandle;
+        int subId;
+        boolean matchesAnySub;
+        boolean matchesNoSub;
+
+        Entry(Call call, long createTime, long sequence) {
+            this.call = call;
+            this.createTime = createTime;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final Comparator<Entry> CREATION_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.createTime != rhs.createTime) {
+                return lhs.createTime < rhs.createTime ? -1 : 1;
+            }
+            return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+        }
+    };
+
+    private final HashMap<Call, Entry> mEntries = new HashMap<>();
+    private final SparseArray<ArrayList<Entry>> mByState = new SparseArray<>();
+    /** Calls with no subscription (e.g. SIP or no account) match every subscription. */
+    private final SparseArray<ArrayList<Entry>> mAnySubByState = new SparseArray<>();
+    private final SparseArray<SparseArray<ArrayList<Entry>>> mBySubByState = new SparseArray<>();
+    private long mSequence = 0;
+
+    /**
+     * Adds the call to the index, or moves it to the bucket matching its current state and
+     * subscription.
+     */
+    void update(Call call) {
+        Preconditions.checkNotNull(call);
+
+        Entry entry = mEntries.get(call);
+        if (entry == null) {
+            entry = new Entry(call, getCreateTime(call), mSequence++);
+            mEntries.put(call, entry);
+        } else if (entry.state == call.getState()
+                && Objects.equals(entry.accountHandle, call.getAccountHandle())) {
+            return;
+        } else {
+            unlink(entry);
+        }
+
+        entry.state = call.getState();
+        captureSub(entry, call.getAccountHandle());
+        link(entry);
+    }
+
+    void remove(Call call) {
+        final Entry entry = mEntries.remove(call);
+        if (entry != null) {
+            unlink(entry);
+        }
+    }
+
+    void clear() {
+        mEntries.clear();
+        mByState.clear();
+        mAnySubByState.clear();
+        mBySubByState.clear();
+    }
+
+    /**
+     * @return the [position]th oldest call in the given state, or {@code null}.
+     */
+    Call getCallWithState(int state, int position) {
+        final ArrayList<Entry> bucket = mByState.get(state);
+        if (bucket == null || position < 0 || position >= bucket.size()) {
+            return null;
+        }
+        return bucket.get(position).call;
+    }
+
+    /**
+     * @return the [position]th oldest call in the given state which belongs to the provided
+     * subscription, or to no subscription at all.
+     */
+    Call getCallWithState(int state, int position, int subId) {
+        final SparseArray<ArrayList<Entry>> bySub = mBySubByState.get(state);
+        final List<Entry> subBucket = bySub == null ? null : bySub.get(subId);
+        final List<Entry> anyBucket = mAnySubByState.get(state);
+        final int subSize = subBucket == null ? 0 : subBucket.size();
+        final int anySize = anyBucket == null ? 0 : anyBucket.size();
+        if (position < 0 || position >= subSize + anySize) {
+            return null;
+        }
+
+        // Both buckets are sorted, so walk them as a merge until the position is reached.
+        int i = 0;
+        int j = 0;
+        Entry found = null;
+        for (int n = 0; n <= position; n++) {
+            if (j >= anySize || (i < subSize
+                    && CREATION_ORDER.compare(subBucket.get(i), anyBucket.get(j)) <= 0)) {
+                found = subBucket.get(i++);
+            } else {
+                found = anyBucket.get(j++);
+            }
+        }
+        return found.call;
+    }
+
+    /**
+     * @return the oldest call in the given state with the provided number, or {@code null}.
+     */
+    Call getCallWithStateAndNumber(int state, String number) {
+        final ArrayList<Entry> bucket = mByState.get(state);
+        if (bucket == null) {
+            return null;
+        }
+        for (int i = 0; i < bucket.size(); i++) {
+            final Call call = bucket.get(i).call;
+            if (TextUtils.equals(call.getNumber(), number)) {
+                return call;
+            }
+        }
+        return null;
+    }
+
+    int size() {
+        return mEntries.size();
+    }
+
+    private void link(Entry entry) {
+        insertSorted(getOrCreate(mByState, entry.state), entry);
+        if (entry.matchesAnySub) {
+            insertSorted(getOrCreate(mAnySubByState, entry.state), entry);
+        } else if (!entry.matchesNoSub) {
+            SparseArray<ArrayList<Entry>> bySub = mBySubByState.get(entry.state);
+            if (bySub == null) {
+                bySub = new SparseArray<>();
+                mBySubByState.put(entry.state, bySub);
+            }
+            insertSorted(getOrCreate(bySub, entry.subId), entry);
+        }
+    }
+
+    private void unlink(Entry entry) {
+        removeFrom(mByState.get(entry.state), entry);
+        if (entry.matchesAnySub) {
+            removeFrom(mAnySubByState.get(entry.state), entry);
+        } else if (!entry.matchesNoSub) {
+            final SparseArray<ArrayList<Entry>> bySub = mBySubByState.get(entry.state);
+            if (bySub != null) {
+                removeFrom(bySub.get(entry.subId), entry);
+            }
+        }
+    }
+
+    private static ArrayList<Entry> getOrCreate(SparseArray<ArrayList<Entry>> array, int key) {
+        ArrayList<Entry> list = array.get(key);
+        if (list == null) {
+            list = new ArrayList<>(2);
+            array.put(key, list);
+        }
+        return list;
+    }
+
+    private static void insertSorted(ArrayList<Entry> list, Entry entry) {
+        int index = Collections.binarySearch(list, entry, CREATION_ORDER);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        list.add(index, entry);
+    }
+
+    private static void removeFrom(ArrayList<Entry> list, Entry entry) {
+        if (list == null) {
+            return;
+        }
+        final int index = Collections.binarySearch(list, entry, CREATION_ORDER);
+        if (index >= 0 && list.get(index) == entry) {
+            list.remove(index);
+        } else {
+            list.remove(entry);
+        }
+    }
+
+    /**
+     * Mirrors the subscription matching rules historically applied by
+     * {@link CallList#getCallWithState(int, int, int)}: calls without an account or with a SIP
+     * account match any subscription, calls with a non-numeric account match none.
+     */
+    private void captureSub(Entry entry, PhoneAccountHandle ph) {
+        entry.accountHandle = ph;
+        entry.matchesAnySub = false;
+        entry.matchesNoSub = false;
+        entry.subId = 0;
+        if (ph == null) {
+            entry.matchesAnySub = true;
+            return;
+        }
+        final String id = ph.getId();
+        if (id == null) {
+            entry.matchesNoSub = true;
+        } else if (id.contains("sip")) {
+            entry.matchesAnySub = true;
+        } else {
+            try {
+                entry.subId = Integer.parseInt(id);
+            } catch (NumberFormatException e) {
+                Log.w(this, "Sub Id is not a number " + e);
+                entry.matchesNoSub = true;
+            }
+        }
+    }
+
+    private static long getCreateTime(Call call) {
+        return call.getTelecommCall() == null ? 0 : call.getCreateTimeMillis();
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Single timer shared by everything in the in-call UI that runs on a clock.
+ *
+ * UI tick listeners, such as the call duration and the recording time, are ticked on every
+ * wall-clock second boundary while the in-call UI is showing, all of them within the same
+ * frame. Alarm listeners are ticked once at a given wall-clock time, whether or not the UI is
+ * showing. Nothing is scheduled when there is neither a showing UI tick listener nor a pending
+ * alarm, so long calls with the screen off do not wake the main thread every second.
+ *
+ * Only accessed from the main thread.
+ */
+public class CallTickScheduler implements InCallUiStateNotifierListener {
+
+    public interface TickListener {
+        /**
+         * @param nowMillis The wall-clock time of the tick.
+         */
+        void onTick(long nowMillis);
+    }
+
+    private static final long TICK_INTERVAL_MS = 1000;
+    /** A timer firing this early still counts as the tick it was scheduled for. */
+    private static final long TICK_SLACK_MS = 20;
+
+    private static CallTickScheduler sInstance;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LinkedHashSet<TickListener> mUiListeners = new LinkedHashSet<TickListener>();
+    /** Wall-clock time of the alarms, by listener. */
+    private final HashMap<TickListener, Long> mAlarms = new HashMap<TickListener, Long>();
+    private boolean mUiShowing = false;
+    private boolean mFramePending = false;
+    private boolean mIsSetUp = false;
+
+    private final Runnable mTimerRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onTimer();
+        }
+    };
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFramePending = false;
+            dispatchUiTick(System.currentTimeMillis());
+        }
+    };
+
+    public static synchronized CallTickScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new CallTickScheduler();
+        }
+        return sInstance;
+    }
+
+    private CallTickScheduler() {
+    }
+
+    /**
+     * Starts following the visibility of the in-call UI. Must be called after
+     * {@link InCallUiStateNotifier#setUp}.
+     */
+    public void setUp() {
+        if (!mIsSetUp) {
+            InCallUiStateNotifier.getInstance().addListener(this);
+            mIsSetUp = true;
+        }
+        mUiShowing = InCallUiStateNotifier.getInstance().isUiShowing();
+        schedule();
+    }
+
+    /**
+     * Stops every tick and alarm.
+     */
+    public void tearDown() {
+        if (mIsSetUp) {
+            InCallUiStateNotifier.getInstance().removeListener(this);
+            mIsSetUp = false;
+        }
+        mUiListeners.clear();
+        mAlarms.clear();
+        mUiShowing = false;
+        schedule();
+    }
+
+    /**
+     * Ticks the listener right away if the UI is showing, then on every second boundary while it
+     * is. Adding a listener twice has no effect.
+     */
+    public void addUiTickListener(TickListener listener) {
+        if (mUiListeners.add(listener)) {
+            if (mUiShowing) {
+                listener.onTick(System.currentTimeMillis());
+            }
+            schedule();
+        }
+    }
+
+    public void removeUiTickListener(TickListener listener) {
+        if (mUiListeners.remove(listener)) {
+            schedule();
+        }
+    }
+
+    /**
+     * Ticks the listener once at the given wall-clock time, replacing any alarm it had.
+     */
+    public void setAlarm(TickListener listener, long wallTimeMillis) {
+        mAlarms.put(listener, wallTimeMillis);
+        schedule();
+    }
+
+    public void cancelAlarm(TickListener listener) {
+        if (mAlarms.remove(listener) != null) {
+            schedule();
+        }
+    }
+
+    @Override
+    public void onUiShowing(boolean showing) {
+        if (mUiShowing == showing) {
+            return;
+        }
+        mUiShowing = showing;
+        if (showing) {
+            // Catch up on the ticks skipped while hidden.
+            postUiTick();
+        } else if (mFramePending) {
+            Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+            mFramePending = false;
+        }
+        schedule();
+    }
+
+    private void onTimer() {
+        final long now = System.currentTimeMillis();
+
+        ArrayList<TickListener> dueAlarms = null;
+        for (Map.Entry<TickListener, Long> alarm : mAlarms.entrySet()) {
+            if (alarm.getValue() - TICK_SLACK_MS <= now) {
+                if (dueAlarms == null) {
+                    dueAlarms = new ArrayList<TickListener>();
+                }
+                dueAlarms.add(alarm.getKey());
+            }
+        }
+        if (dueAlarms != null) {
+            for (TickListener listener : dueAlarms) {
+                mAlarms.remove(listener);
+                listener.onTick(now);
+            }
+        }
+
+        if (isUiTicking()) {
+            postUiTick();
+        }
+        schedule();
+    }
+
+    private void postUiTick() {
+        if (!mFramePending && !mUiListeners.isEmpty()) {
+            mFramePending = true;
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+    }
+
+    private void dispatchUiTick(long now) {
+        // Listeners may remove themselves while ticked.
+        for (TickListener listener : new ArrayList<TickListener>(mUiListeners)) {
+            listener.onTick(now);
+        }
+    }
+
+    private boolean isUiTicking() {
+        return mUiShowing && !mUiListeners.isEmpty();
+    }
+
+    /**
+     * Schedules the timer for the next second boundary or alarm, whichever comes first, or
+     * stops it if there is neither.
+     */
+    private void schedule() {
+        mHandler.removeCallbacks(mTimerRunnable);
+
+        final long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        if (isUiTicking()) {
+            next = ((now + TICK_SLACK_MS) / TICK_INTERVAL_MS + 1) * TICK_INTERVAL_MS;
+        }
+        for (Long alarm : mAlarms.values()) {
+            next = Math.min(next, alarm);
+        }
+        if (next == Long.MAX_VALUE) {
+            return;
+        }
+        mHandler.postAtTime(mTimerRunnable, SystemClock.uptimeMillis() + Math.max(0, next - now));
+    }
+
+    @Override
+    public String toString() {
+        return "CallTickScheduler[uiShowing=" + mUiShowing + ", uiListeners=" + mUiListeners.size()
+                + ", alarms=" + mAlarms.size() + "]";
+    }
+}
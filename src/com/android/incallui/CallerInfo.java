@@ -23,6 +23,7 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
@@ -31,6 +32,7 @@ import android.provider.ContactsContract.PhoneLookup;
 import android.provider.ContactsContract.RawContacts;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
+import android.util.LruCache;
 
 import com.google.i18n.phonenumbers.geocoding.PhoneNumberOfflineGeocoder;
 import com.google.i18n.phonenumbers.NumberParseException;
@@ -50,6 +52,19 @@ public class CallerInfo {
     private static final Uri CONTENT_URI = Uri.parse("content://geocoded_location/location");
     private static final String METHOD_GET_LOCATION = "getLocation";
     private static final String RESULT_LOCATION = "location";
+
+    /** Number of geo descriptions kept by {@link #sGeoDescriptionCache}. */
+    private static final int GEO_DESCRIPTION_CACHE_SIZE = 64;
+    /** Cached in place of a null description, which LruCache can't hold. */
+    private static final String NO_GEO_DESCRIPTION = new String();
+
+    /**
+     * Geo descriptions by country ISO, locale and number. The whole number is part of the key
+     * as the offline geocoder only describes geographical numbers, a property of the full
+     * number rather than of its prefix.
+     */
+    private static final LruCache<String, String> sGeoDescriptionCache =
+            new LruCache<String, String>(GEO_DESCRIPTION_CACHE_SIZE);
     /**
      * Please note that, any one of these member variables can be null,
      * and any accesses to them should be prepared to handle such a case.
@@ -160,6 +175,38 @@ public class CallerInfo {
         mIsVoiceMail = false;
     }
 
+    /**
+     * Copies the caller info, e.g. to hand each listener of a shared query its own.
+     */
+    public CallerInfo(CallerInfo other) {
+        name = other.name;
+        phoneNumber = other.phoneNumber;
+        normalizedNumber = other.normalizedNumber;
+        forwardingNumber = other.forwardingNumber;
+        geoDescription = other.geoDescription;
+        cnapName = other.cnapName;
+        numberPresentation = other.numberPresentation;
+        namePresentation = other.namePresentation;
+        contactExists = other.contactExists;
+        phoneLabel = other.phoneLabel;
+        numberType = other.numberType;
+        numberLabel = other.numberLabel;
+        photoResource = other.photoResource;
+        contactIdOrZero = other.contactIdOrZero;
+        lookupKeyOrNull = other.lookupKeyOrNull;
+        needUpdate = other.needUpdate;
+        contactRefUri = other.contactRefUri;
+        contactDisplayPhotoUri = other.contactDisplayPhotoUri;
+        contactRingtoneUri = other.contactRingtoneUri;
+        shouldSendToVoicemail = other.shouldSendToVoicemail;
+        cachedPhoto = other.cachedPhoto;
+        cachedPhotoIcon = other.cachedPhotoIcon;
+        isCachedPhotoCurrent = other.isCachedPhotoCurrent;
+        callSubject = other.callSubject;
+        mIsEmergency = other.mIsEmergency;
+        mIsVoiceMail = other.mIsVoiceMail;
+    }
+
     /**
      * getCallerInfo given a Cursor.
      * @param context the context used to retrieve string constants
@@ -482,6 +529,20 @@ public class CallerInfo {
      */
     public void updateGeoDescription(Context context, String fallbackNumber) {
         String number = TextUtils.isEmpty(phoneNumber) ? fallbackNumber : phoneNumber;
+        if (TextUtils.isEmpty(number)) {
+            geoDescription = null;
+            return;
+        }
+
+        final Locale locale = context.getResources().getConfiguration().locale;
+        final String countryIso = TelephonyManagerUtils.getCurrentCountryIso(context, locale);
+        final String key = countryIso + '|' + locale + '|' + number;
+        final String cached = sGeoDescriptionCache.get(key);
+        if (cached != null) {
+            geoDescription = cached == NO_GEO_DESCRIPTION ? null : cached;
+            return;
+        }
+
         String address = null;
         if (context.getResources().getBoolean(R.bool.enable_home_location)) {
             if (context.getContentResolver().acquireProvider(CONTENT_URI) != null) {
@@ -492,14 +553,37 @@ public class CallerInfo {
                 }
             }
         }
-        geoDescription = (address == null ? getGeoDescription(context, number) : address);
+        geoDescription = (address == null
+                ? getGeoDescription(number, countryIso, locale) : address);
+        sGeoDescriptionCache.put(key, geoDescription == null ? NO_GEO_DESCRIPTION : geoDescription);
+    }
+
+    /**
+     * Loads the phone number metadata and the geocoding data of the current country in the
+     * background, so that the first lookup does not pay for it.
+     */
+    public static void warmUpGeocoder(Context context) {
+        final Locale locale = context.getResources().getConfiguration().locale;
+        final String countryIso = TelephonyManagerUtils.getCurrentCountryIso(context, locale);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final PhoneNumberUtil util = PhoneNumberUtil.getInstance();
+                final PhoneNumber example = util.getExampleNumber(countryIso);
+                if (example != null) {
+                    PhoneNumberOfflineGeocoder.getInstance()
+                            .getDescriptionForNumber(example, locale);
+                }
+                Log.d(TAG, "Geocoder warmed up for " + countryIso);
+            }
+        });
     }
 
     /**
      * @return a geographical description string for the specified number.
      * @see com.android.i18n.phonenumbers.PhoneNumberOfflineGeocoder
      */
-    private static String getGeoDescription(Context context, String number) {
+    private static String getGeoDescription(String number, String countryIso, Locale locale) {
         Log.v(TAG, "getGeoDescription('" + number + "')...");
 
         if (TextUtils.isEmpty(number)) {
@@ -509,8 +593,6 @@ public class CallerInfo {
         PhoneNumberUtil util = PhoneNumberUtil.getInstance();
         PhoneNumberOfflineGeocoder geocoder = PhoneNumberOfflineGeocoder.getInstance();
 
-        Locale locale = context.getResources().getConfiguration().locale;
-        String countryIso = TelephonyManagerUtils.getCurrentCountryIso(context, locale);
         PhoneNumber pn = null;
         try {
             Log.v(TAG, "parsing '" + number
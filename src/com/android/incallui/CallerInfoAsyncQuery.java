@@ -24,6 +24,7 @@ import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.PhoneLookup;
@@ -34,6 +35,8 @@ import com.android.contacts.common.util.PhoneNumberHelper;
 import com.android.contacts.common.util.TelephonyManagerUtils;
 
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Locale;
 
 /**
@@ -50,8 +53,25 @@ public class CallerInfoAsyncQuery {
     private static final int EVENT_END_OF_QUEUE = 3;
     private static final int EVENT_EMERGENCY_NUMBER = 4;
     private static final int EVENT_VOICEMAIL_NUMBER = 5;
+    private static final int EVENT_NO_CONTACT_CACHED = 6;
+
+    /** How long a number which matched no contact is answered without a query. */
+    private static final long NO_CONTACT_TTL_MS = 30 * 1000;
+
+    /**
+     * Queries in flight by number key, so that concurrent lookups of the same number attach
+     * to a single query. Only accessed from the main thread.
+     */
+    private static final HashMap<String, CallerInfoAsyncQuery> sPendingQueries =
+            new HashMap<String, CallerInfoAsyncQuery>();
+    /**
+     * Expiry time of the numbers which recently matched no contact, by number key. Only
+     * accessed from the main thread.
+     */
+    private static final HashMap<String, Long> sNoContactNumbers = new HashMap<String, Long>();
 
     private CallerInfoAsyncQueryHandler mHandler;
+    private String mQueryKey;
 
     // If the CallerInfo query finds no contacts, should we use the
     // PhoneNumberOfflineGeocoder to look up a "geo description"?
@@ -172,6 +192,7 @@ public class CallerInfoAsyncQuery {
                         // shortcuts to avoid query for recognized numbers.
                         case EVENT_EMERGENCY_NUMBER:
                         case EVENT_VOICEMAIL_NUMBER:
+                        case EVENT_NO_CONTACT_CACHED:
 
                         case EVENT_ADD_LISTENER:
                         case EVENT_END_OF_QUEUE:
@@ -262,15 +283,26 @@ public class CallerInfoAsyncQuery {
                     } else if (cw.event == EVENT_VOICEMAIL_NUMBER) {
                         mCallerInfo = new CallerInfo().markAsVoiceMail(mQueryContext);
                     } else {
-                        mCallerInfo = CallerInfo.getCallerInfo(mQueryContext, mQueryUri, cursor);
-                        Log.d(this, "==> Got mCallerInfo: " + mCallerInfo);
-
-                        CallerInfo newCallerInfo = CallerInfo.doSecondaryLookupIfNecessary(
-                                mQueryContext, cw.number, mCallerInfo);
-                        if (newCallerInfo != mCallerInfo) {
-                            mCallerInfo = newCallerInfo;
-                            Log.d(this, "#####async contact look up with numeric username"
-                                    + mCallerInfo);
+                        if (cw.event == EVENT_NO_CONTACT_CACHED) {
+                            // The same number matched no contact moments ago.
+                            mCallerInfo = CallerInfo.getCallerInfo(mQueryContext, mQueryUri,
+                                    null);
+                        } else {
+                            mCallerInfo = CallerInfo.getCallerInfo(mQueryContext, mQueryUri,
+                                    cursor);
+                            Log.d(this, "==> Got mCallerInfo: " + mCallerInfo);
+
+                            CallerInfo newCallerInfo = CallerInfo.doSecondaryLookupIfNecessary(
+                                    mQueryContext, cw.number, mCallerInfo);
+                            if (newCallerInfo != mCallerInfo) {
+                                mCallerInfo = newCallerInfo;
+                                Log.d(this, "#####async contact look up with numeric username"
+                                        + mCallerInfo);
+                            }
+
+                            if (!mCallerInfo.contactExists && mQueryKey != null) {
+                                rememberNoContact(mQueryKey);
+                            }
                         }
 
                         // Final step: look up the geocoded description.
@@ -306,6 +338,13 @@ public class CallerInfoAsyncQuery {
 
                     Log.d(this, "constructing CallerInfo object for token: " + token);
 
+                    // Later lookups of the number start a new query; the listeners which
+                    // attached to this one are already queued ahead of the end marker.
+                    if (mQueryKey != null && sPendingQueries.get(mQueryKey)
+                            == CallerInfoAsyncQuery.this) {
+                        sPendingQueries.remove(mQueryKey);
+                    }
+
                     //notify that we can clean up the queue after this.
                     CookieWrapper endMarker = new CookieWrapper();
                     endMarker.event = EVENT_END_OF_QUEUE;
@@ -316,7 +355,11 @@ public class CallerInfoAsyncQuery {
                 if (cw.listener != null) {
                     Log.d(this, "notifying listener: " + cw.listener.getClass().toString() +
                             " for token: " + token + mCallerInfo);
-                    cw.listener.onQueryComplete(token, cw.cookie, mCallerInfo);
+                    // Listeners which attached to the query get their own copy, since they
+                    // may update the caller info they are handed.
+                    final CallerInfo callerInfo = cw.event == EVENT_ADD_LISTENER
+                            ? new CallerInfo(mCallerInfo) : mCallerInfo;
+                    cw.listener.onQueryComplete(token, cw.cookie, callerInfo);
                 }
             } finally {
                 // The cursor may have been closed in CallerInfo.getCallerInfo()
@@ -336,6 +379,10 @@ public class CallerInfoAsyncQuery {
     /**
      * Factory method to start the query based on a CallerInfo object.
      *
+     * A lookup of a number for which a query is already in flight attaches to that query, and
+     * a number which matched no contact in the last {@link #NO_CONTACT_TTL_MS} is answered
+     * without querying the contacts provider again.
+     *
      * Note: if the number contains an "@" character we treat it
      * as a SIP address, and look it up directly in the Data table
      * rather than using the PhoneLookup table.
@@ -362,9 +409,6 @@ public class CallerInfoAsyncQuery {
             Log.d(LOG_TAG, "==> contactRef: " + sanitizeUriToString(contactRef));
         }
 
-        CallerInfoAsyncQuery c = new CallerInfoAsyncQuery();
-        c.allocate(context, contactRef);
-
         //create cookieWrapper, start query
         CookieWrapper cw = new CookieWrapper();
         cw.listener = listener;
@@ -372,12 +416,38 @@ public class CallerInfoAsyncQuery {
         cw.number = info.phoneNumber;
 
         // check to see if these are recognized numbers, and use shortcuts if we can.
+        final String queryKey;
         if (PhoneNumberUtils.isLocalEmergencyNumber(context, info.phoneNumber)) {
             cw.event = EVENT_EMERGENCY_NUMBER;
+            queryKey = null;
         } else if (info.isVoiceMailNumber()) {
             cw.event = EVENT_VOICEMAIL_NUMBER;
+            queryKey = null;
         } else {
-            cw.event = EVENT_NEW_QUERY;
+            queryKey = getQueryKey(info.phoneNumber);
+            if (queryKey != null && isKnownNoContact(queryKey)) {
+                Log.d(LOG_TAG, "Number matched no contact recently, skipping query");
+                cw.event = EVENT_NO_CONTACT_CACHED;
+            } else {
+                cw.event = EVENT_NEW_QUERY;
+            }
+        }
+
+        if (cw.event == EVENT_NEW_QUERY && queryKey != null) {
+            final CallerInfoAsyncQuery pending = sPendingQueries.get(queryKey);
+            if (pending != null) {
+                Log.d(LOG_TAG, "Attaching to the query in flight for the number");
+                cw.event = EVENT_ADD_LISTENER;
+                pending.mHandler.startQuery(token, cw, null, null, null, null, null);
+                return pending;
+            }
+        }
+
+        CallerInfoAsyncQuery c = new CallerInfoAsyncQuery();
+        c.allocate(context, contactRef);
+        if (cw.event == EVENT_NEW_QUERY && queryKey != null) {
+            c.mQueryKey = queryKey;
+            sPendingQueries.put(queryKey, c);
         }
 
         c.mHandler.startQuery(token,
@@ -390,6 +460,45 @@ public class CallerInfoAsyncQuery {
         return c;
     }
 
+    /**
+     * Forgets the numbers which matched no contact, e.g. because the contacts changed.
+     */
+    public static void clearNoContactCache() {
+        sNoContactNumbers.clear();
+    }
+
+    /**
+     * @return The key under which queries for the number are coalesced and cached, or
+     * {@code null} if they are not.
+     */
+    private static String getQueryKey(String number) {
+        if (TextUtils.isEmpty(number)) {
+            return null;
+        }
+        if (PhoneNumberHelper.isUriNumber(number)) {
+            return number;
+        }
+        final String normalized = PhoneNumberUtils.normalizeNumber(number);
+        return TextUtils.isEmpty(normalized) ? null : normalized;
+    }
+
+    private static boolean isKnownNoContact(String queryKey) {
+        final Long expiresAt = sNoContactNumbers.get(queryKey);
+        return expiresAt != null && expiresAt > SystemClock.elapsedRealtime();
+    }
+
+    private static void rememberNoContact(String queryKey) {
+        final long now = SystemClock.elapsedRealtime();
+        // Drop the expired entries while at it, the map only ever holds a handful.
+        final Iterator<Long> iterator = sNoContactNumbers.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() <= now) {
+                iterator.remove();
+            }
+        }
+        sNoContactNumbers.put(queryKey, now + NO_CONTACT_TTL_MS);
+    }
+
     /**
      * Method to create a new CallerInfoAsyncQueryHandler object, ensuring correct
      * state of context and uri.
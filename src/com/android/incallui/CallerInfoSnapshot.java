@@ -0,0 +1,470 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import com.android.incallui.ContactInfoCache.ContactCacheEntry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Small on-disk snapshot of recently seen callers, so that the first call after a cold process
+ * start can show a name and avatar before the contacts query completes.
+ *
+ * Records are keyed by a hash of the normalized number and hold the name, label, lookup URI and
+ * a downscaled photo. The file is memory-mapped and its photos decoded on a background thread
+ * when the in-call service is bound, so that lookups on the main thread only read the text
+ * fields. The file is rewritten in the background, debounced, as lookups complete. The snapshot
+ * is only a hint: the regular lookup still runs and replaces whatever was shown from it.
+ */
+public class CallerInfoSnapshot {
+
+    private static final String FILE_NAME = "caller_snapshot.bin";
+    private static final int MAGIC = 0x43495353; // "CISS"
+    private static final int VERSION = 1;
+
+    private static final int MAX_RECORDS = 64;
+    private static final int PHOTO_SIZE_PX = 96;
+    private static final int PHOTO_QUALITY = 80;
+    private static final long WRITE_DELAY_MS = 2000;
+
+    private static final long FNV64_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV64_PRIME = 0x100000001b3L;
+
+    private static CallerInfoSnapshot sInstance;
+
+    /** A record as stored on disk. */
+    private static final class Record {
+        long hash;
+        long lastSeen;
+        String name;
+        String label;
+        String lookupUri;
+        byte[] photo;
+    }
+
+    /** A pending update, {@code entry} is {@code null} for removals. */
+    private static final class Update {
+        final long lastSeen;
+        final ContactCacheEntry entry;
+
+        Update(long lastSeen, ContactCacheEntry entry) {
+            this.lastSeen = lastSeen;
+            this.entry = entry;
+        }
+    }
+
+    private final Context mContext;
+    private final Handler mWorker;
+
+    /** Mapped file, record offsets and photos by number hash; swapped together once loaded. */
+    private volatile MappedIndex mIndex;
+    private final HashMap<Long, Update> mPendingUpdates = new HashMap<>();
+
+    private static final class MappedIndex {
+        final ByteBuffer buffer;
+        final HashMap<Long, Integer> offsets;
+        final HashMap<Long, Bitmap> photos;
+
+        MappedIndex(ByteBuffer buffer, HashMap<Long, Integer> offsets,
+                HashMap<Long, Bitmap> photos) {
+            this.buffer = buffer;
+            this.offsets = offsets;
+            this.photos = photos;
+        }
+    }
+
+    public static synchronized CallerInfoSnapshot getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CallerInfoSnapshot(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private CallerInfoSnapshot(Context context) {
+        mContext = context;
+        final HandlerThread thread = new HandlerThread("CallerInfoSnapshot");
+        thread.start();
+        mWorker = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Maps the snapshot file in the background, if it is not mapped already.
+     */
+    public void load() {
+        if (mIndex != null) {
+            return;
+        }
+        mWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mIndex == null) {
+                    mIndex = map();
+                }
+            }
+        });
+    }
+
+    /**
+     * Fills the name, label, lookup URI and photo of the entry from the snapshot. The photo was
+     * decoded when the snapshot was loaded, so this does no decoding.
+     *
+     * @return {@code true} if the number was found.
+     */
+    public boolean fill(String number, ContactCacheEntry entry) {
+        final MappedIndex index = mIndex;
+        final long hash = hash(number);
+        if (index == null || hash == 0) {
+            return false;
+        }
+        final Integer offset = index.offsets.get(hash);
+        if (offset == null) {
+            return false;
+        }
+        final Record record;
+        try {
+            record = readRecord(index.buffer.duplicate(), offset, false);
+        } catch (RuntimeException e) {
+            Log.e(this, "Corrupted snapshot record", e);
+            return false;
+        }
+        entry.name = record.name;
+        entry.label = record.label;
+        entry.lookupUri = record.lookupUri == null ? null : Uri.parse(record.lookupUri);
+        final Bitmap photo = index.photos.get(hash);
+        if (photo != null) {
+            entry.photo = new BitmapDrawable(mContext.getResources(), photo);
+        }
+        return true;
+    }
+
+    /**
+     * Records the result of a completed lookup for the number.
+     */
+    public void put(String number, ContactCacheEntry entry) {
+        if (entry == null || TextUtils.isEmpty(entry.name)) {
+            remove(number);
+            return;
+        }
+        enqueue(number, new ContactCacheEntry(entry));
+    }
+
+    /**
+     * Forgets the number, e.g. because the lookup no longer resolves to a name.
+     */
+    public void remove(String number) {
+        final MappedIndex index = mIndex;
+        final long hash = hash(number);
+        if (hash != 0 && index != null && index.offsets.containsKey(hash)) {
+            enqueue(number, null);
+        }
+    }
+
+    /**
+     * Forgets all numbers, e.g. because the contacts changed and the names may be stale.
+     */
+    public void invalidate() {
+        synchronized (mPendingUpdates) {
+            mPendingUpdates.clear();
+        }
+        // Stop answering from the stale snapshot right away, the file goes in the background.
+        mIndex = emptyIndex();
+        mWorker.removeCallbacks(mWriteRunnable);
+        mWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                getFile().delete();
+                // A write which was running remapped the stale file.
+                mIndex = emptyIndex();
+            }
+        });
+    }
+
+    private void enqueue(String number, ContactCacheEntry entry) {
+        final long hash = hash(number);
+        if (hash == 0) {
+            return;
+        }
+        synchronized (mPendingUpdates) {
+            mPendingUpdates.put(hash, new Update(System.currentTimeMillis(), entry));
+        }
+        mWorker.removeCallbacks(mWriteRunnable);
+        mWorker.postDelayed(mWriteRunnable, WRITE_DELAY_MS);
+    }
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final HashMap<Long, Update> updates;
+            synchronized (mPendingUpdates) {
+                updates = new HashMap<>(mPendingUpdates);
+                mPendingUpdates.clear();
+            }
+            if (mIndex == null) {
+                mIndex = map();
+            }
+            write(updates);
+            mIndex = map();
+        }
+    };
+
+    private static MappedIndex emptyIndex() {
+        return new MappedIndex(ByteBuffer.allocate(0), new HashMap<Long, Integer>(),
+                new HashMap<Long, Bitmap>());
+    }
+
+    /**
+     * @return the FNV-1a hash of the normalized number, {@code 0} if there is no number.
+     */
+    static long hash(String number) {
+        final String key = ContactInfoNumberCache.getKey(number);
+        if (key == null) {
+            return 0;
+        }
+        long hash = FNV64_OFFSET_BASIS;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= FNV64_PRIME;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    private File getFile() {
+        return new File(mContext.getNoBackupFilesDir(), FILE_NAME);
+    }
+
+    /** Runs on the worker thread. */
+    private MappedIndex map() {
+        final long start = SystemClock.elapsedRealtime();
+        final File file = getFile();
+        if (!file.exists()) {
+            return emptyIndex();
+        }
+        final HashMap<Long, Integer> offsets = new HashMap<>();
+        final HashMap<Long, Bitmap> photos = new HashMap<>();
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            final FileChannel channel = raf.getChannel();
+            final MappedByteBuffer buffer =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 12 || buffer.getInt(0) != MAGIC
+                    || buffer.getInt(4) != VERSION) {
+                Log.w(this, "Discarding snapshot with unknown format");
+                file.delete();
+                return emptyIndex();
+            }
+            final int count = buffer.getInt(8);
+            final ByteBuffer reader = buffer.duplicate();
+            reader.position(12);
+            for (int i = 0; i < count; i++) {
+                final int offset = reader.position();
+                final Record record = readRecord(reader, offset, true);
+                offsets.put(record.hash, offset);
+                if (record.photo != null) {
+                    final Bitmap photo = BitmapFactory.decodeByteArray(record.photo, 0,
+                            record.photo.length);
+                    if (photo != null) {
+                        photos.put(record.hash, photo);
+                    }
+                }
+            }
+            Log.d(this, "Mapped " + count + " callers in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms");
+            return new MappedIndex(buffer, offsets, photos);
+        } catch (IOException | RuntimeException e) {
+            Log.e(this, "Unable to map snapshot", e);
+            file.delete();
+            return emptyIndex();
+        } finally {
+            if (raf != null) {
+                try {
+                    // The mapping stays valid once the file is closed.
+                    raf.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /** Runs on the worker thread. */
+    private void write(HashMap<Long, Update> updates) {
+        final MappedIndex index = mIndex;
+        final ArrayList<Record> records = new ArrayList<>();
+        for (Map.Entry<Long, Integer> entry : index.offsets.entrySet()) {
+            if (!updates.containsKey(entry.getKey())) {
+                records.add(readRecord(index.buffer.duplicate(), entry.getValue(), true));
+            }
+        }
+        for (Map.Entry<Long, Update> entry : updates.entrySet()) {
+            final Update update = entry.getValue();
+            if (update.entry != null) {
+                records.add(toRecord(entry.getKey(), update));
+            }
+        }
+        Collections.sort(records, new Comparator<Record>() {
+            @Override
+            public int compare(Record lhs, Record rhs) {
+                return Long.compare(rhs.lastSeen, lhs.lastSeen);
+            }
+        });
+        final int count = Math.min(records.size(), MAX_RECORDS);
+
+        final File file = getFile();
+        final File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(temp));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                writeRecord(out, records.get(i));
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                Log.w(this, "Unable to replace snapshot");
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.e(this, "Unable to write snapshot", e);
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static Record toRecord(long hash, Update update) {
+        final Record record = new Record();
+        record.hash = hash;
+        record.lastSeen = update.lastSeen;
+        record.name = update.entry.name;
+        record.label = update.entry.label;
+        record.lookupUri = update.entry.lookupUri == null ? null
+                : update.entry.lookupUri.toString();
+        record.photo = encodePhoto(update.entry.photo);
+        return record;
+    }
+
+    private static byte[] encodePhoto(Drawable photo) {
+        if (!(photo instanceof BitmapDrawable)) {
+            return null;
+        }
+        final Bitmap bitmap = ((BitmapDrawable) photo).getBitmap();
+        if (bitmap == null || bitmap.isRecycled()) {
+            return null;
+        }
+        final Bitmap scaled = bitmap.getWidth() > PHOTO_SIZE_PX
+                ? Bitmap.createScaledBitmap(bitmap, PHOTO_SIZE_PX,
+                        Math.max(1, bitmap.getHeight() * PHOTO_SIZE_PX / bitmap.getWidth()), true)
+                : bitmap;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        scaled.compress(Bitmap.CompressFormat.WEBP, PHOTO_QUALITY, out);
+        if (scaled != bitmap) {
+            scaled.recycle();
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeRecord(DataOutputStream out, Record record) throws IOException {
+        out.writeLong(record.hash);
+        out.writeLong(record.lastSeen);
+        writeString(out, record.name);
+        writeString(out, record.label);
+        writeString(out, record.lookupUri);
+        if (record.photo == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(record.photo.length);
+            out.write(record.photo);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Reads the record at the offset, leaving the buffer after it. The photo is skipped unless
+     * {@code withPhoto} is set.
+     */
+    private static Record readRecord(ByteBuffer buffer, int offset, boolean withPhoto) {
+        buffer.position(offset);
+        final Record record = new Record();
+        record.hash = buffer.getLong();
+        record.lastSeen = buffer.getLong();
+        record.name = readString(buffer);
+        record.label = readString(buffer);
+        record.lookupUri = readString(buffer);
+        final int photoLength = buffer.getInt();
+        if (photoLength >= 0 && withPhoto) {
+            record.photo = new byte[photoLength];
+            buffer.get(record.photo);
+        } else if (photoLength > 0) {
+            buffer.position(buffer.position() + photoLength);
+        }
+        return record;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -5,6 +5,7 @@ import android.content.Loader;
 import android.content.Loader.OnLoadCompleteListener;
 import android.net.Uri;
 import android.telecom.PhoneAccount;
+import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
 import android.text.TextUtils;
 import android.util.Log;
@@ -12,8 +13,6 @@ import android.util.Log;
 import com.android.contacts.common.model.Contact;
 import com.android.contacts.common.model.ContactLoader;
 
-import java.util.Arrays;
-
 /**
  * Utility methods for contact and caller info related functionality
  */
@@ -88,10 +87,41 @@ public class CallerInfoUtils {
     }
 
     public static boolean isVoiceMailNumber(Context context, Call call) {
-         TelecomManager telecomManager =
-                 (TelecomManager) context.getSystemService(Context.TELECOM_SERVICE);
-         return telecomManager.isVoiceMailNumber(
-                 call.getTelecommCall().getDetails().getAccountHandle(), call.getNumber());
+        return getSpecialNumberClass(context, call) == SpecialNumberClassifier.CLASS_VOICEMAIL;
+    }
+
+    /**
+     * Classifies the number of the call with the {@link SpecialNumberClassifier}. The class is
+     * cached on the call, and only computed again when its number or account changes, or when
+     * the classifier was rebuilt since.
+     *
+     * @return One of the {@code SpecialNumberClassifier.CLASS_*} constants.
+     */
+    public static int getSpecialNumberClass(Context context, Call call) {
+        final String number = call.getNumber();
+        final PhoneAccountHandle accountHandle =
+                call.getTelecommCall().getDetails().getAccountHandle();
+        if (number == null) {
+            return SpecialNumberClassifier.CLASS_NONE;
+        }
+        final SpecialNumberClassifier classifier = SpecialNumberClassifier.getInstance(context);
+        final int generation = classifier.getGeneration();
+        if (call.isSpecialNumberClassFor(number, accountHandle, generation)) {
+            return call.getSpecialNumberClass();
+        }
+
+        int numberClass = classifier.classify(number, accountHandle);
+        if (numberClass == SpecialNumberClassifier.CLASS_NONE) {
+            // The trie only holds the exact voicemail number, while telecom also matches its
+            // other forms, e.g. with or without the country code.
+            final TelecomManager telecomManager =
+                    (TelecomManager) context.getSystemService(Context.TELECOM_SERVICE);
+            if (telecomManager.isVoiceMailNumber(accountHandle, number)) {
+                numberClass = SpecialNumberClassifier.CLASS_VOICEMAIL;
+            }
+        }
+        call.setSpecialNumberClass(number, accountHandle, generation, numberClass);
+        return numberClass;
     }
 
     /**
@@ -116,9 +146,9 @@ public class CallerInfoUtils {
         // "ABSENT NUMBER" is a possible value we could get from the network as the
         // phone number, so if this happens, change it to "Unknown" in the CallerInfo
         // and fix the presentation to be the same.
-        final String[] absentNumberValues =
-                context.getResources().getStringArray(R.array.absent_num);
-        if (Arrays.asList(absentNumberValues).contains(number)
+        final int numberClass =
+                SpecialNumberClassifier.getInstance(context).classify(number, null);
+        if (numberClass == SpecialNumberClassifier.CLASS_ABSENT_NUMBER
                 && presentation == TelecomManager.PRESENTATION_ALLOWED) {
             number = context.getString(R.string.unknown);
             ci.numberPresentation = TelecomManager.PRESENTATION_UNKNOWN;
@@ -133,10 +163,10 @@ public class CallerInfoUtils {
                 || (ci.numberPresentation != presentation
                         && presentation == TelecomManager.PRESENTATION_ALLOWED)) {
             // For all special strings, change number & numberPrentation.
-            if (isCnapSpecialCaseRestricted(number)) {
+            if (numberClass == SpecialNumberClassifier.CLASS_CNAP_RESTRICTED) {
                 number = context.getString(R.string.private_num);
                 ci.numberPresentation = TelecomManager.PRESENTATION_RESTRICTED;
-            } else if (isCnapSpecialCaseUnknown(number)) {
+            } else if (numberClass == SpecialNumberClassifier.CLASS_CNAP_UNKNOWN) {
                 number = context.getString(R.string.unknown);
                 ci.numberPresentation = TelecomManager.PRESENTATION_UNKNOWN;
             }
@@ -148,14 +178,6 @@ public class CallerInfoUtils {
         return number;
     }
 
-    private static boolean isCnapSpecialCaseRestricted(String n) {
-        return n.equals("PRIVATE") || n.equals("P") || n.equals("RES");
-    }
-
-    private static boolean isCnapSpecialCaseUnknown(String n) {
-        return n.equals("UNAVAILABLE") || n.equals("UNKNOWN") || n.equals("UNA") || n.equals("U");
-    }
-
     /* package */static String toLogSafePhoneNumber(String number) {
         // For unknown number, log empty string.
         if (number == null) {
@@ -25,6 +25,7 @@ import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.ListView;
@@ -35,14 +36,12 @@ import com.android.contacts.common.ContactPhotoManager.DefaultImageRequest;
 import com.android.incallui.ContactInfoCache.ContactCacheEntry;
 
 import java.lang.ref.WeakReference;
+import java.text.CollationKey;
+import java.text.Collator;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 
 /**
@@ -50,6 +49,17 @@ import java.util.Objects;
  */
 public class ConferenceParticipantListAdapter extends BaseAdapter {
 
+    /**
+     * The maximum number of contact lookups running at once.
+     */
+    private static final int MAX_CONCURRENT_LOOKUPS = 4;
+
+    /**
+     * The number of rows above and below the visible ones whose contact info is looked up
+     * ahead of scrolling.
+     */
+    private static final int PREFETCH_ROWS = 3;
+
     /**
      * Internal class which represents a participant.  Includes a reference to the {@link Call} and
      * the corresponding {@link ContactCacheEntry} for the participant.
@@ -57,6 +67,9 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
     private class ParticipantInfo {
         private Call mCall;
         private ContactCacheEntry mContactCacheEntry;
+        private CollationKey mSortKey;
+        private int mUpdateGeneration;
+        private boolean mCacheLookupRequested = false;
         private boolean mCacheLookupComplete = false;
 
         public ParticipantInfo(Call call, ContactCacheEntry contactCacheEntry) {
@@ -80,6 +93,30 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
             mContactCacheEntry = entry;
         }
 
+        public CollationKey getSortKey() {
+            return mSortKey;
+        }
+
+        public void setSortKey(CollationKey sortKey) {
+            mSortKey = sortKey;
+        }
+
+        public int getUpdateGeneration() {
+            return mUpdateGeneration;
+        }
+
+        public void setUpdateGeneration(int updateGeneration) {
+            mUpdateGeneration = updateGeneration;
+        }
+
+        public boolean isCacheLookupRequested() {
+            return mCacheLookupRequested;
+        }
+
+        public void setCacheLookupRequested(boolean cacheLookupRequested) {
+            mCacheLookupRequested = cacheLookupRequested;
+        }
+
         public boolean isCacheLookupComplete() {
             return mCacheLookupComplete;
         }
@@ -181,15 +218,61 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
     private final ListView mListView;
 
     /**
-     * The conference participants to show in the ListView.
+     * The conference participants to show in the ListView, sorted by {@link #getSortKey}.
      */
-    private List<ParticipantInfo> mConferenceParticipants = new ArrayList<>();
+    private final ArrayList<ParticipantInfo> mConferenceParticipants = new ArrayList<>();
 
     /**
      * Hashmap to make accessing participant info by call Id faster.
      */
     private final HashMap<String, ParticipantInfo> mParticipantsByCallId = new HashMap<>();
 
+    /**
+     * Call ids of the participants whose contact lookup was started and has not returned yet.
+     */
+    private final HashSet<String> mLookupsInFlight = new HashSet<>();
+
+    /**
+     * {@code True} while {@link #mStartLookups} is posted.
+     */
+    private boolean mLookupsPending = false;
+
+    private final ContactLookupCallback mContactLookupCallback = new ContactLookupCallback(this);
+
+    /**
+     * Starts the contact lookups of the visible rows, then of the rows around them.
+     */
+    private final Runnable mStartLookups = new Runnable() {
+        @Override
+        public void run() {
+            mLookupsPending = false;
+            startLookups();
+        }
+    };
+
+    /**
+     * Looks up the contact info of the rows scrolled into view.
+     */
+    private final AbsListView.OnScrollListener mScrollListener =
+            new AbsListView.OnScrollListener() {
+        private int mFirstVisibleItem = -1;
+        private int mVisibleItemCount = -1;
+
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+        }
+
+        @Override
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                int totalItemCount) {
+            if (firstVisibleItem != mFirstVisibleItem || visibleItemCount != mVisibleItemCount) {
+                mFirstVisibleItem = firstVisibleItem;
+                mVisibleItemCount = visibleItemCount;
+                requestLookups();
+            }
+        }
+    };
+
     /**
      * The context.
      */
@@ -205,6 +288,17 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
      */
     private final ContactPhotoManager mContactPhotoManager;
 
+    /**
+     * Collator used to sort the participants by contact name, ignoring case.
+     */
+    private final Collator mCollator;
+
+    /**
+     * Incremented on every participant update; participants not stamped with the current
+     * generation have left the conference.
+     */
+    private int mUpdateGeneration = 0;
+
     /**
      * {@code True} if the conference parent supports separating calls from the conference.
      */
@@ -225,6 +319,9 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
         mContext = context;
         mLayoutInflater = layoutInflater;
         mContactPhotoManager = contactPhotoManager;
+        mCollator = Collator.getInstance();
+        mCollator.setStrength(Collator.SECONDARY);
+        mListView.setOnScrollListener(mScrollListener);
     }
 
     /**
@@ -327,14 +424,10 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
         Call call = participantInfo.getCall();
         ContactCacheEntry contactCache = participantInfo.getContactCacheEntry();
 
-        final ContactInfoCache cache = ContactInfoCache.getInstance(mContext);
-
         // If a cache lookup has not yet been performed to retrieve the contact information and
-        // photo, do it now.
-        if (!participantInfo.isCacheLookupComplete()) {
-            cache.findInfo(participantInfo.getCall(),
-                    participantInfo.getCall().getState() == Call.State.INCOMING,
-                    new ContactLookupCallback(this));
+        // photo, schedule it along with the other rows being shown.
+        if (!participantInfo.isCacheLookupRequested()) {
+            requestLookups();
         }
 
         boolean thisRowCanSeparate = mParentCanSeparate && call.getTelecommCall().getDetails().can(
@@ -360,11 +453,17 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
      * @param entry The new contact info.
      */
     /* package */ void updateContactInfo(String callId, ContactCacheEntry entry) {
-        if (mParticipantsByCallId.containsKey(callId)) {
-            ParticipantInfo participantInfo = mParticipantsByCallId.get(callId);
-            participantInfo.setContactCacheEntry(entry);
+        ParticipantInfo participantInfo = mParticipantsByCallId.get(callId);
+        if (participantInfo != null) {
             participantInfo.setCacheLookupComplete(true);
-            refreshView(callId);
+            if (mLookupsInFlight.remove(callId)) {
+                requestLookups();
+            }
+            if (setContactCacheEntry(participantInfo, entry)) {
+                notifyDataSetChanged();
+            } else {
+                refreshView(callId);
+            }
         }
     }
 
@@ -432,74 +531,213 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
      * Updates the participant info list which is bound to the ListView.  Stores the call and
      * contact info for all entries.  The list is sorted alphabetically by participant name.
      *
+     * The list is updated in place: joining participants are inserted at their sorted position,
+     * and leaving ones are dropped in a single pass.  When no participant joined, left or moved,
+     * only the visible rows are rebound instead of invalidating the whole list.
+     *
      * @param conferenceParticipants The calls which make up the conference participants.
      */
     private void updateParticipantInfo(List<Call> conferenceParticipants) {
         final ContactInfoCache cache = ContactInfoCache.getInstance(mContext);
-        boolean newParticipantAdded = false;
-        HashSet<String> newCallIds = new HashSet<>(conferenceParticipants.size());
+        final int generation = ++mUpdateGeneration;
+        boolean listChanged = false;
 
         // Update or add conference participant info.
         for (Call call : conferenceParticipants) {
             String callId = call.getId();
-            newCallIds.add(callId);
             ContactCacheEntry contactCache = cache.getInfo(callId);
             if (contactCache == null) {
                 contactCache = ContactInfoCache.buildCacheEntryFromCall(mContext, call,
                         call.getState() == Call.State.INCOMING);
             }
 
-            if (mParticipantsByCallId.containsKey(callId)) {
-                ParticipantInfo participantInfo = mParticipantsByCallId.get(callId);
+            ParticipantInfo participantInfo = mParticipantsByCallId.get(callId);
+            if (participantInfo != null) {
                 participantInfo.setCall(call);
-                participantInfo.setContactCacheEntry(contactCache);
+                listChanged |= setContactCacheEntry(participantInfo, contactCache);
             } else {
-                newParticipantAdded = true;
-                ParticipantInfo participantInfo = new ParticipantInfo(call, contactCache);
-                mConferenceParticipants.add(participantInfo);
-                mParticipantsByCallId.put(call.getId(), participantInfo);
+                participantInfo = new ParticipantInfo(call, contactCache);
+                participantInfo.setSortKey(getSortKey(contactCache));
+                mConferenceParticipants.add(getInsertionIndex(participantInfo.getSortKey()),
+                        participantInfo);
+                mParticipantsByCallId.put(callId, participantInfo);
+                listChanged = true;
             }
+            participantInfo.setUpdateGeneration(generation);
         }
 
         // Remove any participants that no longer exist.
-        Iterator<Map.Entry<String, ParticipantInfo>> it =
-                mParticipantsByCallId.entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry<String, ParticipantInfo> entry = it.next();
-            String existingCallId = entry.getKey();
-            if (!newCallIds.contains(existingCallId)) {
-                ParticipantInfo existingInfo = entry.getValue();
-                mConferenceParticipants.remove(existingInfo);
-                it.remove();
+        final int size = mConferenceParticipants.size();
+        if (size > conferenceParticipants.size()) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                ParticipantInfo participantInfo = mConferenceParticipants.get(i);
+                if (participantInfo.getUpdateGeneration() == generation) {
+                    mConferenceParticipants.set(kept++, participantInfo);
+                } else {
+                    mParticipantsByCallId.remove(participantInfo.getCall().getId());
+                    mLookupsInFlight.remove(participantInfo.getCall().getId());
+                }
             }
+            mConferenceParticipants.subList(kept, size).clear();
+            listChanged = true;
         }
 
-        if (newParticipantAdded) {
-            // Sort the list of participants by contact name.
-            sortParticipantList();
+        if (listChanged) {
+            notifyDataSetChanged();
+        } else {
+            refreshVisibleViews();
         }
-        notifyDataSetChanged();
     }
 
     /**
-     * Sorts the participant list by contact name.
+     * Replaces the contact info of a participant, moving it to its new sorted position if its
+     * name changed.
+     *
+     * @return {@code True} if the participant moved.
      */
-    private void sortParticipantList() {
-        Collections.sort(mConferenceParticipants, new Comparator<ParticipantInfo>() {
-            public int compare(ParticipantInfo p1, ParticipantInfo p2) {
-                // Contact names might be null, so replace with empty string.
-                String p1Name = p1.getContactCacheEntry().name;
-                if (p1Name == null) {
-                    p1Name = "";
-                }
+    private boolean setContactCacheEntry(ParticipantInfo participantInfo, ContactCacheEntry entry) {
+        participantInfo.setContactCacheEntry(entry);
+        final CollationKey sortKey = getSortKey(entry);
+        if (sortKey.compareTo(participantInfo.getSortKey()) == 0) {
+            return false;
+        }
+        mConferenceParticipants.remove(getIndex(participantInfo));
+        participantInfo.setSortKey(sortKey);
+        mConferenceParticipants.add(getInsertionIndex(sortKey), participantInfo);
+        return true;
+    }
 
-                String p2Name = p2.getContactCacheEntry().name;
-                if (p2Name == null) {
-                    p2Name = "";
-                }
+    /**
+     * @return The key the participants are sorted by: their contact name, ignoring case.
+     */
+    private CollationKey getSortKey(ContactCacheEntry entry) {
+        // Contact names might be null, so replace with empty string.
+        return mCollator.getCollationKey(entry.name == null ? "" : entry.name);
+    }
+
+    /**
+     * @return The index after the last participant sorted at or before the key.
+     */
+    private int getInsertionIndex(CollationKey sortKey) {
+        int low = 0;
+        int high = mConferenceParticipants.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mConferenceParticipants.get(mid).getSortKey().compareTo(sortKey) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return The index of the participant in the sorted list.
+     */
+    private int getIndex(ParticipantInfo participantInfo) {
+        final CollationKey sortKey = participantInfo.getSortKey();
+        int low = 0;
+        int high = mConferenceParticipants.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mConferenceParticipants.get(mid).getSortKey().compareTo(sortKey) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        // Participants with the same name are in the order they were added.
+        while (mConferenceParticipants.get(low) != participantInfo) {
+            low++;
+        }
+        return low;
+    }
+
+    /**
+     * Schedules the contact lookups of the rows in and around the viewport, once the ListView is
+     * done laying them out.
+     */
+    private void requestLookups() {
+        if (!mLookupsPending) {
+            mLookupsPending = true;
+            mListView.post(mStartLookups);
+        }
+    }
+
+    /**
+     * Starts contact lookups, up to {@link #MAX_CONCURRENT_LOOKUPS} at once: first for the
+     * visible rows, then for the {@link #PREFETCH_ROWS} rows below and above them.  The lookups of
+     * rows scrolled away before their turn are deferred until they come back into view.  The
+     * contact photos are only loaded when the rows are bound.
+     */
+    private void startLookups() {
+        final int count = mConferenceParticipants.size();
+        if (count == 0) {
+            return;
+        }
+        final int first = Math.min(mListView.getFirstVisiblePosition(), count - 1);
+        int last = mListView.getLastVisiblePosition();
+        if (last < first) {
+            // Not laid out yet.
+            last = first + PREFETCH_ROWS;
+        }
+        last = Math.min(last, count - 1);
 
-                return p1Name.compareToIgnoreCase(p2Name);
+        for (int position = first; position <= last; position++) {
+            if (!startLookup(position)) {
+                return;
             }
-        });
+        }
+        for (int i = 1; i <= PREFETCH_ROWS; i++) {
+            if (last + i < count && !startLookup(last + i)) {
+                return;
+            }
+            if (first - i >= 0 && !startLookup(first - i)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Starts the contact lookup of the participant at the position, unless it was started
+     * already.
+     *
+     * @return {@code False} if no more lookups can be started for now.
+     */
+    private boolean startLookup(int position) {
+        if (mLookupsInFlight.size() >= MAX_CONCURRENT_LOOKUPS) {
+            return false;
+        }
+        final ParticipantInfo participantInfo = mConferenceParticipants.get(position);
+        if (participantInfo.isCacheLookupRequested()) {
+            return true;
+        }
+        final Call call = participantInfo.getCall();
+        participantInfo.setCacheLookupRequested(true);
+        if (!participantInfo.isCacheLookupComplete()) {
+            mLookupsInFlight.add(call.getId());
+        }
+        // May call back right away with a cached entry, which moves the participant if its name
+        // changed; the lookups are then requested again.
+        ContactInfoCache.getInstance(mContext).findInfo(call,
+                call.getState() == Call.State.INCOMING, mContactLookupCallback);
+        return true;
+    }
+
+    /**
+     * Rebinds the rows currently shown by the ListView.
+     */
+    private void refreshVisibleViews() {
+        final int first = mListView.getFirstVisiblePosition();
+        final int childCount = mListView.getChildCount();
+        for (int i = 0; i < childCount; i++) {
+            final int position = first + i;
+            if (position >= mConferenceParticipants.size()) {
+                break;
+            }
+            getView(position, mListView.getChildAt(i), mListView);
+        }
     }
 }
@@ -17,6 +17,7 @@
 package com.android.incallui;
 
 import android.content.Context;
+import android.database.ContentObserver;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
@@ -58,11 +59,13 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
-import java.lang.ref.WeakReference;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -78,14 +81,45 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
     private static final String TAG = ContactInfoCache.class.getSimpleName();
     private static final int TOKEN_UPDATE_PHOTO_FOR_CALL_STATE = 0;
 
+    /** Lookup sources, see {@link LookupSession}. */
+    private static final int SOURCE_PHONE_NUMBER_SERVICE = 1 << 0;
+    private static final int SOURCE_LOOKUP_PROVIDER = 1 << 1;
+    private static final int SOURCE_PLUGIN = 1 << 2;
+    private static final int SOURCE_COUNT = 3;
+    /** Times after which the sources which did not answer are ignored. */
+    private static final long PHONE_NUMBER_SERVICE_DEADLINE_MS = 3000;
+    private static final long LOOKUP_PROVIDER_DEADLINE_MS = 3000;
+    private static final long PLUGIN_DEADLINE_MS = 2000;
+
+    private static final int MAX_CONCURRENT_LOOKUPS = 2;
+    private static final long IDLE_THREAD_TIMEOUT_MS = 10000;
+
     private final Context mContext;
     private final PhoneNumberService mPhoneNumberService;
     private final CachedNumberLookupService mCachedNumberLookupService;
     private final LookupProvider mLookupProvider;
     private final ConcurrentHashMap<String, ContactCacheEntry> mInfoMap = new ConcurrentHashMap();
     private final HashMap<String, Set<ContactInfoCacheCallback>> mCallBacks = Maps.newHashMap();
-    private InCallPluginInfoAsyncTask mPluginInfoAsyncTask;
+    /** Runs the lookups which block, i.e. the plugin lookups. */
+    private final ThreadPoolExecutor mLookupExecutor;
+    /** Lookups in flight, by call id. */
+    private final HashMap<String, LookupSession> mSessions = Maps.newHashMap();
     private Handler mMainHandler = new Handler(Looper.getMainLooper());
+    /** Completed lookups by number, kept across calls. */
+    private final ContactInfoNumberCache mNumberCache = new ContactInfoNumberCache();
+    /** Number each in-flight or cached call id was looked up with. */
+    private final HashMap<String, String> mNumberByCallId = Maps.newHashMap();
+
+    private final ContentObserver mContactsObserver = new ContentObserver(mMainHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            Log.d(TAG, "Contacts changed, invalidating number and photo caches");
+            mNumberCache.invalidateAll();
+            CallerInfoSnapshot.getInstance(mContext).invalidate();
+            ContactsAsyncHelper.clearPhotoCache();
+            CallerInfoAsyncQuery.clearNoContactCache();
+        }
+    };
 
     private static ContactInfoCache sCache = null;
 
@@ -105,10 +139,22 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
         mCachedNumberLookupService =
                 com.android.dialerbind.ObjectFactory.newCachedNumberLookupService();
         mLookupProvider = LookupProviderImpl.INSTANCE.get(context);
+        mLookupExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_LOOKUPS, MAX_CONCURRENT_LOOKUPS,
+                IDLE_THREAD_TIMEOUT_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        mLookupExecutor.allowCoreThreadTimeOut(true);
+        context.getContentResolver().registerContentObserver(Contacts.CONTENT_URI, true,
+                mContactsObserver);
     }
 
     public void tearDown() {
+        mContext.getContentResolver().unregisterContentObserver(mContactsObserver);
         LookupProviderImpl.INSTANCE.release();
+        mLookupExecutor.shutdown();
+        synchronized (ContactInfoCache.class) {
+            if (sCache == this) {
+                sCache = null;
+            }
+        }
     }
 
     public ContactCacheEntry getInfo(String callId) {
@@ -123,6 +169,21 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
         final CallerInfo info = CallerInfoUtils.buildCallerInfo(context, call);
         ContactInfoCache.populateCacheEntry(context, info, entry, call.getNumberPresentation(),
                 isIncoming);
+
+        // Until the lookup completes, show what we know about this caller from earlier calls.
+        if (!info.contactExists && !info.isEmergencyNumber() && !info.isVoiceMailNumber()
+                && call.getNumberPresentation() == TelecomManager.PRESENTATION_ALLOWED) {
+            final ContactCacheEntry known = sCache == null
+                    ? null : sCache.mNumberCache.get(call.getNumber());
+            if (known != null) {
+                entry.name = known.name;
+                entry.label = known.label;
+                entry.lookupUri = known.lookupUri;
+                entry.photo = known.photo;
+            } else {
+                CallerInfoSnapshot.getInstance(context).fill(call.getNumber(), entry);
+            }
+        }
         return entry;
     }
 
@@ -220,11 +281,33 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
             callBacks.add(callback);
             return;
         }
+        // A completed lookup for the same number during a previous call can be reused as is.
+        if (call.getNumberPresentation() == TelecomManager.PRESENTATION_ALLOWED) {
+            final ContactCacheEntry numberEntry = mNumberCache.get(call.getNumber());
+            // Cached before the lookup provider was enabled; let it check the number.
+            final boolean needsLookupProvider = numberEntry != null
+                    && mLookupProvider.isEnabled()
+                    && !UriUtils.isLocalContactUri(numberEntry.lookupUri);
+            if (numberEntry != null && !needsLookupProvider) {
+                Log.d(TAG, "Contact lookup. Number cache hit; lookup complete");
+                mInfoMap.put(callId, numberEntry);
+                callback.onContactInfoComplete(callId, numberEntry);
+                if (numberEntry.photo != null) {
+                    callback.onImageLoadComplete(callId, numberEntry);
+                }
+                return;
+            }
+            mNumberByCallId.put(callId, call.getNumber());
+        }
+
         Log.d(TAG, "Contact lookup. In memory cache miss; searching provider.");
         // New lookup
         callBacks = Sets.newHashSet();
         callBacks.add(callback);
         mCallBacks.put(callId, callBacks);
+        final LookupSession session = new LookupSession(callId);
+        mSessions.put(callId, session);
+        startNumberSources(session, call, isIncoming);
 
         /**
          * Performs a query for caller information.
@@ -241,6 +324,12 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
     private void findInfoQueryComplete(Call call, CallerInfo callerInfo, boolean isIncoming,
             boolean didLocalLookup) {
         final String callId = call.getId();
+        final LookupSession session = mSessions.get(callId);
+        if (session == null) {
+            Log.d(TAG, "Contact lookup. Ignoring result for cancelled lookup");
+            return;
+        }
+
         int presentationMode = call.getNumberPresentation();
         if (callerInfo.contactExists || callerInfo.isEmergencyNumber() ||
                 callerInfo.isVoiceMailNumber()) {
@@ -256,143 +345,397 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
             mInfoMap.put(callId, cacheEntry);
         }
 
+        if (!didLocalLookup) {
+            sendInfoNotifications(callId, cacheEntry);
+            return;
+        }
+
+        // A local contact takes precedence over the remote sources, which were started
+        // concurrently with the contacts query. We don't check if the cache entry already has a
+        // name because we allow overriding cnap data with data from other services.
+        if (callerInfo.contactExists || callerInfo.isEmergencyNumber()) {
+            dropSources(session, SOURCE_PHONE_NUMBER_SERVICE | SOURCE_LOOKUP_PROVIDER);
+        }
+        // The plugins are looked up by the lookup uri of the contact, so they start now.
+        if (!callerInfo.isEmergencyNumber()) {
+            startPluginLookup(session, cacheEntry);
+        }
+        if ((session.pendingSources & SOURCE_LOOKUP_PROVIDER) != 0) {
+            cacheEntry.isLookupInProgress = true;
+            cacheEntry.lookupProviderName = mLookupProvider.getDisplayName();
+        }
+
+        // Local phase: a single update carrying the local result and the pending remote state.
+        session.localPhaseDone = true;
         sendInfoNotifications(callId, cacheEntry);
 
-        if (didLocalLookup) {
-            boolean clearCallbacks = true;
-
-            // Before issuing a request for more data from other services, we only check that the
-            // contact wasn't found in the local DB.  We don't check the if the cache entry already
-            // has a name because we allow overriding cnap data with data from other services.
-            if (!callerInfo.contactExists &&
-                    !callerInfo.isEmergencyNumber() &&
-                    mPhoneNumberService != null) {
-                Log.d(TAG, "Contact lookup. Local contacts miss, checking remote");
-                final PhoneNumberServiceListener listener = new PhoneNumberServiceListener(callId);
-                mPhoneNumberService.getPhoneNumberInfo(cacheEntry.number, listener, listener,
-                        isIncoming);
-                clearCallbacks = false;
-            }
+        if (cacheEntry.displayPhotoUri != null) {
+            Log.d(TAG, "Contact lookup. Local contact found, starting image load");
+            // Load the image with a callback to update the image state.
+            // When the load is finished, onImageLoadComplete() will be called.
+            session.pendingPhotos++;
+            ContactsAsyncHelper.startObtainPhotoAsync(TOKEN_UPDATE_PHOTO_FOR_CALL_STATE,
+                    mContext, cacheEntry.displayPhotoUri, ContactInfoCache.this, callId,
+                    getPhotoPriority(call, isIncoming));
+        }
 
-            if (!callerInfo.contactExists &&
-                    !callerInfo.isEmergencyNumber() &&
-                    mLookupProvider.isEnabled()) {
-                cacheEntry.isLookupInProgress = true;
-                cacheEntry.lookupProviderName = mLookupProvider.getDisplayName();
-                String countryIso = ((TelephonyManager) mContext.getSystemService(
-                        Context.TELEPHONY_SERVICE)).getSimCountryIso().toUpperCase();
-                String numberE164 =
-                        PhoneNumberUtils.formatNumberToE164(cacheEntry.number, countryIso);
-                RequestOrigin origin = isIncoming ? RequestOrigin.INCOMING_CALL :
-                        RequestOrigin.OUTGOING_CALL;
-                LookupRequest request = new LookupRequest(numberE164,
-                        new LookupResultCallback(callId),
-                        origin);
-                mLookupProvider.fetchInfo(request);
-                sendInfoNotifications(callId, cacheEntry);
-                clearCallbacks = false;
+        // The remote sources may all have answered before the contacts query.
+        maybeSendRemotePhase(session);
+        if (session.pendingSources == 0 && session.pendingPhotos == 0) {
+            if (callerInfo.contactExists) {
+                Log.d(TAG, "Contact lookup done. Local contact found, no image.");
+            } else {
+                Log.d(TAG, "Contact lookup done. Local contact not found and"
+                        + " no remote lookup service available.");
             }
+        }
+        maybeFinishLookup(callId);
+    }
 
-            if (cacheEntry.displayPhotoUri != null) {
-                Log.d(TAG, "Contact lookup. Local contact found, starting image load");
-                // Load the image with a callback to update the image state.
-                // When the load is finished, onImageLoadComplete() will be called.
-                ContactsAsyncHelper.startObtainPhotoAsync(TOKEN_UPDATE_PHOTO_FOR_CALL_STATE,
-                        mContext, cacheEntry.displayPhotoUri, ContactInfoCache.this, callId);
-                clearCallbacks = false;
+    /**
+     * Ranks the photo load of the call: the ringing or foreground call first, conference
+     * participants last.
+     */
+    private static int getPhotoPriority(Call call, boolean isIncoming) {
+        final android.telecom.Call telecomCall = call.getTelecommCall();
+        if (telecomCall != null && telecomCall.getParent() != null) {
+            return ContactsAsyncHelper.PRIORITY_PARTICIPANT;
+        }
+        final int state = call.getState();
+        if (isIncoming || state == Call.State.ACTIVE || Call.State.isDialing(state)) {
+            return ContactsAsyncHelper.PRIORITY_PRIMARY;
+        }
+        return ContactsAsyncHelper.PRIORITY_SECONDARY;
+    }
+
+    /**
+     * Starts the sources which only need the number of the call, concurrently with the
+     * contacts query.
+     */
+    private void startNumberSources(LookupSession session, Call call, boolean isIncoming) {
+        final String number = call.getNumber();
+        if (TextUtils.isEmpty(number) || call.isEmergencyCall()
+                || call.getNumberPresentation() != TelecomManager.PRESENTATION_ALLOWED) {
+            return;
+        }
+        if (mPhoneNumberService != null) {
+            startSource(session, SOURCE_PHONE_NUMBER_SERVICE, PHONE_NUMBER_SERVICE_DEADLINE_MS);
+            final PhoneNumberServiceListener listener = new PhoneNumberServiceListener(session);
+            mPhoneNumberService.getPhoneNumberInfo(number, listener, listener, isIncoming);
+        }
+        if (mLookupProvider.isEnabled()) {
+            startSource(session, SOURCE_LOOKUP_PROVIDER, LOOKUP_PROVIDER_DEADLINE_MS);
+            String countryIso = ((TelephonyManager) mContext.getSystemService(
+                    Context.TELEPHONY_SERVICE)).getSimCountryIso().toUpperCase();
+            String numberE164 = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+            RequestOrigin origin = isIncoming ? RequestOrigin.INCOMING_CALL :
+                    RequestOrigin.OUTGOING_CALL;
+            LookupRequest request = new LookupRequest(numberE164,
+                    new LookupResultCallback(session),
+                    origin);
+            mLookupProvider.fetchInfo(request);
+        }
+    }
+
+    /**
+     * Starts the plugin lookup for the entry on the lookup executor.
+     */
+    private void startPluginLookup(LookupSession session, ContactCacheEntry entry) {
+        if (entry.lookupUri == null && TextUtils.isEmpty(entry.number)) {
+            return;
+        }
+        startSource(session, SOURCE_PLUGIN, PLUGIN_DEADLINE_MS);
+        final InCallContactInfo contactInfo = new InCallContactInfo(entry.name, entry.number,
+                entry.lookupUri);
+        // The task only keeps a weak reference to the session; mSessions keeps it alive.
+        session.pluginTask = new InCallPluginInfoAsyncTask(mContext, contactInfo, session);
+        session.pluginTask.executeOnExecutor(mLookupExecutor);
+    }
+
+    private void startSource(final LookupSession session, final int source, long deadlineMs) {
+        session.pendingSources |= source;
+        session.requestedSources |= source;
+        final Runnable deadline = new Runnable() {
+            @Override
+            public void run() {
+                Log.w(TAG, "Contact lookup. Deadline reached for source " + source);
+                onSourceDone(session, source);
             }
+        };
+        session.deadlines[getSourceIndex(source)] = deadline;
+        mMainHandler.postDelayed(deadline, deadlineMs);
+    }
 
-            if (clearCallbacks) {
-                if (callerInfo.contactExists) {
-                    Log.d(TAG, "Contact lookup done. Local contact found, no image.");
-                } else {
-                    Log.d(TAG, "Contact lookup done. Local contact not found and"
-                            + " no remote lookup service available.");
-                }
-                clearCallbacks(callId);
+    /**
+     * Forgets the sources, e.g. because a local contact was found.
+     */
+    private void dropSources(LookupSession session, int sources) {
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            if ((sources & (1 << i)) != 0 && session.deadlines[i] != null) {
+                mMainHandler.removeCallbacks(session.deadlines[i]);
+                session.deadlines[i] = null;
             }
         }
+        session.pendingSources &= ~sources;
+        session.requestedSources &= ~sources;
+        if ((sources & SOURCE_PHONE_NUMBER_SERVICE) != 0) {
+            session.numberServiceEntry = null;
+            session.numberServiceImage = null;
+        }
+        if ((sources & SOURCE_LOOKUP_PROVIDER) != 0) {
+            session.lookupResponse = null;
+        }
     }
 
-    public void refreshPluginInfo(final Call call, ContactInfoCacheCallback callback) {
-        if (call != null) {
-            final String callId = call.getId();
-            ContactCacheEntry entry = mInfoMap.get(callId);
-            if (entry == null) {
-                findInfo(call, call.getState() == Call.State.INCOMING, callback);
+    private static int getSourceIndex(int source) {
+        return Integer.numberOfTrailingZeros(source);
+    }
+
+    /**
+     * Called on the main thread once a source answered, or when its deadline passed.
+     */
+    private void onSourceDone(LookupSession session, int source) {
+        if (session.cancelled || (session.pendingSources & source) == 0) {
+            return;
+        }
+        session.pendingSources &= ~source;
+        final int index = getSourceIndex(source);
+        if (session.deadlines[index] != null) {
+            mMainHandler.removeCallbacks(session.deadlines[index]);
+            session.deadlines[index] = null;
+        }
+        maybeSendRemotePhase(session);
+        maybeFinishLookup(session.callId);
+    }
+
+    /**
+     * Sends the remote phase once the local phase was sent and every source answered or hit
+     * its deadline.
+     */
+    private void maybeSendRemotePhase(LookupSession session) {
+        if (!session.localPhaseDone || session.remotePhaseDone || session.pendingSources != 0
+                || session.requestedSources == 0) {
+            return;
+        }
+        session.remotePhaseDone = true;
+        sendRemotePhase(session);
+    }
+
+    /**
+     * Merges the remote results by priority - the phone number service first, then the lookup
+     * provider - with the plugins, sends a single update for the remote phase and starts the
+     * photo phase.
+     */
+    private void sendRemotePhase(final LookupSession session) {
+        final String callId = session.callId;
+        final ContactCacheEntry oldEntry = mInfoMap.get(callId);
+        if (oldEntry == null) {
+            return;
+        }
+
+        final LookupResponse response = session.lookupResponse;
+        final boolean lookupSucceeded = response != null
+                && response.mStatusCode == StatusCode.SUCCESS;
+        final ContactCacheEntry entry;
+        String photoUrl = null;
+        if (session.numberServiceEntry != null) {
+            entry = new ContactCacheEntry(session.numberServiceEntry);
+            // Location is only obtained from local lookup so persist the value for remote
+            // lookups. Once we have a name this field is no longer used; it is persisted here
+            // in case the UI is ever changed to use it.
+            entry.location = oldEntry.location;
+            if (session.numberServiceImage != null) {
+                entry.photo = new BitmapDrawable(mContext.getResources(),
+                        session.numberServiceImage);
+            } else if (session.numberServiceHasImage) {
+                // The phone number service calls back onImageFetchComplete() with the image.
+                session.pendingPhotos++;
+            }
+        } else if (lookupSucceeded) {
+            entry = new ContactCacheEntry();
+            entry.name = response.mName;
+            entry.number = response.mNumber;
+            entry.location = response.mAddress;
+            if (!TextUtils.isEmpty(response.mPhotoUrl)) {
+                entry.displayPhotoUri = Uri.parse(response.mPhotoUrl);
+                photoUrl = response.mPhotoUrl;
+            }
+        } else {
+            entry = new ContactCacheEntry(oldEntry);
+        }
+
+        entry.inCallPluginInfoList = (session.requestedSources & SOURCE_PLUGIN) != 0
+                && session.pluginInfoList != null
+                ? session.pluginInfoList : oldEntry.inCallPluginInfoList;
+
+        if ((session.requestedSources & SOURCE_LOOKUP_PROVIDER) != 0) {
+            entry.isLookupInProgress = false;
+            if (lookupSucceeded) {
+                entry.lookupStatus = StatusCode.SUCCESS;
+                entry.lookupProviderBadge = response.mAttributionLogo;
+                entry.lookupProviderName = response.mProviderName;
+                entry.spamCount = response.mSpamCount;
+                entry.isSpam = response.mIsSpam;
             } else {
-                lookupPluginInfo(callId, entry, callback);
+                entry.lookupStatus = StatusCode.FAIL;
+                entry.lookupProviderName = mLookupProvider.getDisplayName();
             }
         }
+
+        mInfoMap.put(callId, entry);
+        sendInfoNotifications(callId, entry);
+        if (session.numberServiceEntry != null && session.numberServiceImage != null) {
+            sendImageNotifications(callId, entry);
+        }
+
+        // Don't load the photo of spam.
+        if (photoUrl != null && !entry.isSpam) {
+            session.pendingPhotos++;
+            ImageUtils.getBitmapFromUrl(mContext, photoUrl,
+                    new ImageUtils.ImageLoadCallback<Bitmap>() {
+                        @Override
+                        public void onCompleted(Exception e, Bitmap result) {
+                            if (session.cancelled) {
+                                return;
+                            }
+                            if (result != null) {
+                                onImageLoadComplete(TOKEN_UPDATE_PHOTO_FOR_CALL_STATE,
+                                        null, result, callId);
+                            } else {
+                                session.pendingPhotos--;
+                                maybeFinishLookup(callId);
+                            }
+                        }
+                    });
+        }
     }
 
-    private boolean lookupPluginInfo(final String callId, ContactCacheEntry cacheEntry,
-            ContactInfoCacheCallback cacheCallback) {
-        if (!cacheEntry.isEmergencyNumber &&
-                (cacheEntry.lookupUri != null || !TextUtils.isEmpty(cacheEntry.number))) {
-            if (mPluginInfoAsyncTask != null) {
-                mPluginInfoAsyncTask.cancel(true);
-                mPluginInfoAsyncTask = null;
-            }
+    /**
+     * Clears the callbacks of the call once the local phase was sent and neither a source nor
+     * a photo load is pending anymore.
+     */
+    private void maybeFinishLookup(String callId) {
+        final LookupSession session = mSessions.get(callId);
+        if (session != null && (!session.localPhaseDone || session.pendingSources != 0
+                || session.pendingPhotos != 0)) {
+            return;
+        }
+        clearCallbacks(callId);
+    }
 
-            final InCallPluginInfoAsyncTask.IInCallPostExecute callback =
-                    new InCallPluginInfoCallback(callId, cacheCallback);
-            final InCallContactInfo contactInfo = new InCallContactInfo(cacheEntry.name,
-                    cacheEntry.number, cacheEntry.lookupUri);
-            mPluginInfoAsyncTask =
-                    new InCallPluginInfoAsyncTask(mContext, contactInfo, callback);
-            mPluginInfoAsyncTask.execute();
-            return true;
+    /**
+     * Stops any lookup still running for the call, e.g. because it disconnected. Results which
+     * arrive afterwards are dropped.
+     */
+    public void cancelLookup(String callId) {
+        final LookupSession session = mSessions.remove(callId);
+        if (session != null) {
+            Log.d(TAG, "Contact lookup cancelled. Pending sources: " + session.pendingSources);
+            cancelSession(session);
+            mCallBacks.remove(callId);
+            mNumberByCallId.remove(callId);
+            ContactsAsyncHelper.cancelObtainPhoto(this, callId);
         }
-        return false;
     }
 
-    class InCallPluginInfoCallback implements InCallPluginInfoAsyncTask.IInCallPostExecute {
-        private String mCallId;
-        private WeakReference<ContactInfoCacheCallback> mCallback;
+    private void cancelSession(LookupSession session) {
+        session.cancelled = true;
+        dropSources(session, session.pendingSources);
+        if (session.pluginTask != null) {
+            session.pluginTask.cancel(true);
+            session.pluginTask = null;
+        }
+    }
 
-        public InCallPluginInfoCallback(String callId, ContactInfoCacheCallback callback) {
-            mCallId = callId;
-            if (callback != null) {
-                mCallback = new WeakReference<ContactInfoCacheCallback>(callback);
-            }
+    /**
+     * Looks up the plugins of the call again, e.g. because the plugins changed. The lookup in
+     * flight for the call, if any, already includes the plugins.
+     */
+    public void refreshPluginInfo(final Call call, ContactInfoCacheCallback callback) {
+        if (call == null) {
+            return;
+        }
+        final String callId = call.getId();
+        final ContactCacheEntry entry = mInfoMap.get(callId);
+        if (entry == null) {
+            findInfo(call, call.getState() == Call.State.INCOMING, callback);
+            return;
+        }
+        final Set<ContactInfoCacheCallback> callBacks = mCallBacks.get(callId);
+        if (callBacks != null) {
+            callBacks.add(callback);
+            return;
+        }
+
+        final LookupSession session = new LookupSession(callId);
+        session.localPhaseDone = true;
+        mSessions.put(callId, session);
+        mCallBacks.put(callId, Sets.newHashSet(callback));
+        startPluginLookup(session, entry);
+        maybeFinishLookup(callId);
+    }
+
+    /**
+     * State of the lookup for a single call. The local contacts query and the sources which only
+     * need the number start together; the plugin lookup starts once the contact is known. Each
+     * source has its own deadline. Listeners get one update per phase: the local result, then
+     * the merged results of the sources, then the photo.
+     */
+    private final class LookupSession implements InCallPluginInfoAsyncTask.IInCallPostExecute {
+        final String callId;
+        /** Sources which have not answered yet. */
+        int pendingSources;
+        /** Sources which were queried. */
+        int requestedSources;
+        final Runnable[] deadlines = new Runnable[SOURCE_COUNT];
+        boolean localPhaseDone;
+        boolean remotePhaseDone;
+        /** Photo loads which have not completed yet. */
+        int pendingPhotos;
+        boolean cancelled;
+
+        ContactCacheEntry numberServiceEntry;
+        boolean numberServiceHasImage;
+        /** Image of the phone number service which arrived before the remote phase. */
+        Bitmap numberServiceImage;
+        LookupResponse lookupResponse;
+        InCallPluginInfoAsyncTask pluginTask;
+        List<InCallPluginInfo> pluginInfoList;
+
+        LookupSession(String callId) {
+            this.callId = callId;
         }
 
         @Override
         public void onPostExecuteTask(List<InCallPluginInfo> inCallPluginInfoList) {
-            synchronized (mInfoMap) {
-                final ContactCacheEntry oldEntry = mInfoMap.get(mCallId);
-                ContactCacheEntry entry = new ContactCacheEntry(oldEntry);
-                entry.inCallPluginInfoList = inCallPluginInfoList;
-
-                // Add the contact info to the cache.
-                mInfoMap.put(mCallId, entry);
-                if (mCallback != null) {
-                    ContactInfoCacheCallback callback = mCallback.get();
-                    if (callback != null) {
-                        callback.onContactInfoComplete(mCallId, entry);
-                    }
-                }
+            if (cancelled) {
+                return;
             }
+            pluginTask = null;
+            pluginInfoList = inCallPluginInfoList;
+            onSourceDone(this, SOURCE_PLUGIN);
         }
     }
 
     class PhoneNumberServiceListener implements PhoneNumberService.NumberLookupListener,
                                      PhoneNumberService.ImageLookupListener {
-        private final String mCallId;
+        private final LookupSession mSession;
 
-        PhoneNumberServiceListener(String callId) {
-            mCallId = callId;
+        PhoneNumberServiceListener(LookupSession session) {
+            mSession = session;
         }
 
         @Override
         public void onPhoneNumberInfoComplete(
                 final PhoneNumberService.PhoneNumberInfo info) {
-            // If we got a miss, this is the end of the lookup pipeline,
-            // so clear the callbacks and return.
+            if (mSession.cancelled
+                    || (mSession.pendingSources & SOURCE_PHONE_NUMBER_SERVICE) == 0) {
+                // Cancelled, dropped for a local contact, or answered after the deadline.
+                return;
+            }
             if (info == null) {
-                Log.d(TAG, "Contact lookup done. Remote contact not found.");
-                clearCallbacks(mCallId);
+                Log.d(TAG, "Contact lookup. Remote contact not found.");
+                onSourceDone(mSession, SOURCE_PHONE_NUMBER_SERVICE);
                 return;
             }
 
@@ -408,112 +751,54 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
                         mContext.getResources(), type, label);
                 entry.label = typeStr == null ? null : typeStr.toString();
             }
-            synchronized (mInfoMap) {
-                final ContactCacheEntry oldEntry = mInfoMap.get(mCallId);
-                if (oldEntry != null) {
-                    // Location is only obtained from local lookup so persist
-                    // the value for remote lookups. Once we have a name this
-                    // field is no longer used; it is persisted here in case
-                    // the UI is ever changed to use it.
-                    entry.location = oldEntry.location;
-                    entry.inCallPluginInfoList = oldEntry.inCallPluginInfoList;
-                }
 
-                // If no image and it's a business, switch to using the default business avatar.
-                if (info.getImageUrl() == null && info.isBusiness()) {
-                    Log.d(TAG, "Business has no image. Using default.");
-                    entry.photo = mContext.getResources().getDrawable(R.drawable.img_business);
-                }
-
-                // Add the contact info to the cache.
-                mInfoMap.put(mCallId, entry);
+            // If no image and it's a business, switch to using the default business avatar.
+            if (info.getImageUrl() == null && info.isBusiness()) {
+                Log.d(TAG, "Business has no image. Using default.");
+                entry.photo = mContext.getResources().getDrawable(R.drawable.img_business);
             }
-            sendInfoNotifications(mCallId, entry);
 
-            // If there is no image then we should not expect another callback.
-            if (info.getImageUrl() == null) {
-                // We're done, so clear callbacks
-                clearCallbacks(mCallId);
-            }
+            mSession.numberServiceEntry = entry;
+            mSession.numberServiceHasImage = info.getImageUrl() != null;
+            onSourceDone(mSession, SOURCE_PHONE_NUMBER_SERVICE);
         }
 
         @Override
         public void onImageFetchComplete(Bitmap bitmap) {
-            onImageLoadComplete(TOKEN_UPDATE_PHOTO_FOR_CALL_STATE, null, bitmap, mCallId);
+            if (mSession.cancelled || mSession.numberServiceEntry == null) {
+                return;
+            }
+            if (!mSession.remotePhaseDone) {
+                // Sent with the remote phase.
+                mSession.numberServiceImage = bitmap;
+                mSession.numberServiceHasImage = bitmap != null;
+                return;
+            }
+            onImageLoadComplete(TOKEN_UPDATE_PHOTO_FOR_CALL_STATE, null, bitmap, mSession.callId);
         }
     }
 
     class LookupResultCallback implements LookupRequest.Callback {
+        private final LookupSession mSession;
 
-        private String mCallId;
-        private ImageUtils.BitmapLoadRequest mBitmapLoadRequest;
-
-        public LookupResultCallback(String callId) {
-            mCallId = callId;
+        public LookupResultCallback(LookupSession session) {
+            mSession = session;
         }
 
         @Override
         public void onNewInfo(LookupRequest lookupRequest, final LookupResponse response) {
-            final ContactCacheEntry oldEntry = mInfoMap.get(mCallId);
-            if (oldEntry == null || response == null) {
-                // not interested in updates for this call anymore
-                return;
-            }
-            oldEntry.isLookupInProgress = false;
-            oldEntry.lookupStatus = response.mStatusCode;
-
-            if (response == null || response.mStatusCode != StatusCode.SUCCESS) {
-                oldEntry.lookupProviderName = mLookupProvider.getDisplayName();
-                oldEntry.lookupStatus = StatusCode.FAIL;
-                mMainHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        sendInfoNotifications(mCallId, oldEntry);
-                        clearCallbacks(mCallId);
-                    }
-                });
-
-            } else {
-                final ContactCacheEntry newEntry = new ContactCacheEntry();
-                newEntry.lookupProviderBadge = response.mAttributionLogo;
-                newEntry.lookupProviderName = response.mProviderName;
-
-                if (response.mStatusCode == StatusCode.SUCCESS) {
-                    newEntry.lookupStatus = StatusCode.SUCCESS;
-                    newEntry.name = response.mName;
-                    newEntry.number = response.mNumber;
-                    newEntry.location = response.mAddress;
-                    newEntry.spamCount = response.mSpamCount;
-                    newEntry.isSpam = response.mIsSpam;
-                    if (!TextUtils.isEmpty(response.mPhotoUrl)) {
-                        newEntry.displayPhotoUri = Uri.parse(response.mPhotoUrl);
+            // May be called from a binder thread; results are merged on the main thread.
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mSession.cancelled
+                            || (mSession.pendingSources & SOURCE_LOOKUP_PROVIDER) == 0) {
+                        return;
                     }
+                    mSession.lookupResponse = response;
+                    onSourceDone(mSession, SOURCE_LOOKUP_PROVIDER);
                 }
-
-                mMainHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        mInfoMap.put(mCallId, newEntry);
-                        sendInfoNotifications(mCallId, newEntry);
-
-                        if (TextUtils.isEmpty(response.mPhotoUrl) || newEntry.isSpam) {
-                            // don't expect another callback if there is no image or if spam
-                            clearCallbacks(mCallId);
-                        } else {
-                            mBitmapLoadRequest = ImageUtils.getBitmapFromUrl(mContext, response.mPhotoUrl,
-                                    new ImageUtils.ImageLoadCallback<Bitmap>() {
-                                        @Override
-                                        public void onCompleted(Exception e, Bitmap result) {
-                                            if (result != null) {
-                                                onImageLoadComplete(TOKEN_UPDATE_PHOTO_FOR_CALL_STATE,
-                                                        null, result, mCallId);
-                                            }
-                                        }
-                                    });
-                        }
-                    }
-                });
-            }
+            });
         }
     }
 
@@ -550,15 +835,29 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
         }
 
         sendImageNotifications(callId, entry);
-        clearCallbacks(callId);
+        final LookupSession session = mSessions.get(callId);
+        if (session != null && session.pendingPhotos > 0) {
+            session.pendingPhotos--;
+        }
+        maybeFinishLookup(callId);
     }
 
     /**
      * Blows away the stored cache values.
      */
     public void clearCache() {
+        Log.d(TAG, "clearCache: " + mNumberCache);
+        for (LookupSession session : mSessions.values()) {
+            cancelSession(session);
+        }
+        mSessions.clear();
         mInfoMap.clear();
         mCallBacks.clear();
+        mNumberByCallId.clear();
+    }
+
+    public ContactInfoNumberCache getNumberCache() {
+        return mNumberCache;
     }
 
     private ContactCacheEntry buildEntry(Context context, String callId,
@@ -735,6 +1034,35 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
 
     private void clearCallbacks(String callId) {
         mCallBacks.remove(callId);
+        final LookupSession session = mSessions.remove(callId);
+        if (session != null) {
+            cancelSession(session);
+        }
+        maybeCacheByNumber(callId);
+    }
+
+    /**
+     * Promotes the entry of a completed lookup to the number cache and the on-disk snapshot.
+     * Only named entries are kept, since the display of unknown numbers depends on the call
+     * direction. Entries the lookup provider answers for are kept out of the number cache, so
+     * that their spam status is refreshed on every call; the snapshot is only a hint, so it
+     * keeps them.
+     */
+    private void maybeCacheByNumber(String callId) {
+        final String number = mNumberByCallId.remove(callId);
+        final ContactCacheEntry entry = mInfoMap.get(callId);
+        if (number == null || entry == null || entry.isEmergencyNumber
+                || entry.isLookupInProgress) {
+            return;
+        }
+        if (TextUtils.isEmpty(entry.name)) {
+            CallerInfoSnapshot.getInstance(mContext).remove(number);
+            return;
+        }
+        if (!mLookupProvider.isEnabled() || UriUtils.isLocalContactUri(entry.lookupUri)) {
+            mNumberCache.put(number, entry);
+        }
+        CallerInfoSnapshot.getInstance(mContext).put(number, entry);
     }
 
     /**
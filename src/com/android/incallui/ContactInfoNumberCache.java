@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+
+import com.android.incallui.ContactInfoCache.ContactCacheEntry;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Second tier of {@link ContactInfoCache}, keyed by normalized phone number instead of call id,
+ * so that completed lookups survive the end of a call and a repeat caller is resolved without
+ * querying the contacts provider again.
+ *
+ * Entries are evicted in least-recently-used order when either the entry count or the memory
+ * taken by their photos exceeds its budget, and expire after a fixed time to live. Only accessed
+ * from the main thread.
+ */
+public class ContactInfoNumberCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 32;
+    public static final long DEFAULT_TTL_MS = 10 * 60 * 1000;
+    public static final int DEFAULT_MAX_PHOTO_BYTES = 4 * 1024 * 1024;
+
+    private static final class Node {
+        final ContactCacheEntry entry;
+        final long expiresAt;
+        final int photoBytes;
+
+        Node(ContactCacheEntry entry, long expiresAt, int photoBytes) {
+            this.entry = entry;
+            this.expiresAt = expiresAt;
+            this.photoBytes = photoBytes;
+        }
+    }
+
+    private final LinkedHashMap<String, Node> mEntries =
+            new LinkedHashMap<String, Node>(16, 0.75f, true /* accessOrder */);
+    private final int mMaxEntries;
+    private final long mTtlMs;
+    private final int mMaxPhotoBytes;
+    private int mPhotoBytes = 0;
+
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+    private int mEvictionCount = 0;
+    private int mExpiredCount = 0;
+
+    public ContactInfoNumberCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MS, DEFAULT_MAX_PHOTO_BYTES);
+    }
+
+    public ContactInfoNumberCache(int maxEntries, long ttlMs, int maxPhotoBytes) {
+        mMaxEntries = maxEntries;
+        mTtlMs = ttlMs;
+        mMaxPhotoBytes = maxPhotoBytes;
+    }
+
+    /**
+     * @return The cache key for the number, or {@code null} if the number cannot be cached.
+     */
+    public static String getKey(String number) {
+        if (TextUtils.isEmpty(number)) {
+            return null;
+        }
+        final String normalized = PhoneNumberUtils.normalizeNumber(number);
+        return TextUtils.isEmpty(normalized) ? null : normalized;
+    }
+
+    /**
+     * @return A copy of the entry cached for the number, or {@code null} on a miss.
+     */
+    public ContactCacheEntry get(String number) {
+        final String key = getKey(number);
+        final Node node = key == null ? null : mEntries.get(key);
+        if (node == null) {
+            mMissCount++;
+            return null;
+        }
+        if (node.expiresAt <= now()) {
+            removeNode(key);
+            mExpiredCount++;
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return new ContactCacheEntry(node.entry);
+    }
+
+    /**
+     * Caches a copy of the entry for the number, replacing any previous entry.
+     */
+    public void put(String number, ContactCacheEntry entry) {
+        final String key = getKey(number);
+        if (key == null || entry == null) {
+            return;
+        }
+        final int photoBytes = getPhotoBytes(entry.photo);
+        removeNode(key);
+        if (photoBytes > mMaxPhotoBytes) {
+            // Too large to ever fit, keep the text only.
+            final ContactCacheEntry copy = new ContactCacheEntry(entry);
+            copy.photo = null;
+            mEntries.put(key, new Node(copy, now() + mTtlMs, 0));
+        } else {
+            mEntries.put(key, new Node(new ContactCacheEntry(entry), now() + mTtlMs, photoBytes));
+            mPhotoBytes += photoBytes;
+        }
+        trim();
+    }
+
+    public void remove(String number) {
+        final String key = getKey(number);
+        if (key != null) {
+            removeNode(key);
+        }
+    }
+
+    /**
+     * Drops every entry, e.g. because the contacts database changed.
+     */
+    public void invalidateAll() {
+        mEntries.clear();
+        mPhotoBytes = 0;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public int getPhotoBytes() {
+        return mPhotoBytes;
+    }
+
+    public int getHitCount() {
+        return mHitCount;
+    }
+
+    public int getMissCount() {
+        return mMissCount;
+    }
+
+    public int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    public int getExpiredCount() {
+        return mExpiredCount;
+    }
+
+    @Override
+    public String toString() {
+        return "ContactInfoNumberCache[size=" + mEntries.size() + ", photoBytes=" + mPhotoBytes
+                + ", hits=" + mHitCount + ", misses=" + mMissCount
+                + ", evictions=" + mEvictionCount + ", expired=" + mExpiredCount + "]";
+    }
+
+    protected long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    private void trim() {
+        final Iterator<Map.Entry<String, Node>> iterator = mEntries.entrySet().iterator();
+        while ((mEntries.size() > mMaxEntries || mPhotoBytes > mMaxPhotoBytes)
+                && iterator.hasNext()) {
+            final Node eldest = iterator.next().getValue();
+            iterator.remove();
+            mPhotoBytes -= eldest.photoBytes;
+            mEvictionCount++;
+        }
+    }
+
+    private void removeNode(String key) {
+        final Node node = mEntries.remove(key);
+        if (node != null) {
+            mPhotoBytes -= node.photoBytes;
+        }
+    }
+
+    private static int getPhotoBytes(Drawable photo) {
+        if (photo instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) photo).getBitmap();
+            return bitmap == null ? 0 : bitmap.getByteCount();
+        }
+        // Other drawables are resources shared with the rest of the UI.
+        return 0;
+    }
+}
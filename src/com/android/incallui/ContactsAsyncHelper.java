@@ -21,17 +21,32 @@ import android.content.ContentUris;
 import android.content.Context;
 import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import android.provider.ContactsContract.Contacts;
+import android.util.DisplayMetrics;
+import android.util.LruCache;
+
+import com.android.contacts.common.testing.NeededForTesting;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Helper class for loading contacts photo asynchronously.
@@ -57,10 +72,62 @@ public class ContactsAsyncHelper {
                 Object cookie);
     }
 
+    private static final String TAG = ContactsAsyncHelper.class.getSimpleName();
+
+    /** Photo of an incoming call or of the call shown in the primary call card. */
+    public static final int PRIORITY_PRIMARY = 0;
+    /** Photo of a background or secondary call. */
+    public static final int PRIORITY_SECONDARY = 1;
+    /** Photo of a conference participant. */
+    public static final int PRIORITY_PARTICIPANT = 2;
+
     // constants
     private static final int EVENT_LOAD_IMAGE = 1;
 
-    private final Handler mResultHandler = new Handler() {
+    private static final int WORKER_COUNT = 2;
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 10;
+
+    /** Upper bound of the memory taken by decoded photos kept in {@link #sPhotoCache}. */
+    private static final int MAX_PHOTO_CACHE_BYTES = 8 * 1024 * 1024;
+    /** Initial size of the buffer the encoded photo is read into; grown as needed. */
+    private static final int INITIAL_READ_BUFFER_BYTES = 64 * 1024;
+    /** Photos whose encoded form is larger than this are not loaded. */
+    private static final int MAX_ENCODED_PHOTO_BYTES = 8 * 1024 * 1024;
+    private static final int DECODE_TEMP_STORAGE_BYTES = 16 * 1024;
+
+    /**
+     * A photo decoded at the size of the call card, along with its notification sized icon.
+     */
+    private static final class DecodedPhoto {
+        final Bitmap photo;
+        final Bitmap icon;
+
+        DecodedPhoto(Bitmap photo, Bitmap icon) {
+            this.photo = photo;
+            this.icon = icon;
+        }
+
+        int getByteCount() {
+            int bytes = photo.getByteCount();
+            if (icon != null && icon != photo) {
+                bytes += icon.getByteCount();
+            }
+            return bytes;
+        }
+    }
+
+    /** Decoded photos by display photo URI, bounded by the number of bytes they take. */
+    private static final LruCache<Uri, DecodedPhoto> sPhotoCache =
+            new LruCache<Uri, DecodedPhoto>(
+                    (int) Math.min(MAX_PHOTO_CACHE_BYTES, Runtime.getRuntime().maxMemory() / 16)) {
+                @Override
+                protected int sizeOf(Uri key, DecodedPhoto value) {
+                    return value.getByteCount();
+                }
+            };
+
+    /** Posts the results of the loads back to the main thread. */
+    private static final Handler sResultHandler = new Handler(Looper.getMainLooper()) {
         /** Called when loading is done. */
         @Override
         public void handleMessage(Message msg) {
@@ -79,18 +146,47 @@ public class ContactsAsyncHelper {
         }
     };
 
-    /** Handler run on a worker thread to load photo asynchronously. */
-    private static Handler sThreadHandler;
+    /**
+     * Workers loading photos, most important request first. Threads are only kept alive while
+     * there is work.
+     */
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            WORKER_COUNT, WORKER_COUNT, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(0);
 
-    /** For forcing the system to call its constructor */
-    @SuppressWarnings("unused")
-    private static ContactsAsyncHelper sInstance;
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread("ContactsAsyncWorker-" + mCount.incrementAndGet()) {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    };
+                }
+            });
 
     static {
-        sInstance = new ContactsAsyncHelper();
+        sExecutor.allowCoreThreadTimeOut(true);
     }
 
+    /** Guards {@link #sPendingLoads} and the requests of the {@link LoadTask}s. */
+    private static final Object sLock = new Object();
+    /** Loads queued or running, by display photo URI. */
+    private static final HashMap<Uri, LoadTask> sPendingLoads = new HashMap<Uri, LoadTask>();
+    private static final AtomicLong sSequence = new AtomicLong(0);
+
+    /** Per worker thread scratch buffers. */
+    private static final ThreadLocal<PhotoDecoder> sDecoder = new ThreadLocal<PhotoDecoder>() {
+        @Override
+        protected PhotoDecoder initialValue() {
+            return new PhotoDecoder();
+        }
+    };
+
     private static final class WorkerArgs {
+        public int token;
         public Context context;
         public Uri displayPhotoUri;
         public Drawable photo;
@@ -100,78 +196,162 @@ public class ContactsAsyncHelper {
     }
 
     /**
-     * Thread worker class that handles the task of opening the stream and loading
-     * the images.
+     * Load of a single photo on behalf of every request for its URI. Ordered by priority, then
+     * by submission.
      */
-    private class WorkerHandler extends Handler {
-        public WorkerHandler(Looper looper) {
-            super(looper);
+    private static final class LoadTask implements Runnable, Comparable<LoadTask> {
+        final Context context;
+        final Uri displayPhotoUri;
+        final long sequence = sSequence.getAndIncrement();
+        /** Guarded by {@link #sLock}. */
+        final ArrayList<WorkerArgs> requests = new ArrayList<WorkerArgs>();
+        /** Guarded by {@link #sLock}. */
+        int priority;
+        /** Guarded by {@link #sLock}. */
+        boolean started;
+
+        LoadTask(Context context, Uri displayPhotoUri, int priority) {
+            this.context = context;
+            this.displayPhotoUri = displayPhotoUri;
+            this.priority = priority;
         }
 
         @Override
-        public void handleMessage(Message msg) {
-            WorkerArgs args = (WorkerArgs) msg.obj;
+        public void run() {
+            synchronized (sLock) {
+                if (requests.isEmpty()) {
+                    // Every request was cancelled.
+                    sPendingLoads.remove(displayPhotoUri);
+                    return;
+                }
+                started = true;
+            }
 
-            switch (msg.arg1) {
-                case EVENT_LOAD_IMAGE:
-                    InputStream inputStream = null;
-                    try {
-                        try {
-                            inputStream = args.context.getContentResolver()
-                                    .openInputStream(args.displayPhotoUri);
-                        } catch (Exception e) {
-                            Log.e(this, "Error opening photo input stream", e);
-                        }
+            DecodedPhoto decoded = sPhotoCache.get(displayPhotoUri);
+            if (decoded == null) {
+                decoded = sDecoder.get().loadPhoto(context, displayPhotoUri);
+                if (decoded != null) {
+                    sPhotoCache.put(displayPhotoUri, decoded);
+                }
+            }
+            if (decoded != null) {
+                Log.d(TAG, "Loaded image URI: " + displayPhotoUri);
+            } else {
+                Log.d(TAG, "Problem with image URI: "
+                        + displayPhotoUri + ", using default image.");
+            }
 
-                        if (inputStream != null) {
-                            args.photo = Drawable.createFromStream(inputStream,
-                                    args.displayPhotoUri.toString());
-
-                            // This assumes Drawable coming from contact database is usually
-                            // BitmapDrawable and thus we can have (down)scaled version of it.
-                            args.photoIcon = getPhotoIconWhenAppropriate(args.context, args.photo);
-
-                            Log.d(ContactsAsyncHelper.this, "Loading image: " + msg.arg1 +
-                                    " token: " + msg.what + " image URI: " + args.displayPhotoUri);
-                        } else {
-                            args.photo = null;
-                            args.photoIcon = null;
-                            Log.d(ContactsAsyncHelper.this, "Problem with image: " + msg.arg1 +
-                                    " token: " + msg.what + " image URI: " + args.displayPhotoUri +
-                                    ", using default image.");
-                        }
-                    } finally {
-                        if (inputStream != null) {
-                            try {
-                                inputStream.close();
-                            } catch (IOException e) {
-                                Log.e(this, "Unable to close input stream.", e);
-                            }
-                        }
-                    }
-                    break;
-                default:
+            final ArrayList<WorkerArgs> delivered;
+            synchronized (sLock) {
+                sPendingLoads.remove(displayPhotoUri);
+                delivered = new ArrayList<WorkerArgs>(requests);
+                requests.clear();
             }
+            for (WorkerArgs args : delivered) {
+                deliver(args, decoded);
+            }
+        }
 
-            // send the reply to the enclosing class.
-            Message reply = ContactsAsyncHelper.this.mResultHandler.obtainMessage(msg.what);
-            reply.arg1 = msg.arg1;
-            reply.obj = msg.obj;
-            reply.sendToTarget();
+        @Override
+        public int compareTo(LoadTask other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
         }
+    }
+
+    /**
+     * Reads and decodes photos. Keeps scratch buffers across loads, so that a load only
+     * allocates the bitmaps it returns. Confined to a single worker thread.
+     */
+    private static final class PhotoDecoder {
+        private byte[] mReadBuffer = new byte[INITIAL_READ_BUFFER_BYTES];
+        private final byte[] mDecodeTempStorage = new byte[DECODE_TEMP_STORAGE_BYTES];
+        private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
 
         /**
-         * Returns a Bitmap object suitable for {@link Notification}'s large icon. This might
-         * return null when the given Drawable isn't BitmapDrawable, or if the system fails to
-         * create a scaled Bitmap for the Drawable.
+         * Reads the encoded photo once, then decodes it subsampled to the size the call card
+         * displays it at. Returns null if the photo could not be read or decoded.
          */
-        private Bitmap getPhotoIconWhenAppropriate(Context context, Drawable photo) {
-            if (!(photo instanceof BitmapDrawable)) {
+        DecodedPhoto loadPhoto(Context context, Uri displayPhotoUri) {
+            final int length = readPhoto(context, displayPhotoUri);
+            if (length <= 0) {
                 return null;
             }
+
+            final BitmapFactory.Options options = mOptions;
+            options.inTempStorage = mDecodeTempStorage;
+            options.inJustDecodeBounds = true;
+            options.inSampleSize = 1;
+            BitmapFactory.decodeByteArray(mReadBuffer, 0, length, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                Log.w(this, "Unable to decode photo bounds.");
+                return null;
+            }
+
+            // The call card photo fills the width of the screen, cropped to its height.
+            final DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+            options.inSampleSize = getSampleSize(options.outWidth, options.outHeight,
+                    Math.min(metrics.widthPixels, metrics.heightPixels));
+            options.inJustDecodeBounds = false;
+            final Bitmap photo = BitmapFactory.decodeByteArray(mReadBuffer, 0, length, options);
+            if (photo == null) {
+                Log.w(this, "Unable to decode photo.");
+                return null;
+            }
+            return new DecodedPhoto(photo, getPhotoIconWhenAppropriate(context, photo));
+        }
+
+        /**
+         * Reads the photo into {@link #mReadBuffer}, growing it if needed.
+         *
+         * @return The number of bytes read, or -1 on failure.
+         */
+        private int readPhoto(Context context, Uri displayPhotoUri) {
+            InputStream inputStream = null;
+            try {
+                inputStream = context.getContentResolver().openInputStream(displayPhotoUri);
+                if (inputStream == null) {
+                    return -1;
+                }
+                int length = 0;
+                int read;
+                while ((read = inputStream.read(mReadBuffer, length,
+                        mReadBuffer.length - length)) != -1) {
+                    length += read;
+                    if (length == mReadBuffer.length) {
+                        if (length >= MAX_ENCODED_PHOTO_BYTES) {
+                            Log.w(this, "Photo too large, ignoring.");
+                            return -1;
+                        }
+                        final byte[] buffer = new byte[length * 2];
+                        System.arraycopy(mReadBuffer, 0, buffer, 0, length);
+                        mReadBuffer = buffer;
+                    }
+                }
+                return length;
+            } catch (Exception e) {
+                Log.e(this, "Error opening photo input stream", e);
+                return -1;
+            } finally {
+                if (inputStream != null) {
+                    try {
+                        inputStream.close();
+                    } catch (IOException e) {
+                        Log.e(this, "Unable to close input stream.", e);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns a Bitmap object suitable for {@link Notification}'s large icon. This might
+         * return null if the system fails to create a scaled Bitmap for the photo.
+         */
+        private Bitmap getPhotoIconWhenAppropriate(Context context, Bitmap orgBitmap) {
             int iconSize = context.getResources()
                     .getDimensionPixelSize(R.dimen.notification_icon_size);
-            Bitmap orgBitmap = ((BitmapDrawable) photo).getBitmap();
             int orgWidth = orgBitmap.getWidth();
             int orgHeight = orgBitmap.getHeight();
             int longerEdge = orgWidth > orgHeight ? orgWidth : orgHeight;
@@ -188,7 +368,7 @@ public class ContactsAsyncHelper {
                 }
 
                 // It is sure ratio >= 1.0f in any case and thus the newly created Bitmap
-                // should be smaller than the original.
+                // should be smaller than the original, which is already subsampled.
                 return Bitmap.createScaledBitmap(orgBitmap, newWidth, newHeight, true);
             } else {
                 return orgBitmap;
@@ -196,13 +376,57 @@ public class ContactsAsyncHelper {
         }
     }
 
+    /**
+     * Returns the largest power of two sample size which keeps the shorter edge of the image
+     * at least {@code targetSize} pixels.
+     */
+    @NeededForTesting
+    static int getSampleSize(int width, int height, int targetSize) {
+        final int shorterEdge = Math.min(width, height);
+        int sampleSize = 1;
+        while (targetSize > 0 && shorterEdge / (sampleSize * 2) >= targetSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Drops the decoded photos kept in memory.
+     */
+    public static void clearPhotoCache() {
+        sPhotoCache.evictAll();
+    }
+
+    private static void deliver(WorkerArgs args, DecodedPhoto decoded) {
+        if (decoded != null) {
+            args.photo = new BitmapDrawable(args.context.getResources(), decoded.photo);
+            args.photoIcon = decoded.icon;
+        } else {
+            args.photo = null;
+            args.photoIcon = null;
+        }
+
+        // send the reply to the main thread.
+        Message reply = sResultHandler.obtainMessage(args.token);
+        reply.arg1 = EVENT_LOAD_IMAGE;
+        reply.obj = args;
+        reply.sendToTarget();
+    }
+
     /**
      * Private constructor for static class
      */
     private ContactsAsyncHelper() {
-        HandlerThread thread = new HandlerThread("ContactsAsyncWorker");
-        thread.start();
-        sThreadHandler = new WorkerHandler(thread.getLooper());
+    }
+
+    /**
+     * Starts an asynchronous image load with {@link #PRIORITY_PRIMARY}.
+     *
+     * @see #startObtainPhotoAsync(int, Context, Uri, OnImageLoadCompleteListener, Object, int)
+     */
+    public static final void startObtainPhotoAsync(int token, Context context, Uri displayPhotoUri,
+            OnImageLoadCompleteListener listener, Object cookie) {
+        startObtainPhotoAsync(token, context, displayPhotoUri, listener, cookie, PRIORITY_PRIMARY);
     }
 
     /**
@@ -220,9 +444,11 @@ public class ContactsAsyncHelper {
      * @param cookie Arbitrary object the caller wants to remember, which will become the
      * fourth argument of {@link OnImageLoadCompleteListener#onImageLoadComplete(int, Drawable,
      * Bitmap, Object)}. Can be null, at which the callback will also has null for the argument.
+     * @param priority One of the {@code PRIORITY_*} constants. Loads for the same URI are
+     * merged and run with the most important priority requested.
      */
     public static final void startObtainPhotoAsync(int token, Context context, Uri displayPhotoUri,
-            OnImageLoadCompleteListener listener, Object cookie) {
+            OnImageLoadCompleteListener listener, Object cookie, int priority) {
         // in case the source caller info is null, the URI will be null as well.
         // just update using the placeholder image in this case.
         if (displayPhotoUri == null) {
@@ -235,22 +461,65 @@ public class ContactsAsyncHelper {
 
         // setup arguments
         WorkerArgs args = new WorkerArgs();
+        args.token = token;
         args.cookie = cookie;
         args.context = context;
         args.displayPhotoUri = displayPhotoUri;
         args.listener = listener;
 
-        // setup message arguments
-        Message msg = sThreadHandler.obtainMessage(token);
-        msg.arg1 = EVENT_LOAD_IMAGE;
-        msg.obj = args;
+        final DecodedPhoto cached = sPhotoCache.get(displayPhotoUri);
+        if (cached != null) {
+            Log.d("startObjectPhotoAsync", "Image in memory cache: " + displayPhotoUri);
+            deliver(args, cached);
+            return;
+        }
+
+        synchronized (sLock) {
+            LoadTask task = sPendingLoads.get(displayPhotoUri);
+            if (task != null) {
+                task.requests.add(args);
+                if (priority < task.priority && !task.started && sExecutor.remove(task)) {
+                    // Re-queue at the more important priority.
+                    task.priority = priority;
+                    sExecutor.execute(task);
+                }
+                Log.d("startObjectPhotoAsync", "Joining pending load of image: "
+                        + displayPhotoUri);
+                return;
+            }
 
-        Log.d("startObjectPhotoAsync", "Begin loading image: " + args.displayPhotoUri +
-                ", displaying default image for now.");
+            task = new LoadTask(context.getApplicationContext(), displayPhotoUri, priority);
+            task.requests.add(args);
+            sPendingLoads.put(displayPhotoUri, task);
 
-        // notify the thread to begin working
-        sThreadHandler.sendMessage(msg);
-    }
+            Log.d("startObjectPhotoAsync", "Begin loading image: " + args.displayPhotoUri +
+                    ", displaying default image for now.");
 
+            // notify the workers to begin working
+            sExecutor.execute(task);
+        }
+    }
 
+    /**
+     * Cancels the requests made with the given listener and cookie which were not delivered yet.
+     * A load no longer requested by anybody is dropped if it did not start.
+     */
+    public static void cancelObtainPhoto(OnImageLoadCompleteListener listener, Object cookie) {
+        synchronized (sLock) {
+            final Iterator<LoadTask> tasks = sPendingLoads.values().iterator();
+            while (tasks.hasNext()) {
+                final LoadTask task = tasks.next();
+                final Iterator<WorkerArgs> requests = task.requests.iterator();
+                while (requests.hasNext()) {
+                    final WorkerArgs args = requests.next();
+                    if (args.listener == listener && Objects.equals(args.cookie, cookie)) {
+                        requests.remove();
+                    }
+                }
+                if (task.requests.isEmpty() && !task.started && sExecutor.remove(task)) {
+                    tasks.remove();
+                }
+            }
+        }
+    }
 }
@@ -138,6 +138,21 @@ public class DialpadFragment extends BaseFragment<DialpadPresenter, DialpadPrese
             return DTMF_CHARACTERS;
         }
 
+        /**
+         * Overriden so that a string of characters, as sent by some input methods, is played as
+         * a single burst of dtmf tones.
+         */
+        @Override
+        public boolean onKeyOther(View view, Editable content, KeyEvent event) {
+            if (event.getAction() == KeyEvent.ACTION_MULTIPLE
+                    && event.getKeyCode() == KeyEvent.KEYCODE_UNKNOWN) {
+                Log.d(this, "DTMFKeyListener reading a string from input.");
+                getPresenter().processDtmfString(event.getCharacters());
+                return true;
+            }
+            return super.onKeyOther(view, content, event);
+        }
+
         /** special key listener ignores backspace. */
         @Override
         public boolean backspace(View view, Editable content, int keyCode,
@@ -519,6 +534,13 @@ public class DialpadFragment extends BaseFragment<DialpadPresenter, DialpadPrese
         }
     }
 
+    @Override
+    public void appendDigitsToField(CharSequence digits) {
+        if (mDtmfDialerField != null) {
+            mDtmfDialerField.getText().append(digits);
+        }
+    }
+
     /**
      * Called externally (from InCallScreen) to play a DTMF Tone.
      */
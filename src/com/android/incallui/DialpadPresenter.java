@@ -17,6 +17,7 @@
 package com.android.incallui;
 
 import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
 
 /**
  * Logic for call buttons.
@@ -25,6 +26,7 @@ public class DialpadPresenter extends Presenter<DialpadPresenter.DialpadUi>
         implements InCallPresenter.InCallStateListener {
 
     private Call mCall;
+    private final DtmfBurstSender mBurstSender = new DtmfBurstSender();
 
     @Override
     public void onUiReady(DialpadUi ui) {
@@ -37,13 +39,18 @@ public class DialpadPresenter extends Presenter<DialpadPresenter.DialpadUi>
     public void onUiUnready(DialpadUi ui) {
         super.onUiUnready(ui);
         InCallPresenter.getInstance().removeListener(this);
+        mBurstSender.cancel();
     }
 
     @Override
     public void onStateChange(InCallPresenter.InCallState oldState,
             InCallPresenter.InCallState newState, CallList callList) {
+        final Call previousCall = mCall;
         mCall = callList.getOutgoingOrActive();
         Log.d(this, "DialpadPresenter mCall = " + mCall);
+        if (previousCall != mCall) {
+            mBurstSender.cancel();
+        }
     }
 
     /**
@@ -56,6 +63,11 @@ public class DialpadPresenter extends Presenter<DialpadPresenter.DialpadUi>
         Log.d(this, "Processing dtmf key " + c);
         // if it is a valid key, then update the display and send the dtmf tone.
         if (PhoneNumberUtils.is12Key(c) && mCall != null) {
+            if (mBurstSender.isBusy()) {
+                // Play it after the burst rather than on top of it.
+                processDtmfString(String.valueOf(c));
+                return;
+            }
             Log.d(this, "updating display and sending dtmf tone for '" + c + "'");
 
             // Append this key to the "digits" widget.
@@ -67,10 +79,66 @@ public class DialpadPresenter extends Presenter<DialpadPresenter.DialpadUi>
         }
     }
 
+    /**
+     * Processes a string of digits as a burst of DTMF tones, played one after the other with
+     * fixed durations. The valid digits are appended to the EditText field at once.
+     */
+    public final void processDtmfString(String digits) {
+        if (mCall == null || TextUtils.isEmpty(digits)) {
+            return;
+        }
+        final StringBuilder validDigits = new StringBuilder(digits.length());
+        for (int i = 0; i < digits.length(); i++) {
+            final char c = digits.charAt(i);
+            if (PhoneNumberUtils.is12Key(c)) {
+                validDigits.append(c);
+            }
+        }
+        if (validDigits.length() == 0) {
+            Log.d(this, "ignoring dtmf burst without valid digits");
+            return;
+        }
+
+        Log.d(this, "updating display and sending dtmf burst of " + validDigits.length());
+        getUi().appendDigitsToField(validDigits);
+        mBurstSender.enqueue(mCall.getId(), validDigits);
+        Log.v(this, new Log.MessageSupplier() {
+            @Override
+            public String getMessage() {
+                return "dtmf burst queue: " + mBurstSender;
+            }
+        });
+    }
+
+    /**
+     * Sets how long each tone of a DTMF burst is played, and the pause after it.
+     */
+    public void setDtmfBurstDurations(long toneDurationMs, long pauseDurationMs) {
+        mBurstSender.setToneDurations(toneDurationMs, pauseDurationMs);
+    }
+
+    /**
+     * @return The number of burst digits waiting to be played.
+     */
+    public int getDtmfQueueDepth() {
+        return mBurstSender.getQueueDepth();
+    }
+
+    /**
+     * @return The largest number of burst digits which were waiting to be played at once.
+     */
+    public int getMaxDtmfQueueDepth() {
+        return mBurstSender.getMaxQueueDepth();
+    }
+
     /**
      * Stops the local tone based on the phone type.
      */
     public void stopDtmf() {
+        if (mBurstSender.isBusy()) {
+            // The burst stops its own tones.
+            return;
+        }
         if (mCall != null) {
             Log.d(this, "stopping remote tone");
             TelecomAdapter.getInstance().stopDtmfTone(mCall.getId());
@@ -80,5 +148,6 @@ public class DialpadPresenter extends Presenter<DialpadPresenter.DialpadUi>
     public interface DialpadUi extends Ui {
         void setVisible(boolean on);
         void appendDigitsToField(char digit);
+        void appendDigitsToField(CharSequence digits);
     }
 }
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayDeque;
+
+/**
+ * Plays a string of DTMF digits as a burst of tones, e.g. digits pasted or typed faster than key
+ * presses can be handled. Each tone is played for a fixed duration and followed by a fixed
+ * pause. The burst is timed on a dedicated thread, so that a long string does not queue a pair
+ * of telecom calls per digit on the main thread up front. Each tone is started and stopped on
+ * the main thread through {@link TelecomAdapter}, like the tones of single key presses, since
+ * the call list is only accessed there.
+ *
+ * Digits queued while a burst is playing are played after it, on the same call. Queueing digits
+ * for another call drops the remaining digits of the previous one.
+ */
+public class DtmfBurstSender {
+
+    public static final long DEFAULT_TONE_DURATION_MS = 120;
+    public static final long DEFAULT_PAUSE_DURATION_MS = 80;
+
+    private static HandlerThread sThread;
+    private static Handler sHandler;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Object mLock = new Object();
+    private final ArrayDeque<Character> mQueue = new ArrayDeque<Character>();
+    private String mCallId;
+    /** The call the current tone is played on, only accessed from the burst thread. */
+    private String mToneCallId;
+    private boolean mIsPlaying = false;
+    private long mToneDurationMs = DEFAULT_TONE_DURATION_MS;
+    private long mPauseDurationMs = DEFAULT_PAUSE_DURATION_MS;
+
+    private int mMaxQueueDepth = 0;
+    private int mSentCount = 0;
+    private int mDroppedCount = 0;
+
+    private final Runnable mPlayNextTone = new Runnable() {
+        @Override
+        public void run() {
+            final char digit;
+            final long toneDurationMs;
+            synchronized (mLock) {
+                if (mQueue.isEmpty()) {
+                    mIsPlaying = false;
+                    return;
+                }
+                digit = mQueue.poll();
+                mToneCallId = mCallId;
+                toneDurationMs = mToneDurationMs;
+                mSentCount++;
+            }
+            final String callId = mToneCallId;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    TelecomAdapter.getInstance().playDtmfTone(callId, digit);
+                }
+            });
+            sHandler.postDelayed(mStopTone, toneDurationMs);
+        }
+    };
+
+    private final Runnable mStopTone = new Runnable() {
+        @Override
+        public void run() {
+            final String callId = mToneCallId;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    TelecomAdapter.getInstance().stopDtmfTone(callId);
+                }
+            });
+            mToneCallId = null;
+            final long pauseDurationMs;
+            synchronized (mLock) {
+                pauseDurationMs = mPauseDurationMs;
+            }
+            sHandler.postDelayed(mPlayNextTone, pauseDurationMs);
+        }
+    };
+
+    public DtmfBurstSender() {
+        synchronized (DtmfBurstSender.class) {
+            if (sHandler == null) {
+                sThread = new HandlerThread("DtmfBurstSender", Process.THREAD_PRIORITY_FOREGROUND);
+                sThread.start();
+                sHandler = new Handler(sThread.getLooper());
+            }
+        }
+    }
+
+    /**
+     * Sets how long each tone of a burst is played, and the pause after it.
+     */
+    public void setToneDurations(long toneDurationMs, long pauseDurationMs) {
+        Preconditions.checkArgument(toneDurationMs > 0 && pauseDurationMs >= 0);
+        synchronized (mLock) {
+            mToneDurationMs = toneDurationMs;
+            mPauseDurationMs = pauseDurationMs;
+        }
+    }
+
+    /**
+     * Queues the digits to be played on the call. The digits must be valid DTMF digits.
+     */
+    public void enqueue(String callId, CharSequence digits) {
+        if (callId == null || digits.length() == 0) {
+            return;
+        }
+        synchronized (mLock) {
+            if (!callId.equals(mCallId)) {
+                mDroppedCount += mQueue.size();
+                mQueue.clear();
+                mCallId = callId;
+            }
+            for (int i = 0; i < digits.length(); i++) {
+                mQueue.add(digits.charAt(i));
+            }
+            mMaxQueueDepth = Math.max(mMaxQueueDepth, mQueue.size());
+            if (!mIsPlaying) {
+                mIsPlaying = true;
+                sHandler.post(mPlayNextTone);
+            }
+        }
+    }
+
+    /**
+     * Drops the digits not played yet. A tone being played is still stopped after its duration.
+     */
+    public void cancel() {
+        synchronized (mLock) {
+            if (!mQueue.isEmpty()) {
+                Log.d(this, "Dropping " + mQueue.size() + " queued DTMF digits");
+                mDroppedCount += mQueue.size();
+                mQueue.clear();
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} while a burst is playing, including the pause after its last tone.
+     */
+    public boolean isBusy() {
+        synchronized (mLock) {
+            return mIsPlaying;
+        }
+    }
+
+    /**
+     * @return The number of digits waiting to be played.
+     */
+    public int getQueueDepth() {
+        synchronized (mLock) {
+            return mQueue.size();
+        }
+    }
+
+    /**
+     * @return The largest number of digits which were waiting to be played at once.
+     */
+    public int getMaxQueueDepth() {
+        synchronized (mLock) {
+            return mMaxQueueDepth;
+        }
+    }
+
+    public int getSentCount() {
+        synchronized (mLock) {
+            return mSentCount;
+        }
+    }
+
+    public int getDroppedCount() {
+        synchronized (mLock) {
+            return mDroppedCount;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "DtmfBurstSender[queued=" + mQueue.size() + ", maxQueued=" + mMaxQueueDepth
+                    + ", sent=" + mSentCount + ", dropped=" + mDroppedCount + "]";
+        }
+    }
+}
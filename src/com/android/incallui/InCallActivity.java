@@ -49,6 +49,7 @@ import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
 import android.view.KeyEvent;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.view.Window;
 import android.view.WindowManager;
 import android.view.accessibility.AccessibilityEvent;
@@ -272,6 +273,16 @@ public class InCallActivity extends Activity implements FragmentDisplayManager {
         super.onSaveInstanceState(out);
     }
 
+    /** Reports the frames drawn while started, to measure the time to the first one. */
+    private final ViewTreeObserver.OnPreDrawListener mFrameListener =
+            new ViewTreeObserver.OnPreDrawListener() {
+                @Override
+                public boolean onPreDraw() {
+                    CallSetupMetrics.getInstance().onFrame();
+                    return true;
+                }
+            };
+
     @Override
     protected void onStart() {
         Log.d(this, "onStart()...");
@@ -285,6 +296,7 @@ public class InCallActivity extends Activity implements FragmentDisplayManager {
                InCallOrientationEventListener.FULL_SENSOR_SCREEN_ORIENTATION);
 
         InCallPresenter.getInstance().onActivityStarted();
+        getWindow().getDecorView().getViewTreeObserver().addOnPreDrawListener(mFrameListener);
     }
 
     @Override
@@ -352,6 +364,7 @@ public class InCallActivity extends Activity implements FragmentDisplayManager {
     protected void onStop() {
         Log.d(this, "onStop()...");
         mIsVisible = false;
+        getWindow().getDecorView().getViewTreeObserver().removeOnPreDrawListener(mFrameListener);
         enableInCallOrientationEventListener(false);
         InCallPresenter.getInstance().updateIsChangingConfigurations();
         InCallPresenter.getInstance().onActivityStopped();
@@ -64,7 +64,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
  * that want to listen in on the in-call state changes.
  * TODO: This class has become more of a state machine at this point.  Consider renaming.
  */
-public class InCallPresenter implements CallList.Listener,
+public class InCallPresenter implements CallList.ChangeSetListener,
         CircularRevealFragment.OnCircularRevealCompleteListener,
         ContactInfoCache.ContactInfoCacheCallback,
         DialerDataSubscription.PluginChanged<CallMethodInfo> {
@@ -108,6 +108,7 @@ public class InCallPresenter implements CallList.Listener,
     private CallList mCallList;
     private InCallActivity mInCallActivity;
     private InCallState mInCallState = InCallState.NO_CALLS;
+    private final InCallStateMachine mStateMachine = new InCallStateMachine();
     private ProximitySensor mProximitySensor;
     private boolean mServiceConnected = false;
     private boolean mAccountSelectionCancelled = false;
@@ -262,6 +263,7 @@ public class InCallPresenter implements CallList.Listener,
 
         InCallCsRedialHandler.getInstance().setUp(mContext);
         InCallUiStateNotifier.getInstance().setUp(mContext);
+        CallTickScheduler.getInstance().setUp();
         VideoPauseController.getInstance().setUp(this);
         InCallMessageController.getInstance().setUp(mContext);
         OrientationModeHandler.getInstance().setUp();
@@ -282,10 +284,13 @@ public class InCallPresenter implements CallList.Listener,
      */
     public void tearDown() {
         Log.d(this, "tearDown");
+        Log.i(this, "State transitions delivered: " + mStateMachine.getDeliveredCount()
+                + ", suppressed: " + mStateMachine.getSuppressedCount());
         mServiceConnected = false;
         attemptCleanup();
 
         VideoPauseController.getInstance().tearDown();
+        CallTickScheduler.getInstance().tearDown();
         InCallUiStateNotifier.getInstance().tearDown();
         InCallMessageController.getInstance().tearDown();
         OrientationModeHandler.getInstance().tearDown();
@@ -464,6 +469,16 @@ public class InCallPresenter implements CallList.Listener,
      */
     @Override
     public void onCallListChange(CallList callList) {
+        updateInCallState(callList, null);
+    }
+
+    /**
+     * Recalculates the in-call state. Listeners are only notified if the transition changes the
+     * state, the primary or the secondary call, see {@link InCallStateMachine}.
+     *
+     * @param change What changed since the previous notification, {@code null} if unknown.
+     */
+    private void updateInCallState(CallList callList, CallListChange change) {
         if (mInCallActivity != null && mInCallActivity.getCallCardFragment() != null &&
                 mInCallActivity.getCallCardFragment().isAnimating()) {
             mAwaitingCallListUpdate = true;
@@ -484,11 +499,18 @@ public class InCallPresenter implements CallList.Listener,
         // Set the new state before announcing it to the world
         Log.i(this, "Phone switching state: " + oldState + " -> " + newState);
         mInCallState = newState;
+        if (oldState != newState) {
+            CallEventJournal.getInstance().recordInCallState(oldState, newState);
+        }
 
-        // notify listeners of new state
-        for (InCallStateListener listener : mListeners) {
-            Log.d(this, "Notify " + listener + " of state " + mInCallState.toString());
-            listener.onStateChange(oldState, mInCallState, callList);
+        // notify listeners of new state, unless nothing they can observe changed
+        if (mStateMachine.onTransition(oldState, newState, callList, change)) {
+            for (InCallStateListener listener : mListeners) {
+                Log.d(this, "Notify " + listener + " of state " + mInCallState.toString());
+                listener.onStateChange(oldState, mInCallState, callList);
+            }
+        } else {
+            Log.v(this, "onCallListChange: suppressed ", mStateMachine);
         }
 
         if (isActivityStarted()) {
@@ -501,6 +523,26 @@ public class InCallPresenter implements CallList.Listener,
         }
     }
 
+    /**
+     * Called when there is a change to the call list, along with what changed. Skips
+     * recalculating the in-call state when no call was added, removed or modified.
+     */
+    @Override
+    public void onCallListChange(CallList callList, CallListChange change) {
+        // Nobody is waiting for the caller id of a call which left the call list. Disconnected
+        // calls stay in it while their card is shown, so their lookups are left running.
+        if (mContactInfoCache != null) {
+            for (String callId : change.getRemovedCallIds()) {
+                mContactInfoCache.cancelLookup(callId);
+            }
+        }
+        if (change.isEmpty() && !mAwaitingCallListUpdate) {
+            Log.v(this, "onCallListChange: nothing changed");
+            return;
+        }
+        updateInCallState(callList, mAwaitingCallListUpdate ? null : change);
+    }
+
     /**
      * Called when there is a new incoming call.
      *
@@ -513,6 +555,10 @@ public class InCallPresenter implements CallList.Listener,
 
         Log.i(this, "Phone switching state: " + oldState + " -> " + newState);
         mInCallState = newState;
+        mStateMachine.invalidate();
+        if (oldState != newState) {
+            CallEventJournal.getInstance().recordInCallState(oldState, newState);
+        }
 
         for (IncomingCallListener listener : mIncomingCallListeners) {
             listener.onIncomingCall(oldState, mInCallState, call);
@@ -617,6 +663,7 @@ public class InCallPresenter implements CallList.Listener,
         mPendingPhoneAccountHandle = handle;
         if (isBound && mInCallState == InCallState.NO_CALLS) {
             mInCallState = InCallState.OUTGOING;
+            mStateMachine.invalidate();
         }
     }
 
@@ -649,6 +696,8 @@ public class InCallPresenter implements CallList.Listener,
     public void addListener(InCallStateListener listener) {
         Preconditions.checkNotNull(listener);
         mListeners.add(listener);
+        // Make sure the new listener sees the next transition.
+        mStateMachine.invalidate();
     }
 
     public void removeListener(InCallStateListener listener) {
@@ -1743,28 +1792,10 @@ public class InCallPresenter implements CallList.Listener,
 
     private MaterialPalette getColorsFromCall(Call call) {
         if (call == null) {
-            return getColorsFromPhoneAccountHandle(mPendingPhoneAccountHandle);
+            return ThemeColorCache.getInstance().getPalette(mPendingPhoneAccountHandle);
         } else {
-            return getColorsFromPhoneAccountHandle(call.getAccountHandle());
-        }
-    }
-
-    private MaterialPalette getColorsFromPhoneAccountHandle(PhoneAccountHandle phoneAccountHandle) {
-        int highlightColor = PhoneAccount.NO_HIGHLIGHT_COLOR;
-        if (phoneAccountHandle != null) {
-            final TelecomManager tm = getTelecomManager();
-
-            if (tm != null) {
-                final PhoneAccount account = tm.getPhoneAccount(phoneAccountHandle);
-                // For single-sim devices, there will be no selected highlight color, so the phone
-                // account will default to NO_HIGHLIGHT_COLOR.
-                if (account != null) {
-                    highlightColor = account.getHighlightColor();
-                }
-            }
+            return ThemeColorCache.getInstance().getPalette(call.getAccountHandle());
         }
-        return new InCallUIMaterialColorMapUtils(
-                mContext.getResources()).calculatePrimaryAndSecondaryColor(highlightColor);
     }
 
     /**
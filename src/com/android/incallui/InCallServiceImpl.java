@@ -24,6 +24,9 @@ import android.telecom.CallAudioState;
 import android.telecom.InCallService;
 import android.telephony.TelephonyManager;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 /**
  * Used to receive updates about calls from the Telecomm component.  This service is bound to
  * Telecomm while there exist calls which potentially require UI. This includes ringing (incoming),
@@ -64,9 +67,14 @@ public class InCallServiceImpl extends InCallService {
 
     @Override
     public IBinder onBind(Intent intent) {
+        CallSetupMetrics.getInstance().onServiceBind();
         final Context context = getApplicationContext();
         mTelephonyManager = TelephonyManager.from(context);
         sPhoneCount = mTelephonyManager.getPhoneCount();
+        CallerInfoSnapshot.getInstance(context).load();
+        CallerInfo.warmUpGeocoder(context);
+        PhoneAccountCache.getInstance().setUp(context);
+        ThemeColorCache.getInstance().setUp(context);
         final ContactInfoCache contactInfoCache = ContactInfoCache.getInstance(context);
         InCallPresenter.getInstance().setUp(
                 getApplicationContext(),
@@ -87,12 +95,19 @@ public class InCallServiceImpl extends InCallService {
         return super.onBind(intent);
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        CallEventJournal.getInstance().dump(pw);
+        CallSetupMetrics.getInstance().dump(pw);
+    }
+
     @Override
     public boolean onUnbind(Intent intent) {
         super.onUnbind(intent);
 
         InCallPresenter.getInstance().onServiceUnbind();
         tearDown();
+        CallSetupMetrics.getInstance().sendSnapshot(getApplicationContext());
 
         return false;
     }
@@ -111,6 +126,8 @@ public class InCallServiceImpl extends InCallService {
         TelecomAdapter.getInstance().clearInCallService();
         CallList.getInstance().clearOnDisconnect();
         InCallPresenter.getInstance().tearDown();
+        ThemeColorCache.getInstance().tearDown();
+        PhoneAccountCache.getInstance().tearDown();
     }
 
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import com.android.incallui.InCallPresenter.InCallState;
+
+/**
+ * Remembers the last (in-call state, primary call, secondary call) tuple announced to the
+ * {@link InCallPresenter.InCallStateListener}s, and decides whether a new transition carries
+ * anything the listeners have not seen yet.
+ *
+ * The primary and secondary calls are derived the same way {@link PrimaryCallTracker} and the
+ * call card do; their {@link Call.State} is part of the tuple so that e.g. a lone call going on
+ * hold is still announced. Any call state or conference change, and any change to the primary
+ * or secondary call, is always dispatched.
+ */
+final class InCallStateMachine {
+
+    private boolean mValid = false;
+    private InCallState mState;
+    private Call mPrimary;
+    private int mPrimaryState;
+    private Call mSecondary;
+    private int mSecondaryState;
+
+    private int mDeliveredCount = 0;
+    private int mSuppressedCount = 0;
+
+    /**
+     * Records the transition to {@code newState} and returns whether it has to be dispatched.
+     *
+     * @param oldState The state currently announced by the presenter.
+     * @param newState The state being switched to.
+     * @param callList The call list.
+     * @param change What changed in the call list, or {@code null} if unknown.
+     */
+    boolean onTransition(InCallState oldState, InCallState newState, CallList callList,
+            CallListChange change) {
+        final Call primary = getPrimaryCall(newState, callList);
+        final Call secondary = getSecondaryCall(primary, callList);
+        final int primaryState = primary == null ? Call.State.INVALID : primary.getState();
+        final int secondaryState = secondary == null ? Call.State.INVALID : secondary.getState();
+
+        final boolean dispatch = !mValid
+                || change == null
+                || oldState != newState
+                || mState != newState
+                || mPrimary != primary
+                || mPrimaryState != primaryState
+                || mSecondary != secondary
+                || mSecondaryState != secondaryState
+                || change.isActiveSubChanged()
+                || change.hasChanges(CallListChange.FIELD_STATE | CallListChange.FIELD_CONFERENCE)
+                || (primary != null && change.getChangedFields(primary.getId()) != 0)
+                || (secondary != null && change.getChangedFields(secondary.getId()) != 0);
+
+        mValid = true;
+        mState = newState;
+        mPrimary = primary;
+        mPrimaryState = primaryState;
+        mSecondary = secondary;
+        mSecondaryState = secondaryState;
+
+        if (dispatch) {
+            mDeliveredCount++;
+        } else {
+            mSuppressedCount++;
+        }
+        return dispatch;
+    }
+
+    /**
+     * Forgets the memoized tuple, so that the next transition is always dispatched. Must be
+     * called whenever the announced state changes outside of {@link #onTransition} or a new
+     * listener is registered.
+     */
+    void invalidate() {
+        mValid = false;
+        mPrimary = null;
+        mSecondary = null;
+    }
+
+    int getDeliveredCount() {
+        return mDeliveredCount;
+    }
+
+    int getSuppressedCount() {
+        return mSuppressedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "InCallStateMachine[state=" + mState + ", primary=" + mPrimary
+                + ", secondary=" + mSecondary + ", delivered=" + mDeliveredCount
+                + ", suppressed=" + mSuppressedCount + "]";
+    }
+
+    private static Call getPrimaryCall(InCallState state, CallList callList) {
+        if (state == InCallState.INCOMING) {
+            return callList.getIncomingCall();
+        } else if (state == InCallState.OUTGOING) {
+            return callList.getOutgoingCall();
+        } else if (state == InCallState.PENDING_OUTGOING) {
+            return callList.getPendingOutgoingCall();
+        } else if (state == InCallState.WAITING_FOR_ACCOUNT) {
+            return callList.getWaitingForAccountCall();
+        } else if (state == InCallState.INCALL) {
+            Call call = callList.getActiveCall();
+            if (call == null) {
+                call = callList.getBackgroundCall();
+            }
+            if (call == null) {
+                call = callList.getDisconnectingCall();
+            }
+            if (call == null) {
+                call = callList.getDisconnectedCall();
+            }
+            return call;
+        }
+        return null;
+    }
+
+    private static Call getSecondaryCall(Call primary, CallList callList) {
+        if (primary == null) {
+            return null;
+        }
+        final Call active = callList.getActiveCall();
+        if (active != null && active != primary) {
+            return active;
+        }
+        final Call background = callList.getBackgroundCall();
+        if (background != null && background != primary) {
+            return background;
+        }
+        return callList.getSecondBackgroundCall();
+    }
+}
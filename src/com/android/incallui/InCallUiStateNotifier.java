@@ -140,7 +140,7 @@ public class InCallUiStateNotifier implements DisplayManager.DisplayListener {
       * checks to see whether InCallUI experience is visible to the user or not.
       * returns true if InCallUI experience is visible to the user else false.
       */
-    private boolean isUiShowing() {
+    public boolean isUiShowing() {
         /* Not in background and display is ON does mean that InCallUI is visible/showing.
         Return true in such cases else false */
         return  !mIsInBackground && mIsDisplayOn;
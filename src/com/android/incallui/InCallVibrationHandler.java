@@ -18,18 +18,14 @@ package com.android.incallui;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.os.Handler;
-import android.os.Message;
 import android.os.Vibrator;
 import android.preference.PreferenceManager;
 import android.telecom.DisconnectCause;
 
 import com.android.incallui.InCallPresenter.InCallState;
 
-public class InCallVibrationHandler extends Handler implements
-        InCallPresenter.InCallStateListener {
-
-    private static final int MSG_VIBRATE_45_SEC = 1;
+public class InCallVibrationHandler implements InCallPresenter.InCallStateListener,
+        CallTickScheduler.TickListener {
 
     private static final String KEY_VIBRATE_CALL_WAITING = "incall_vibrate_call_waiting";
     private static final String KEY_VIBRATE_OUTGOING = "incall_vibrate_outgoing";
@@ -45,14 +41,13 @@ public class InCallVibrationHandler extends Handler implements
         mVibrator = (Vibrator) context.getSystemService(Context.VIBRATOR_SERVICE);
     }
 
+    /**
+     * Called by the {@link CallTickScheduler} at the 45 second mark of every minute.
+     */
     @Override
-    public void handleMessage(Message msg) {
-        switch (msg.what) {
-            case MSG_VIBRATE_45_SEC:
-                vibrate(70, 0, 0);
-                sendEmptyMessageDelayed(MSG_VIBRATE_45_SEC, 60000);
-                break;
-        }
+    public void onTick(long nowMillis) {
+        vibrate(70, 0, 0);
+        CallTickScheduler.getInstance().setAlarm(this, nowMillis + 60000);
     }
 
     @Override
@@ -112,14 +107,12 @@ public class InCallVibrationHandler extends Handler implements
             vibrate(50, 100, 50);
         }
         // Stop 45-second vibration
-        removeMessages(MSG_VIBRATE_45_SEC);
+        CallTickScheduler.getInstance().cancelAlarm(this);
     }
 
     private void start45SecondVibration(long callDurationMillis) {
         callDurationMillis = callDurationMillis % 60000;
         Log.d(this, "vibrate start @" + callDurationMillis);
-        removeMessages(MSG_VIBRATE_45_SEC);
-
         long timer;
         if (callDurationMillis > 45000) {
             // Schedule the alarm at the next minute + 45 secs
@@ -128,7 +121,7 @@ public class InCallVibrationHandler extends Handler implements
             // Schedule the alarm at the first 45 second mark
             timer = 45000 - callDurationMillis;
         }
-        sendEmptyMessageDelayed(MSG_VIBRATE_45_SEC, timer);
+        CallTickScheduler.getInstance().setAlarm(this, System.currentTimeMillis() + timer);
     }
 
     private void vibrate(int v1, int p1, int v2) {
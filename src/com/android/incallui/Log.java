@@ -20,8 +20,12 @@ import android.net.Uri;
 import android.telecom.PhoneAccount;
 import android.telephony.PhoneNumberUtils;
 
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * Manages logging for the entire class.
@@ -38,6 +42,53 @@ public class Log {
             android.util.Log.isLoggable(TAG, android.util.Log.VERBOSE);
     public static final String TAG_DELIMETER = " - ";
 
+    private static final int PII_MEMO_SIZE = 16;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Builds a log message only when the level it is logged at is enabled.
+     */
+    public interface MessageSupplier {
+        String getMessage();
+    }
+
+    /**
+     * SHA-1 digest and buffers reused by {@link #pii} on one thread, along with the values it
+     * redacted most recently, so that logging the same number again does not hash it again.
+     */
+    private static final class PiiHasher {
+        final MessageDigest digest;
+        final byte[] hash;
+        final char[] hex;
+        final LinkedHashMap<String, String> memo =
+                new LinkedHashMap<String, String>(PII_MEMO_SIZE, 0.75f, true /* accessOrder */) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                        return size() > PII_MEMO_SIZE;
+                    }
+                };
+
+        PiiHasher(MessageDigest digest) {
+            this.digest = digest;
+            hash = new byte[digest.getDigestLength()];
+            // The hex digits between square brackets.
+            hex = new char[hash.length * 2 + 2];
+            hex[0] = '[';
+            hex[hex.length - 1] = ']';
+        }
+    }
+
+    private static final ThreadLocal<PiiHasher> sPiiHasher = new ThreadLocal<PiiHasher>() {
+        @Override
+        protected PiiHasher initialValue() {
+            try {
+                return new PiiHasher(MessageDigest.getInstance("SHA-1"));
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+        }
+    };
+
     public static void d(String tag, String msg) {
         if (DEBUG) {
             android.util.Log.d(TAG, delimit(tag) + msg);
@@ -56,6 +107,35 @@ public class Log {
         }
     }
 
+    public static void d(Object obj, MessageSupplier supplier) {
+        if (DEBUG) {
+            android.util.Log.d(TAG, getPrefix(obj) + supplier.getMessage());
+        }
+    }
+
+    /**
+     * Logs the {@link String#format formatted} message. Neither the message nor the strings of
+     * its arguments are built unless debug logging is enabled.
+     */
+    public static void df(Object obj, String format, Object arg1) {
+        if (DEBUG) {
+            android.util.Log.d(TAG, getPrefix(obj) + String.format(Locale.US, format, arg1));
+        }
+    }
+
+    public static void df(Object obj, String format, Object arg1, Object arg2) {
+        if (DEBUG) {
+            android.util.Log.d(TAG, getPrefix(obj)
+                    + String.format(Locale.US, format, arg1, arg2));
+        }
+    }
+
+    public static void df(Object obj, String format, Object... args) {
+        if (DEBUG) {
+            android.util.Log.d(TAG, getPrefix(obj) + String.format(Locale.US, format, args));
+        }
+    }
+
     public static void v(Object obj, String msg) {
         if (VERBOSE) {
             android.util.Log.v(TAG, getPrefix(obj) + msg);
@@ -68,6 +148,29 @@ public class Log {
         }
     }
 
+    public static void v(Object obj, MessageSupplier supplier) {
+        if (VERBOSE) {
+            android.util.Log.v(TAG, getPrefix(obj) + supplier.getMessage());
+        }
+    }
+
+    /**
+     * Logs the {@link String#format formatted} message. Neither the message nor the strings of
+     * its arguments are built unless verbose logging is enabled.
+     */
+    public static void vf(Object obj, String format, Object arg1, Object arg2) {
+        if (VERBOSE) {
+            android.util.Log.v(TAG, getPrefix(obj)
+                    + String.format(Locale.US, format, arg1, arg2));
+        }
+    }
+
+    public static void vf(Object obj, String format, Object... args) {
+        if (VERBOSE) {
+            android.util.Log.v(TAG, getPrefix(obj) + String.format(Locale.US, format, args));
+        }
+    }
+
     public static void e(String tag, String msg, Exception e) {
         android.util.Log.e(TAG, delimit(tag) + msg, e);
     }
@@ -137,33 +240,36 @@ public class Log {
         if (pii == null || VERBOSE) {
             return String.valueOf(pii);
         }
-        return "[" + secureHash(String.valueOf(pii).getBytes()) + "]";
+        final String value = String.valueOf(pii);
+        final PiiHasher hasher = sPiiHasher.get();
+        if (hasher == null) {
+            return "[null]";
+        }
+        String redacted = hasher.memo.get(value);
+        if (redacted == null) {
+            redacted = secureHash(hasher, value.getBytes());
+            hasher.memo.put(value, redacted);
+        }
+        return redacted;
     }
 
-    private static String secureHash(byte[] input) {
-        MessageDigest messageDigest;
+    /**
+     * @return The SHA-1 hash of the input in hex, between square brackets.
+     */
+    private static String secureHash(PiiHasher hasher, byte[] input) {
+        hasher.digest.update(input);
         try {
-            messageDigest = MessageDigest.getInstance("SHA-1");
-        } catch (NoSuchAlgorithmException e) {
-            return null;
+            hasher.digest.digest(hasher.hash, 0, hasher.hash.length);
+        } catch (DigestException e) {
+            hasher.digest.reset();
+            return "[null]";
         }
-        messageDigest.update(input);
-        byte[] result = messageDigest.digest();
-        return encodeHex(result);
-    }
-
-    private static String encodeHex(byte[] bytes) {
-        StringBuffer hex = new StringBuffer(bytes.length * 2);
-
-        for (int i = 0; i < bytes.length; i++) {
-            int byteIntValue = bytes[i] & 0xff;
-            if (byteIntValue < 0x10) {
-                hex.append("0");
-            }
-            hex.append(Integer.toString(byteIntValue, 16));
+        for (int i = 0; i < hasher.hash.length; i++) {
+            final int byteIntValue = hasher.hash[i] & 0xff;
+            hasher.hex[1 + i * 2] = HEX_DIGITS[byteIntValue >>> 4];
+            hasher.hex[2 + i * 2] = HEX_DIGITS[byteIntValue & 0x0f];
         }
-
-        return hex.toString();
+        return new String(hasher.hex);
     }
 
     private static String getPrefix(Object obj) {
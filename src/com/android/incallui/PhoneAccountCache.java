@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.telecom.PhoneAccount;
+import android.telecom.PhoneAccountHandle;
+import android.telecom.TelecomManager;
+
+import com.android.internal.telephony.TelephonyIntents;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide cache of the {@link PhoneAccount}s, so that reading the label, highlight color or
+ * capabilities of the account of a call does not take a binder round-trip to telecom on the main
+ * thread.
+ *
+ * The accounts are loaded on a background thread when the in-call service binds, and reloaded
+ * whenever an account is registered or unregistered or the subscriptions change. An account
+ * missing from the cache reads as {@code null} and is loaded in the background; the
+ * {@link Listener}s are told once it arrives. Only accessed from the main thread.
+ */
+public class PhoneAccountCache {
+
+    public interface Listener {
+        /**
+         * Called on the main thread when cached accounts were added, changed or removed.
+         */
+        void onPhoneAccountsChanged();
+    }
+
+    private static PhoneAccountCache sInstance;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Set<Listener> mListeners = Collections.newSetFromMap(
+            new ConcurrentHashMap<Listener, Boolean>(8, 0.9f, 1));
+
+    /** Accounts by handle; a {@code null} value marks a handle telecom does not know. */
+    private HashMap<PhoneAccountHandle, PhoneAccount> mAccounts =
+            new HashMap<PhoneAccountHandle, PhoneAccount>();
+    private int mCallCapableAccountCount = 0;
+    /** Handles being loaded individually. */
+    private final HashSet<PhoneAccountHandle> mPendingHandles = new HashSet<PhoneAccountHandle>();
+    /** Incremented on every invalidation, so that the results of older loads are dropped. */
+    private int mGeneration = 0;
+
+    private Context mContext;
+    private boolean mReceiverRegistered = false;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.d(PhoneAccountCache.this, "Accounts changed: " + intent.getAction());
+            refresh();
+        }
+    };
+
+    public static synchronized PhoneAccountCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new PhoneAccountCache();
+        }
+        return sInstance;
+    }
+
+    private PhoneAccountCache() {
+    }
+
+    /**
+     * Starts loading the accounts and listening for their changes.
+     */
+    public void setUp(Context context) {
+        mContext = context.getApplicationContext();
+        if (!mReceiverRegistered) {
+            final IntentFilter filter = new IntentFilter();
+            filter.addAction(TelecomManager.ACTION_PHONE_ACCOUNT_REGISTERED);
+            filter.addAction(TelecomManager.ACTION_PHONE_ACCOUNT_UNREGISTERED);
+            filter.addAction(TelephonyIntents.ACTION_SUBINFO_RECORD_UPDATED);
+            mContext.registerReceiver(mReceiver, filter);
+            mReceiverRegistered = true;
+        }
+        refresh();
+    }
+
+    /**
+     * Stops listening for account changes. The cached accounts are kept for the next bind.
+     */
+    public void tearDown() {
+        if (mReceiverRegistered) {
+            mContext.unregisterReceiver(mReceiver);
+            mReceiverRegistered = false;
+        }
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * @return The account for the handle, or {@code null} if it is unknown or not loaded yet.
+     */
+    public PhoneAccount getPhoneAccount(PhoneAccountHandle handle) {
+        if (handle == null) {
+            return null;
+        }
+        final PhoneAccount account = mAccounts.get(handle);
+        if (account == null && !mAccounts.containsKey(handle)) {
+            load(handle);
+        }
+        return account;
+    }
+
+    /**
+     * @return {@code true} if the account for the handle is loaded and has all the capabilities.
+     */
+    public boolean hasCapabilities(PhoneAccountHandle handle, int capabilities) {
+        final PhoneAccount account = getPhoneAccount(handle);
+        return account != null && account.hasCapabilities(capabilities);
+    }
+
+    /**
+     * @return The number of accounts able to place calls, as of the last load.
+     */
+    public int getCallCapableAccountCount() {
+        return mCallCapableAccountCount;
+    }
+
+    /**
+     * Reloads every account in the background.
+     */
+    private void refresh() {
+        if (mContext == null) {
+            return;
+        }
+        final int generation = ++mGeneration;
+        mPendingHandles.clear();
+        final TelecomManager telecomManager = TelecomManager.from(mContext);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<PhoneAccountHandle> handles =
+                        telecomManager.getCallCapablePhoneAccounts();
+                final HashMap<PhoneAccountHandle, PhoneAccount> accounts =
+                        new HashMap<PhoneAccountHandle, PhoneAccount>();
+                for (PhoneAccountHandle handle : handles) {
+                    accounts.put(handle, telecomManager.getPhoneAccount(handle));
+                }
+                final int callCapableCount = handles.size();
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        mAccounts = accounts;
+                        mCallCapableAccountCount = callCapableCount;
+                        notifyListeners();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Loads a single account which is not call capable, or was registered since the last
+     * refresh.
+     */
+    private void load(final PhoneAccountHandle handle) {
+        if (mContext == null || !mPendingHandles.add(handle)) {
+            return;
+        }
+        final int generation = mGeneration;
+        final TelecomManager telecomManager = TelecomManager.from(mContext);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final PhoneAccount account = telecomManager.getPhoneAccount(handle);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        mPendingHandles.remove(handle);
+                        mAccounts.put(handle, account);
+                        if (account != null) {
+                            notifyListeners();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void notifyListeners() {
+        for (Listener listener : mListeners) {
+            listener.onPhoneAccountsChanged();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PhoneAccountCache[accounts=" + mAccounts.size()
+                + ", callCapable=" + mCallCapableAccountCount
+                + ", pending=" + mPendingHandles.size() + "]";
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.content.Context;
+import android.os.SystemProperties;
+import android.telecom.PhoneAccountHandle;
+import android.telecom.TelecomManager;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
+
+import com.android.contacts.common.testing.NeededForTesting;
+import com.android.contacts.common.util.PhoneNumberHelper;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Classifies the numbers which get special treatment in the in-call UI: emergency and voicemail
+ * numbers, and the strings networks send instead of a number for restricted, unknown or absent
+ * numbers.
+ *
+ * The known numbers and strings are compiled into a trie once per subscription, so classifying
+ * a number takes a single walk over its characters. Numbers are matched exactly, after removing
+ * their separators; the CNAP strings are matched as is. The emergency numbers do not depend on
+ * the subscription and have a trie of their own, which {@link #isEmergencyNumber} reads without
+ * a context. The tries are dropped when the phone accounts change, since the voicemail and
+ * emergency numbers may have changed with them, and the generation is bumped so that classes
+ * cached elsewhere can tell they are stale.
+ */
+public class SpecialNumberClassifier implements PhoneAccountCache.Listener {
+
+    public static final int CLASS_NONE = 0;
+    public static final int CLASS_EMERGENCY = 1;
+    public static final int CLASS_VOICEMAIL = 2;
+    public static final int CLASS_CNAP_RESTRICTED = 3;
+    public static final int CLASS_CNAP_UNKNOWN = 4;
+    public static final int CLASS_ABSENT_NUMBER = 5;
+
+    /** Strings sent by the network instead of the number for a restricted number. */
+    private static final String[] CNAP_RESTRICTED = new String[] { "PRIVATE", "P", "RES" };
+    /** Strings sent by the network instead of the number for an unknown number. */
+    private static final String[] CNAP_UNKNOWN = new String[] {
+            "UNAVAILABLE", "UNKNOWN", "UNA", "U" };
+
+    /** Emergency numbers used when the RIL does not provide a list, as in PhoneNumberUtils. */
+    private static final String DEFAULT_EMERGENCY_NUMBERS = "112,911";
+
+    /**
+     * Trie of strings to their class. Each node keeps its children in small parallel arrays,
+     * since nodes have few children.
+     */
+    @NeededForTesting
+    static class NumberTrie {
+        private static final char[] NO_KEYS = new char[0];
+        private static final NumberTrie[] NO_CHILDREN = new NumberTrie[0];
+
+        private char[] mKeys = NO_KEYS;
+        private NumberTrie[] mChildren = NO_CHILDREN;
+        private int mNumberClass = CLASS_NONE;
+
+        /**
+         * Sets the class of the string, unless it has one already.
+         */
+        void put(String key, int numberClass) {
+            if (TextUtils.isEmpty(key)) {
+                return;
+            }
+            NumberTrie node = this;
+            for (int i = 0; i < key.length(); i++) {
+                node = node.getOrAddChild(key.charAt(i));
+            }
+            if (node.mNumberClass == CLASS_NONE) {
+                node.mNumberClass = numberClass;
+            }
+        }
+
+        /**
+         * @return The class of the string, or {@link #CLASS_NONE}.
+         */
+        int get(String key) {
+            NumberTrie node = this;
+            for (int i = 0; i < key.length() && node != null; i++) {
+                node = node.getChild(key.charAt(i));
+            }
+            return node == null ? CLASS_NONE : node.mNumberClass;
+        }
+
+        private NumberTrie getChild(char key) {
+            for (int i = 0; i < mKeys.length; i++) {
+                if (mKeys[i] == key) {
+                    return mChildren[i];
+                }
+            }
+            return null;
+        }
+
+        private NumberTrie getOrAddChild(char key) {
+            NumberTrie child = getChild(key);
+            if (child == null) {
+                child = new NumberTrie();
+                mKeys = Arrays.copyOf(mKeys, mKeys.length + 1);
+                mChildren = Arrays.copyOf(mChildren, mChildren.length + 1);
+                mKeys[mKeys.length - 1] = key;
+                mChildren[mChildren.length - 1] = child;
+            }
+            return child;
+        }
+    }
+
+    private static SpecialNumberClassifier sInstance;
+    /** Trie of the emergency numbers of all slots, built on first use. */
+    private static NumberTrie sEmergencyTrie;
+
+    private final Context mContext;
+    /** Tries by account handle; the {@code null} handle has no voicemail number. */
+    private final HashMap<PhoneAccountHandle, NumberTrie> mTries =
+            new HashMap<PhoneAccountHandle, NumberTrie>();
+    private int mGeneration;
+
+    public static synchronized SpecialNumberClassifier getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SpecialNumberClassifier(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SpecialNumberClassifier(Context context) {
+        mContext = context;
+        PhoneAccountCache.getInstance().addListener(this);
+    }
+
+    /**
+     * @return The generation of the tries, bumped whenever the classes of numbers may change.
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Checks the number against the emergency numbers the RIL reports for any slot. Unlike
+     * {@link #classify}, this does not need a context, so it can be used by {@link Call}.
+     *
+     * @param number The number of the call; SIP addresses are never emergency numbers.
+     * @return {@code true} if the number is an emergency number.
+     */
+    public static boolean isEmergencyNumber(String number) {
+        if (TextUtils.isEmpty(number) || PhoneNumberHelper.isUriNumber(number)) {
+            return false;
+        }
+        return getEmergencyTrie().get(PhoneNumberUtils.extractNetworkPortion(number))
+                == CLASS_EMERGENCY;
+    }
+
+    private static synchronized NumberTrie getEmergencyTrie() {
+        if (sEmergencyTrie == null) {
+            sEmergencyTrie = buildEmergencyTrie();
+        }
+        return sEmergencyTrie;
+    }
+
+    private static synchronized void clearEmergencyTrie() {
+        sEmergencyTrie = null;
+    }
+
+    private static NumberTrie buildEmergencyTrie() {
+        final NumberTrie trie = new NumberTrie();
+        final int phoneCount = TelephonyManager.getDefault().getPhoneCount();
+        boolean hasList = false;
+        for (int slot = 0; slot < phoneCount; slot++) {
+            String emergencyNumbers =
+                    SystemProperties.get(slot == 0 ? "ril.ecclist" : "ril.ecclist" + slot);
+            if (TextUtils.isEmpty(emergencyNumbers)) {
+                emergencyNumbers = SystemProperties.get("ro.ril.ecclist");
+            }
+            hasList |= putEmergencyNumbers(trie, emergencyNumbers);
+        }
+        if (!hasList) {
+            putEmergencyNumbers(trie, DEFAULT_EMERGENCY_NUMBERS);
+        }
+        return trie;
+    }
+
+    private static boolean putEmergencyNumbers(NumberTrie trie, String emergencyNumbers) {
+        if (TextUtils.isEmpty(emergencyNumbers)) {
+            return false;
+        }
+        for (String emergencyNumber : emergencyNumbers.split(",")) {
+            trie.put(PhoneNumberUtils.stripSeparators(emergencyNumber.trim()), CLASS_EMERGENCY);
+        }
+        return true;
+    }
+
+    /**
+     * @param number The number, or the string the network sent instead of it.
+     * @param accountHandle The account of the call, whose voicemail number is checked.
+     * @return The class of the number, or {@link #CLASS_NONE}.
+     */
+    public synchronized int classify(String number, PhoneAccountHandle accountHandle) {
+        if (TextUtils.isEmpty(number)) {
+            return CLASS_NONE;
+        }
+        if (isEmergencyNumber(number)) {
+            return CLASS_EMERGENCY;
+        }
+        NumberTrie trie = mTries.get(accountHandle);
+        if (trie == null) {
+            trie = buildTrie(accountHandle);
+            mTries.put(accountHandle, trie);
+        }
+        final int numberClass = trie.get(number);
+        if (numberClass != CLASS_NONE) {
+            return numberClass;
+        }
+        final String strippedNumber = PhoneNumberUtils.stripSeparators(number);
+        return strippedNumber.equals(number) ? CLASS_NONE : trie.get(strippedNumber);
+    }
+
+    private NumberTrie buildTrie(PhoneAccountHandle accountHandle) {
+        final NumberTrie trie = new NumberTrie();
+
+        if (accountHandle != null) {
+            final TelecomManager telecomManager =
+                    (TelecomManager) mContext.getSystemService(Context.TELECOM_SERVICE);
+            final String voiceMailNumber = telecomManager.getVoiceMailNumber(accountHandle);
+            if (!TextUtils.isEmpty(voiceMailNumber)) {
+                trie.put(PhoneNumberUtils.stripSeparators(voiceMailNumber), CLASS_VOICEMAIL);
+            }
+        }
+
+        for (String restricted : CNAP_RESTRICTED) {
+            trie.put(restricted, CLASS_CNAP_RESTRICTED);
+        }
+        for (String unknown : CNAP_UNKNOWN) {
+            trie.put(unknown, CLASS_CNAP_UNKNOWN);
+        }
+        for (String absent : mContext.getResources().getStringArray(R.array.absent_num)) {
+            trie.put(absent, CLASS_ABSENT_NUMBER);
+        }
+        return trie;
+    }
+
+    @Override
+    public synchronized void onPhoneAccountsChanged() {
+        mTries.clear();
+        clearEmergencyTrie();
+        mGeneration++;
+    }
+}
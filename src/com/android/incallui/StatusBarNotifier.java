@@ -30,6 +30,10 @@ import android.graphics.Canvas;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
 import android.telecom.Call.Details;
 import android.telecom.PhoneAccount;
 import android.telecom.TelecomManager;
@@ -40,6 +44,7 @@ import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
+import android.util.LruCache;
 
 import android.view.View;
 import android.widget.RemoteViews;
@@ -72,15 +77,96 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
     private static final String ANDROID_PACKAGE_NAME = "android";
     private static final String RESOURCE_ID = "id";
 
+    // Updates requested within this time are sent as a single notification.
+    private static final long NOTIFICATION_COALESCE_MS = 16;
+    private static final int ROUNDED_ICON_CACHE_SIZE = 8;
+
+    private static HandlerThread sWorkerThread;
+    private static Handler sWorkerHandler;
+
+    /**
+     * Everything a call notification shows. A notification with the same content as the last one
+     * sent looks the same, so it is not sent again.
+     */
+    private static final class NotificationContent {
+        int type;
+        int state;
+        int iconResId;
+        String content;
+        String contentTitle;
+        CharSequence subText;
+        /** The contact photo, compared by identity. */
+        Bitmap photo;
+        /** An avatar shown when there is no photo, or 0. */
+        int largeIconResId;
+        Drawable lookupProviderBadge;
+        boolean isSpam;
+        String person;
+        long connectTimeMillis;
+        boolean isVideoUpgradeRequest;
+        boolean isMoreOptionRequired;
+        boolean isVideoCall;
+        boolean useExt;
+        boolean forceRelaunch;
+        /** Not part of the content, recreated for every update. */
+        Intent launchIntent;
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof NotificationContent)) {
+                return false;
+            }
+            final NotificationContent other = (NotificationContent) o;
+            return type == other.type
+                    && state == other.state
+                    && iconResId == other.iconResId
+                    && Objects.equals(content, other.content)
+                    && Objects.equals(contentTitle, other.contentTitle)
+                    && TextUtils.equals(subText, other.subText)
+                    && photo == other.photo
+                    && largeIconResId == other.largeIconResId
+                    && lookupProviderBadge == other.lookupProviderBadge
+                    && isSpam == other.isSpam
+                    && Objects.equals(person, other.person)
+                    && connectTimeMillis == other.connectTimeMillis
+                    && isVideoUpgradeRequest == other.isVideoUpgradeRequest
+                    && isMoreOptionRequired == other.isMoreOptionRequired
+                    && isVideoCall == other.isVideoCall
+                    && useExt == other.useExt
+                    && forceRelaunch == other.forceRelaunch;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, state, iconResId, content, contentTitle, largeIconResId,
+                    person, connectTimeMillis);
+        }
+    }
+
+    private static final class RoundedIcon {
+        final Bitmap source;
+        final Bitmap rounded;
+
+        RoundedIcon(Bitmap source, Bitmap rounded) {
+            this.source = source;
+            this.rounded = rounded;
+        }
+    }
+
     private final Context mContext;
     private final ContactInfoCache mContactInfoCache;
     private final NotificationManager mNotificationManager;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    /** Rounded large icons by contact, only accessed from the worker thread. */
+    private final LruCache<String, RoundedIcon> mRoundedIcons =
+            new LruCache<String, RoundedIcon>(ROUNDED_ICON_CACHE_SIZE);
     private int mCurrentNotification = NOTIFICATION_NONE;
-    private int mCallState = Call.State.INVALID;
-    private int mSavedIcon = 0;
-    private String mSavedContent = null;
-    private Bitmap mSavedLargeIcon;
-    private String mSavedContentTitle;
+    private NotificationContent mSavedContent;
+    /** Incremented on every cancel, so that notifications built before are dropped. */
+    private int mNotificationGeneration = 0;
+    private boolean mIsNotificationPending = false;
+    private String mPendingCallId;
+    private ContactCacheEntry mPendingContactInfo;
     private String mCallId = null;
     private InCallState mInCallState;
 
@@ -137,6 +223,12 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
             CallList.getInstance().removeCallUpdateListener(mCallId, this);
             mCallId = null;
         }
+        mMainHandler.removeCallbacks(mSendPendingNotification);
+        mIsNotificationPending = false;
+        mPendingCallId = null;
+        mPendingContactInfo = null;
+        mSavedContent = null;
+        mNotificationGeneration++;
         if (mCurrentNotification != NOTIFICATION_NONE) {
             Log.d(this, "cancelInCall()...");
             mNotificationManager.cancel(mCurrentNotification);
@@ -196,7 +288,7 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
             public void onContactInfoComplete(String callId, ContactCacheEntry entry) {
                 Call call = CallList.getInstance().getCallById(callId);
                 if (call != null) {
-                    buildAndSendNotification(call, entry);
+                    scheduleNotification(call, entry);
                 }
             }
 
@@ -204,12 +296,39 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
             public void onImageLoadComplete(String callId, ContactCacheEntry entry) {
                 Call call = CallList.getInstance().getCallById(callId);
                 if (call != null) {
-                    buildAndSendNotification(call, entry);
+                    scheduleNotification(call, entry);
                 }
             }
         });
     }
 
+    /**
+     * Sends the notification for the call after the current frame, so that a cascade of contact
+     * info and image callbacks results in a single notification.
+     */
+    private void scheduleNotification(Call call, ContactCacheEntry contactInfo) {
+        mPendingCallId = call.getId();
+        mPendingContactInfo = contactInfo;
+        if (!mIsNotificationPending) {
+            mIsNotificationPending = true;
+            mMainHandler.postDelayed(mSendPendingNotification, NOTIFICATION_COALESCE_MS);
+        }
+    }
+
+    private final Runnable mSendPendingNotification = new Runnable() {
+        @Override
+        public void run() {
+            mIsNotificationPending = false;
+            final Call call = CallList.getInstance().getCallById(mPendingCallId);
+            final ContactCacheEntry contactInfo = mPendingContactInfo;
+            mPendingCallId = null;
+            mPendingContactInfo = null;
+            if (call != null && contactInfo != null) {
+                buildAndSendNotification(call, contactInfo);
+            }
+        }
+    };
+
     /**
      * Sets up the main Ui for the notification
      */
@@ -223,92 +342,155 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
             return;
         }
 
-        final int state = call.getState();
+        final NotificationContent content = getNotificationContent(call, contactInfo);
 
         // Check if data has changed; if nothing is different, don't issue another notification.
-        final int iconResId = getIconToDisplay(call);
-        Bitmap largeIcon = getLargeIconToDisplay(contactInfo, call);
-        final String content = getContentString(call);
-        final String contentTitle = getContentTitle(contactInfo, call);
+        if (content.equals(mSavedContent)) {
+            return;
+        }
+        if (mSavedContent == null || mSavedContent.type != content.type) {
+            Log.d(this, "Showing notification for first time or for a new type.");
+        }
+        Log.d(this, "Data changed.  Showing notification");
+        mSavedContent = content;
+
+        /*
+         * Nothing more to check...build it in the background and send it.
+         */
+        final int generation = mNotificationGeneration;
+        getWorkerHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                final Notification notification = buildNotification(content);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendNotification(content, notification, generation);
+                    }
+                });
+            }
+        });
+    }
 
-        final boolean isVideoUpgradeRequest = call.getSessionModificationState()
+    /**
+     * Gathers everything shown by the notification for the call. Must be called on the main
+     * thread, since it reads the call and the call list.
+     */
+    private NotificationContent getNotificationContent(Call call, ContactCacheEntry contactInfo) {
+        final NotificationContent content = new NotificationContent();
+        content.state = call.getState();
+        content.iconResId = getIconToDisplay(call);
+        content.content = getContentString(call);
+        content.contentTitle = getContentTitle(contactInfo, call);
+
+        content.isVideoUpgradeRequest = call.getSessionModificationState()
                 == Call.SessionModificationState.RECEIVED_UPGRADE_TO_VIDEO_REQUEST;
-        final int notificationType;
-        if ((state == Call.State.INCOMING
-                || state == Call.State.CALL_WAITING || isVideoUpgradeRequest) &&
+        if ((content.state == Call.State.INCOMING
+                || content.state == Call.State.CALL_WAITING || content.isVideoUpgradeRequest) &&
                         !InCallPresenter.getInstance().isShowingInCallUi()) {
-            notificationType = NOTIFICATION_INCOMING_CALL;
+            content.type = NOTIFICATION_INCOMING_CALL;
         } else {
-            notificationType = NOTIFICATION_IN_CALL;
+            content.type = NOTIFICATION_IN_CALL;
         }
 
-        if (!checkForChangeAndSaveData(iconResId, content, largeIcon, contentTitle, state,
-                notificationType)) {
-            return;
+        // The photo takes precedence over the conference and spam avatars, which are only
+        // decoded in the background.
+        if (contactInfo.photo instanceof BitmapDrawable) {
+            content.photo = ((BitmapDrawable) contactInfo.photo).getBitmap();
+        }
+        if (content.photo == null) {
+            if (call.isConferenceCall()
+                    && !call.hasProperty(Details.PROPERTY_GENERIC_CONFERENCE)) {
+                content.largeIconResId = R.drawable.img_conference;
+            } else if (contactInfo.isSpam) {
+                content.largeIconResId = R.drawable.ic_spam_avatar;
+            }
+        }
+        if (contactInfo.lookupUri != null) {
+            content.person = contactInfo.lookupUri.toString();
+        } else if (!TextUtils.isEmpty(call.getNumber())) {
+            content.person = Uri.fromParts(PhoneAccount.SCHEME_TEL,
+                    call.getNumber(), null).toString();
         }
 
-        if (largeIcon != null) {
-            largeIcon = getRoundedIcon(largeIcon);
+        if (TelephonyManager.getDefault().isMultiSimEnabled()) {
+            // The label of a SIM account is the display name of its subscription.
+            PhoneAccount account =
+                    PhoneAccountCache.getInstance().getPhoneAccount(call.getAccountHandle());
+            if (account != null) {
+                content.subText = account.getLabel();
+            } else {
+                SubscriptionManager mgr = SubscriptionManager.from(mContext);
+                SubscriptionInfo subInfoRecord = mgr.getActiveSubscriptionInfo(call.getSubId());
+                if (subInfoRecord != null) {
+                    content.subText = subInfoRecord.getDisplayName();
+                }
+            }
+        }
+        if (contactInfo.isSpam) {
+            content.subText = mContext.getResources().getQuantityString(
+                    R.plurals.spam_count_text, contactInfo.spamCount, contactInfo.spamCount);
         }
+        content.isSpam = contactInfo.isSpam;
+        content.lookupProviderBadge = contactInfo.lookupProviderBadge;
 
-        /*
-         * Nothing more to check...build and send it.
-         */
+        content.connectTimeMillis = content.state == Call.State.ACTIVE
+                ? call.getConnectTimeMillis() : 0;
+        content.isVideoCall = call.isVideoCall(mContext);
+        content.useExt = QtiCallUtils.useExt(mContext);
+        content.isMoreOptionRequired = isMoreOptionRequired(call);
+        if (content.type == NOTIFICATION_INCOMING_CALL) {
+            content.forceRelaunch = isCallWaiting(call);
+        }
+        content.launchIntent = InCallPresenter.getInstance().getInCallIntent(
+                false /* showDialpad */, false /* newOutgoingCall */);
+        return content;
+    }
+
+    /**
+     * Builds the notification. Called on the worker thread.
+     */
+    private Notification buildNotification(NotificationContent content) {
         final Notification.Builder builder = getNotificationBuilder();
 
         // Set up the main intent to send the user to the in-call screen
-        final PendingIntent inCallPendingIntent = createLaunchPendingIntent();
+        final PendingIntent inCallPendingIntent = createLaunchPendingIntent(content.launchIntent);
         builder.setContentIntent(inCallPendingIntent);
 
         // Set the intent as a full screen intent as well if a call is incoming or for a
         // video upgrade request
-        if (notificationType == NOTIFICATION_INCOMING_CALL) {
-            configureFullScreenIntent(builder, inCallPendingIntent, call);
+        if (content.type == NOTIFICATION_INCOMING_CALL) {
+            configureFullScreenIntent(builder, inCallPendingIntent);
             // Set the notification category for incoming calls
             builder.setCategory(Notification.CATEGORY_CALL);
         }
 
         // Set the content
-        builder.setContentText(content);
-        builder.setSmallIcon(iconResId);
-        builder.setContentTitle(contentTitle);
-        builder.setLargeIcon(largeIcon);
+        builder.setContentText(content.content);
+        builder.setSmallIcon(content.iconResId);
+        builder.setContentTitle(content.contentTitle);
+        builder.setLargeIcon(getRoundedLargeIcon(content));
         builder.setColor(mContext.getResources().getColor(R.color.dialer_theme_color));
 
-        CharSequence subTextContent = null;
-        if (TelephonyManager.getDefault().isMultiSimEnabled()) {
-            SubscriptionManager mgr = SubscriptionManager.from(mContext);
-            SubscriptionInfo subInfoRecord = mgr.getActiveSubscriptionInfo(call.getSubId());
-            if (subInfoRecord != null) {
-                subTextContent = subInfoRecord.getDisplayName();
-            }
-        }
-
-        if (contactInfo.isSpam) {
-            subTextContent = mContext.getResources().getQuantityString(R.plurals.spam_count_text,
-                    contactInfo.spamCount, contactInfo.spamCount);
+        if (!TextUtils.isEmpty(content.subText)) {
+            builder.setSubText(content.subText);
         }
 
-        if (!TextUtils.isEmpty(subTextContent)) {
-            builder.setSubText(subTextContent);
-        }
-
-        if (isVideoUpgradeRequest) {
+        if (content.isVideoUpgradeRequest) {
             builder.setUsesChronometer(false);
             addDismissUpgradeRequestAction(builder);
             addAcceptUpgradeRequestAction(builder);
-            if (isMoreOptionRequired(call)) {
+            if (content.isMoreOptionRequired) {
                 addMoreAction(builder);
             }
         } else {
-            createIncomingCallNotification(call, state, builder);
+            createIncomingCallNotification(content, builder);
         }
 
-        addPersonReference(builder, contactInfo, call);
+        if (content.person != null) {
+            builder.addPerson(content.person);
+        }
 
-        /*
-         * Fire off the notification
-         */
         Notification notification = builder.build();
 
         RemoteViews[] viewsToUpdate = new RemoteViews[] {
@@ -316,7 +498,7 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
                 notification.bigContentView,
                 notification.headsUpContentView};
         // add LookupProvider badge to Notification
-        Drawable logo = contactInfo.lookupProviderBadge;
+        Drawable logo = content.lookupProviderBadge;
         if (logo != null) {
             Bitmap bitmap = null;
             if (logo instanceof BitmapDrawable) {
@@ -334,7 +516,7 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
                 view.setViewVisibility(rightIconId, View.VISIBLE);
                 view.setImageViewBitmap(rightIconId, bitmap);
                 view.setViewPadding(rightIconId, 0, 0, 0, 0);
-                if (contactInfo.isSpam) {
+                if (content.isSpam) {
                     view.setTextColor(getNotificationTextId(mContext), spamColor);
                     view.setTextColor(getNotificationTitleId(mContext), spamColor);
                 }
@@ -354,15 +536,33 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
                         rightPadding, 0);
             }
         }
+        return notification;
+    }
+
+    /**
+     * Fires off the notification built in the background, unless it was cancelled meanwhile.
+     */
+    private void sendNotification(NotificationContent content, Notification notification,
+            int generation) {
+        if (generation != mNotificationGeneration) {
+            Log.d(this, "Dropping notification built before it was cancelled");
+            return;
+        }
 
-        if (mCurrentNotification != notificationType) {
+        if (content.forceRelaunch) {
+            // Cancel the IN_CALL_NOTIFICATION immediately before
+            // (re)posting it; this seems to force the
+            // NotificationManager to launch the fullScreenIntent.
+            mNotificationManager.cancel(NOTIFICATION_IN_CALL);
+        }
+        if (mCurrentNotification != content.type) {
             Log.i(this, "Previous notification already showing - cancelling "
                     + mCurrentNotification);
             mNotificationManager.cancel(mCurrentNotification);
         }
-        Log.i(this, "Displaying notification for " + notificationType);
-        mNotificationManager.notify(notificationType, notification);
-        mCurrentNotification = notificationType;
+        Log.i(this, "Displaying notification for " + content.type);
+        mNotificationManager.notify(content.type, notification);
+        mCurrentNotification = content.type;
     }
 
     private boolean isMoreOptionRequired(Call call) {
@@ -372,10 +572,11 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
     }
 
     private void createIncomingCallNotification(
-            Call call, int state, Notification.Builder builder) {
+            NotificationContent content, Notification.Builder builder) {
+        final int state = content.state;
         if (state == Call.State.ACTIVE) {
             builder.setUsesChronometer(true);
-            builder.setWhen(call.getConnectTimeMillis());
+            builder.setWhen(content.connectTimeMillis);
         } else {
             builder.setUsesChronometer(false);
         }
@@ -390,9 +591,9 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
             if (BlacklistUtils.isBlacklistEnabled(mContext)) {
                 addBlockAction(builder);
             }
-            if (call.isVideoCall(mContext)) {
+            if (content.isVideoCall) {
                 addVoiceAction(builder);
-                if (QtiCallUtils.useExt(mContext)) {
+                if (content.useExt) {
                     addMoreAction(builder);
                 } else {
                     addVideoCallAction(builder);
@@ -403,48 +604,6 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
         }
     }
 
-    /**
-     * Checks the new notification data and compares it against any notification that we
-     * are already displaying. If the data is exactly the same, we return false so that
-     * we do not issue a new notification for the exact same data.
-     */
-    private boolean checkForChangeAndSaveData(int icon, String content, Bitmap largeIcon,
-            String contentTitle, int state, int notificationType) {
-
-        // The two are different:
-        // if new title is not null, it should be different from saved version OR
-        // if new title is null, the saved version should not be null
-        final boolean contentTitleChanged =
-                (contentTitle != null && !contentTitle.equals(mSavedContentTitle)) ||
-                (contentTitle == null && mSavedContentTitle != null);
-
-        // any change means we are definitely updating
-        boolean retval = (mSavedIcon != icon) || !Objects.equals(mSavedContent, content) ||
-                (mCallState != state) || (mSavedLargeIcon != largeIcon) ||
-                contentTitleChanged;
-
-        // If we aren't showing a notification right now or the notification type is changing,
-        // definitely do an update.
-        if (mCurrentNotification != notificationType) {
-            if (mCurrentNotification == NOTIFICATION_NONE) {
-                Log.d(this, "Showing notification for first time.");
-            }
-            retval = true;
-        }
-
-        mSavedIcon = icon;
-        mSavedContent = content;
-        mCallState = state;
-        mSavedLargeIcon = largeIcon;
-        mSavedContentTitle = contentTitle;
-
-        if (retval) {
-            Log.d(this, "Data changed.  Showing notification");
-        }
-
-        return retval;
-    }
-
     /**
      * Returns the main string to use in the notification.
      */
@@ -468,32 +627,31 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
         return contactInfo.name;
     }
 
-    private void addPersonReference(Notification.Builder builder, ContactCacheEntry contactInfo,
-            Call call) {
-        if (contactInfo.lookupUri != null) {
-            builder.addPerson(contactInfo.lookupUri.toString());
-        } else if (!TextUtils.isEmpty(call.getNumber())) {
-            builder.addPerson(Uri.fromParts(PhoneAccount.SCHEME_TEL,
-                            call.getNumber(), null).toString());
-        }
-    }
-
     /**
-     * Gets a large icon from the contact info object to display in the notification.
+     * Gets the rounded large icon of the notification, rounding the photo or decoding the avatar
+     * only once per contact. Called on the worker thread.
      */
-    private Bitmap getLargeIconToDisplay(ContactCacheEntry contactInfo, Call call) {
-        Bitmap largeIcon = null;
-        if (call.isConferenceCall() && !call.hasProperty(Details.PROPERTY_GENERIC_CONFERENCE)) {
-            largeIcon = BitmapFactory.decodeResource(mContext.getResources(),
-                    R.drawable.img_conference);
-        } else if (contactInfo.isSpam) {
-            largeIcon = BitmapFactory.decodeResource(mContext.getResources(),
-                    R.drawable.ic_spam_avatar);
+    private Bitmap getRoundedLargeIcon(NotificationContent content) {
+        final String key;
+        if (content.photo != null) {
+            key = content.person;
+        } else if (content.largeIconResId != 0) {
+            key = "res:" + content.largeIconResId;
+        } else {
+            return null;
         }
-        if (contactInfo.photo != null && (contactInfo.photo instanceof BitmapDrawable)) {
-            largeIcon = ((BitmapDrawable) contactInfo.photo).getBitmap();
+
+        final RoundedIcon cached = key == null ? null : mRoundedIcons.get(key);
+        if (cached != null && cached.source == content.photo) {
+            return cached.rounded;
+        }
+        final Bitmap source = content.photo != null ? content.photo
+                : BitmapFactory.decodeResource(mContext.getResources(), content.largeIconResId);
+        final Bitmap rounded = getRoundedIcon(source);
+        if (key != null && rounded != null) {
+            mRoundedIcons.put(key, new RoundedIcon(content.photo, rounded));
         }
-        return largeIcon;
+        return rounded;
     }
 
     private Bitmap getRoundedIcon(Bitmap bitmap) {
@@ -690,8 +848,7 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
     /**
      * Adds fullscreen intent to the builder.
      */
-    private void configureFullScreenIntent(Notification.Builder builder, PendingIntent intent,
-            Call call) {
+    private void configureFullScreenIntent(Notification.Builder builder, PendingIntent intent) {
         // Ok, we actually want to launch the incoming call
         // UI at this point (in addition to simply posting a notification
         // to the status bar).  Setting fullScreenIntent will cause
@@ -699,7 +856,13 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
         // current foreground activity is marked as "immersive".
         Log.d(this, "- Setting fullScreenIntent: " + intent);
         builder.setFullScreenIntent(intent, true);
+    }
 
+    /**
+     * @return {@code true} if the in-call notification must be cancelled before posting the
+     *         incoming call notification, for its full screen intent to be launched.
+     */
+    private boolean isCallWaiting(Call call) {
         // Ugly hack alert:
         //
         // The NotificationManager has the (undocumented) behavior
@@ -734,13 +897,10 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
                 callList.isAnyOtherSubActive(callList.getActiveSubId()))));
 
         if (isCallWaiting) {
-            Log.i(this, "configureFullScreenIntent: call-waiting or dsda incoming call!"
+            Log.i(this, "isCallWaiting: call-waiting or dsda incoming call!"
                     + " force relaunch. Active sub:" + callList.getActiveSubId());
-            // Cancel the IN_CALL_NOTIFICATION immediately before
-            // (re)posting it; this seems to force the
-            // NotificationManager to launch the fullScreenIntent.
-            mNotificationManager.cancel(NOTIFICATION_IN_CALL);
         }
+        return isCallWaiting;
     }
 
     private Notification.Builder getNotificationBuilder() {
@@ -753,11 +913,7 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
         return builder;
     }
 
-    private PendingIntent createLaunchPendingIntent() {
-
-        final Intent intent = InCallPresenter.getInstance().getInCallIntent(
-                false /* showDialpad */, false /* newOutgoingCall */);
-
+    private PendingIntent createLaunchPendingIntent(Intent intent) {
         // PendingIntent that can be used to launch the InCallActivity.  The
         // system fires off this intent if the user pulls down the windowshade
         // and clicks the notification's expanded view.  It's also used to
@@ -768,6 +924,19 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
         return inCallPendingIntent;
     }
 
+    /**
+     * Returns the handler notifications are built on, starting its thread on first use.
+     */
+    private static synchronized Handler getWorkerHandler() {
+        if (sWorkerHandler == null) {
+            sWorkerThread = new HandlerThread("StatusBarNotifier",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            sWorkerThread.start();
+            sWorkerHandler = new Handler(sWorkerThread.getLooper());
+        }
+        return sWorkerHandler;
+    }
+
     /**
      * Returns PendingIntent for answering a phone call. This will typically be used from
      * Notification context.
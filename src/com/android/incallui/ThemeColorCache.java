@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.content.ComponentCallbacks;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.content.res.TypedArray;
+import android.telecom.PhoneAccount;
+import android.telecom.PhoneAccountHandle;
+import android.util.SparseArray;
+
+import com.android.contacts.common.util.MaterialColorMapUtils.MaterialPalette;
+
+import java.util.HashMap;
+
+/**
+ * Cache of the theme colors of the in-call UI, by {@link PhoneAccount} highlight color and by
+ * account handle, so that theming the UI on every call transition is a lookup.
+ *
+ * The palettes of the SIM colors are read from the resource arrays once. Other highlight
+ * colors are approximated by {@link InCallUIMaterialColorMapUtils} the first time they are
+ * seen. Everything is dropped when the configuration changes, and the palettes by handle also
+ * when the accounts change. Only accessed from the main thread.
+ */
+public class ThemeColorCache implements PhoneAccountCache.Listener, ComponentCallbacks {
+
+    private static ThemeColorCache sInstance;
+
+    /** Palettes by highlight color, {@code null} until first used. */
+    private SparseArray<MaterialPalette> mPalettesByColor;
+    private final HashMap<PhoneAccountHandle, MaterialPalette> mPalettesByHandle =
+            new HashMap<PhoneAccountHandle, MaterialPalette>();
+    private InCallUIMaterialColorMapUtils mColorMapUtils;
+
+    private Context mContext;
+    private boolean mIsSetUp = false;
+
+    public static synchronized ThemeColorCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new ThemeColorCache();
+        }
+        return sInstance;
+    }
+
+    private ThemeColorCache() {
+    }
+
+    /**
+     * Starts following the configuration and account changes. Must be called after
+     * {@link PhoneAccountCache#setUp}.
+     */
+    public void setUp(Context context) {
+        mContext = context.getApplicationContext();
+        if (!mIsSetUp) {
+            mContext.registerComponentCallbacks(this);
+            PhoneAccountCache.getInstance().addListener(this);
+            mIsSetUp = true;
+        }
+    }
+
+    /**
+     * Stops following the changes, and drops the cached palettes since they could go stale
+     * until the next bind.
+     */
+    public void tearDown() {
+        if (mIsSetUp) {
+            mContext.unregisterComponentCallbacks(this);
+            PhoneAccountCache.getInstance().removeListener(this);
+            mIsSetUp = false;
+        }
+        invalidate();
+    }
+
+    /**
+     * @return The palette for the account of the handle, the default palette if the handle is
+     *         {@code null} or its account has no highlight color or is not loaded yet.
+     */
+    public MaterialPalette getPalette(PhoneAccountHandle handle) {
+        MaterialPalette palette = mPalettesByHandle.get(handle);
+        if (palette != null) {
+            return palette;
+        }
+
+        // For single-sim devices, there will be no selected highlight color, so the phone
+        // account will default to NO_HIGHLIGHT_COLOR.
+        final PhoneAccount account = PhoneAccountCache.getInstance().getPhoneAccount(handle);
+        palette = getPalette(account != null
+                ? account.getHighlightColor() : PhoneAccount.NO_HIGHLIGHT_COLOR);
+        if (account != null) {
+            // Accounts not loaded yet are looked up again, they are cached once they are.
+            mPalettesByHandle.put(handle, palette);
+        }
+        return palette;
+    }
+
+    /**
+     * @return The palette for the highlight color of an account.
+     */
+    public MaterialPalette getPalette(int highlightColor) {
+        if (mPalettesByColor == null) {
+            mPalettesByColor = loadPalettes(mContext.getResources());
+        }
+        MaterialPalette palette = mPalettesByColor.get(highlightColor);
+        if (palette == null) {
+            if (mColorMapUtils == null) {
+                mColorMapUtils = new InCallUIMaterialColorMapUtils(mContext.getResources());
+            }
+            palette = mColorMapUtils.calculatePrimaryAndSecondaryColor(highlightColor);
+            mPalettesByColor.put(highlightColor, palette);
+        }
+        return palette;
+    }
+
+    private static SparseArray<MaterialPalette> loadPalettes(Resources resources) {
+        final TypedArray primaryColors = resources.obtainTypedArray(R.array.background_colors);
+        final TypedArray secondaryColors =
+                resources.obtainTypedArray(R.array.background_colors_dark);
+        final SparseArray<MaterialPalette> palettes =
+                new SparseArray<MaterialPalette>(primaryColors.length() + 1);
+        palettes.put(PhoneAccount.NO_HIGHLIGHT_COLOR,
+                InCallUIMaterialColorMapUtils.getDefaultPrimaryAndSecondaryColors(resources));
+        // Iterate backwards so that the first of duplicate colors wins, like the linear search
+        // in InCallUIMaterialColorMapUtils.
+        for (int i = primaryColors.length() - 1; i >= 0; i--) {
+            final int primaryColor = primaryColors.getColor(i, 0);
+            palettes.put(primaryColor,
+                    new MaterialPalette(primaryColor, secondaryColors.getColor(i, 0)));
+        }
+        primaryColors.recycle();
+        secondaryColors.recycle();
+        return palettes;
+    }
+
+    private void invalidate() {
+        mPalettesByColor = null;
+        mPalettesByHandle.clear();
+        mColorMapUtils = null;
+    }
+
+    @Override
+    public void onPhoneAccountsChanged() {
+        mPalettesByHandle.clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        invalidate();
+    }
+
+    @Override
+    public void onLowMemory() {
+    }
+
+    @Override
+    public String toString() {
+        return "ThemeColorCache[colors="
+                + (mPalettesByColor == null ? 0 : mPalettesByColor.size())
+                + ", handles=" + mPalettesByHandle.size() + "]";
+    }
+}
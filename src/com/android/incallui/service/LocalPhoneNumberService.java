@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui.service;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PhoneNumberService} answering from a {@link PhoneNumberDirectory} kept on the device,
+ * without any network access. Numbers missing from the directory are passed on to the fallback
+ * service, if any.
+ *
+ * The directory is loaded from {@link #DIRECTORY_FILE_NAME} in the files directory on the first
+ * lookup, and entries can be added with {@link #importFile}. Lookups and image loads run on a
+ * small pool of threads; the listeners are called on the main thread. Images are read through
+ * the content resolver, so the image urls are {@code file}, {@code content} or
+ * {@code android.resource} uris, and the decoded images are kept in an LRU cache.
+ */
+public class LocalPhoneNumberService implements PhoneNumberService {
+    private static final String TAG = LocalPhoneNumberService.class.getSimpleName();
+
+    public static final String DIRECTORY_FILE_NAME = "phone_number_directory.txt";
+
+    private static final int MAX_CONCURRENT_LOOKUPS = 2;
+    private static final long IDLE_THREAD_TIMEOUT_MS = 10000;
+    private static final int IMAGE_CACHE_SIZE_BYTES = 1024 * 1024;
+
+    private final Context mContext;
+    private final PhoneNumberService mFallback;
+    private final PhoneNumberDirectory mDirectory;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mExecutor;
+    private final LruCache<String, Bitmap> mImageCache =
+            new LruCache<String, Bitmap>(IMAGE_CACHE_SIZE_BYTES) {
+                @Override
+                protected int sizeOf(String url, Bitmap bitmap) {
+                    return bitmap.getByteCount();
+                }
+            };
+
+    private boolean mIsLoaded = false;
+
+    /**
+     * @param fallback The service to look up the numbers missing from the directory, or
+     *        {@code null}.
+     */
+    public LocalPhoneNumberService(Context context, PhoneNumberService fallback) {
+        mContext = context.getApplicationContext();
+        mFallback = fallback;
+        // Entries and calls are matched by their numbers in the format of the SIM country.
+        mDirectory = new PhoneNumberDirectory(((TelephonyManager) mContext.getSystemService(
+                Context.TELEPHONY_SERVICE)).getSimCountryIso());
+        mExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_LOOKUPS, MAX_CONCURRENT_LOOKUPS,
+                IDLE_THREAD_TIMEOUT_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void getPhoneNumberInfo(final String phoneNumber, final NumberLookupListener listener,
+            final ImageLookupListener imageListener, final boolean isIncoming) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ensureLoaded();
+                final PhoneNumberDirectory.Entry entry = mDirectory.lookup(phoneNumber);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (entry == null) {
+                            if (mFallback != null) {
+                                mFallback.getPhoneNumberInfo(phoneNumber, listener, imageListener,
+                                        isIncoming);
+                            } else {
+                                listener.onPhoneNumberInfoComplete(null);
+                            }
+                            return;
+                        }
+                        listener.onPhoneNumberInfoComplete(new Info(phoneNumber, entry));
+                        if (entry.imageUrl != null && imageListener != null) {
+                            fetchImage(entry.imageUrl, imageListener);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Adds the entries of the file to the directory, in the background, and keeps them for the
+     * next time the directory is loaded. See {@link PhoneNumberDirectory} for the format.
+     */
+    public void importFile(final File file) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ensureLoaded();
+                try {
+                    final int count = readInto(new FileInputStream(file));
+                    appendToDirectoryFile(file);
+                    Log.d(TAG, "Imported " + count + " entries");
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to import " + file, e);
+                }
+            }
+        });
+    }
+
+    private synchronized void ensureLoaded() {
+        if (mIsLoaded) {
+            return;
+        }
+        mIsLoaded = true;
+        try {
+            final int count = readInto(mContext.openFileInput(DIRECTORY_FILE_NAME));
+            Log.d(TAG, "Loaded " + count + " entries");
+        } catch (FileNotFoundException e) {
+            // Nothing was imported yet.
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to load the directory", e);
+        }
+    }
+
+    private int readInto(InputStream in) throws IOException {
+        try {
+            return mDirectory.importFrom(new InputStreamReader(in, StandardCharsets.UTF_8));
+        } finally {
+            in.close();
+        }
+    }
+
+    private synchronized void appendToDirectoryFile(File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        final OutputStream out = mContext.openFileOutput(DIRECTORY_FILE_NAME,
+                Context.MODE_PRIVATE | Context.MODE_APPEND);
+        try {
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            // Keep the next import on its own line.
+            out.write('\n');
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private void fetchImage(final String imageUrl, final ImageLookupListener imageListener) {
+        final Bitmap cached = mImageCache.get(imageUrl);
+        if (cached != null) {
+            imageListener.onImageFetchComplete(cached);
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = decodeImage(imageUrl);
+                if (bitmap != null) {
+                    mImageCache.put(imageUrl, bitmap);
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        imageListener.onImageFetchComplete(bitmap);
+                    }
+                });
+            }
+        });
+    }
+
+    private Bitmap decodeImage(String imageUrl) {
+        InputStream in = null;
+        try {
+            in = mContext.getContentResolver().openInputStream(Uri.parse(imageUrl));
+            return in == null ? null : BitmapFactory.decodeStream(in);
+        } catch (FileNotFoundException | SecurityException e) {
+            Log.w(TAG, "Failed to load image " + imageUrl, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    /**
+     * A directory entry, as the info of the number looked up.
+     */
+    private static class Info implements PhoneNumberInfo {
+        private final String mNumber;
+        private final PhoneNumberDirectory.Entry mEntry;
+
+        Info(String number, PhoneNumberDirectory.Entry entry) {
+            mNumber = number;
+            mEntry = entry;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return mEntry.name;
+        }
+
+        @Override
+        public String getNumber() {
+            return mNumber;
+        }
+
+        @Override
+        public int getPhoneType() {
+            if (mEntry.label != null) {
+                return Phone.TYPE_CUSTOM;
+            }
+            return mEntry.isBusiness ? Phone.TYPE_COMPANY_MAIN : Phone.TYPE_OTHER;
+        }
+
+        @Override
+        public String getPhoneLabel() {
+            return mEntry.label;
+        }
+
+        @Override
+        public String getNormalizedNumber() {
+            return PhoneNumberUtils.normalizeNumber(mNumber);
+        }
+
+        @Override
+        public String getImageUrl() {
+            return mEntry.imageUrl;
+        }
+
+        @Override
+        public boolean isBusiness() {
+            return mEntry.isBusiness;
+        }
+    }
+}
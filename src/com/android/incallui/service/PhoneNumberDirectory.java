@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui.service;
+
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+
+import com.google.i18n.phonenumbers.PhoneNumberUtil;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * On-device directory of known phone numbers, e.g. business lines, indexed by a trie of their
+ * digits. A lookup returns the entry of the longest number prefix matching the number, so an
+ * entry can stand for a single number or for a whole block of numbers.
+ *
+ * Entries are imported from text, one per line, with tab separated fields:
+ * {@code number name [label [image url [business]]]}. Only the digits of the number are kept.
+ * The business field is {@code 1} or {@code 0}, and defaults to {@code 1}. Empty lines and lines
+ * starting with {@code #} are skipped.
+ *
+ * When created for a country, numbers and queries are normalized the same way: full numbers to
+ * E.164, and prefixes and short numbers, which do not parse, by replacing their national prefix
+ * with the country calling code. An entry in national format then matches a number telecom
+ * delivers in E.164 format.
+ *
+ * Safe for concurrent lookups; imports block lookups only while they insert their entries.
+ */
+public class PhoneNumberDirectory {
+
+    /**
+     * An entry of the directory.
+     */
+    public static class Entry {
+        public final String name;
+        public final String label;
+        public final String imageUrl;
+        public final boolean isBusiness;
+
+        public Entry(String name, String label, String imageUrl, boolean isBusiness) {
+            this.name = name;
+            this.label = label;
+            this.imageUrl = imageUrl;
+            this.isBusiness = isBusiness;
+        }
+    }
+
+    private static final int RADIX = 10;
+    private static final int NO_NODE = 0;
+    private static final int NO_ENTRY = -1;
+
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    private final String mCountryIso;
+    private final int mCountryCode;
+
+    // The trie is kept in flat arrays: node n has its children at mChildren[n * RADIX + digit],
+    // and its entry, if any, at mEntries.get(mNodeEntries[n]). Node 0 is the root, which no
+    // child points to, so 0 also marks a missing child.
+    private int[] mChildren = new int[64 * RADIX];
+    private int[] mNodeEntries = new int[64];
+    private int mNodeCount = 1;
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+
+    /**
+     * Creates a directory which indexes the digits of the numbers as they are.
+     */
+    public PhoneNumberDirectory() {
+        this(null);
+    }
+
+    /**
+     * @param countryIso The country the numbers are normalized for, or {@code null} to index the
+     *        digits of the numbers as they are.
+     */
+    public PhoneNumberDirectory(String countryIso) {
+        mCountryIso = TextUtils.isEmpty(countryIso) ? null : countryIso.toUpperCase();
+        mCountryCode = mCountryIso == null
+                ? 0 : PhoneNumberUtil.getInstance().getCountryCodeForRegion(mCountryIso);
+        Arrays.fill(mNodeEntries, NO_ENTRY);
+    }
+
+    /**
+     * @return The number in the form it is indexed with.
+     */
+    private String normalize(String number) {
+        if (mCountryCode == 0) {
+            return number;
+        }
+        final String e164 = PhoneNumberUtils.formatNumberToE164(number, mCountryIso);
+        if (e164 != null) {
+            return e164;
+        }
+        String digits = PhoneNumberUtils.normalizeNumber(number);
+        if (digits.isEmpty() || digits.charAt(0) == '+') {
+            return digits;
+        }
+        final String nationalPrefix =
+                PhoneNumberUtil.getInstance().getNddPrefixForRegion(mCountryIso, true);
+        if (!TextUtils.isEmpty(nationalPrefix) && digits.startsWith(nationalPrefix)) {
+            digits = digits.substring(nationalPrefix.length());
+        }
+        return "+" + mCountryCode + digits;
+    }
+
+    /**
+     * Adds the entry for the number or number prefix, replacing the entry it had.
+     *
+     * @return {@code false} if the number has no digits.
+     */
+    public boolean put(String number, Entry entry) {
+        mLock.writeLock().lock();
+        try {
+            return putLocked(number, entry);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    private boolean putLocked(String rawNumber, Entry entry) {
+        final String number = normalize(rawNumber);
+        int node = 0;
+        boolean hasDigits = false;
+        for (int i = 0; i < number.length(); i++) {
+            final int digit = Character.digit(number.charAt(i), RADIX);
+            if (digit < 0) {
+                continue;
+            }
+            hasDigits = true;
+            final int child = node * RADIX + digit;
+            if (mChildren[child] == NO_NODE) {
+                mChildren[child] = newNode();
+            }
+            node = mChildren[child];
+        }
+        if (!hasDigits) {
+            return false;
+        }
+        if (mNodeEntries[node] == NO_ENTRY) {
+            mNodeEntries[node] = mEntries.size();
+            mEntries.add(entry);
+        } else {
+            mEntries.set(mNodeEntries[node], entry);
+        }
+        return true;
+    }
+
+    private int newNode() {
+        if (mNodeCount == mNodeEntries.length) {
+            final int capacity = mNodeCount * 2;
+            mChildren = Arrays.copyOf(mChildren, capacity * RADIX);
+            mNodeEntries = Arrays.copyOf(mNodeEntries, capacity);
+            Arrays.fill(mNodeEntries, mNodeCount, capacity, NO_ENTRY);
+        }
+        return mNodeCount++;
+    }
+
+    /**
+     * @return The entry of the longest prefix of the number in the directory, or {@code null}.
+     */
+    public Entry lookup(String number) {
+        if (TextUtils.isEmpty(number)) {
+            return null;
+        }
+        number = normalize(number);
+        mLock.readLock().lock();
+        try {
+            int node = 0;
+            int entry = NO_ENTRY;
+            for (int i = 0; i < number.length(); i++) {
+                final int digit = Character.digit(number.charAt(i), RADIX);
+                if (digit < 0) {
+                    continue;
+                }
+                node = mChildren[node * RADIX + digit];
+                if (node == NO_NODE) {
+                    break;
+                }
+                if (mNodeEntries[node] != NO_ENTRY) {
+                    entry = mNodeEntries[node];
+                }
+            }
+            return entry == NO_ENTRY ? null : mEntries.get(entry);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Imports the entries of the text.
+     *
+     * @return The number of entries imported.
+     */
+    public int importFrom(Reader reader) throws IOException {
+        final BufferedReader lines = new BufferedReader(reader);
+        final ArrayList<String> numbers = new ArrayList<String>();
+        final ArrayList<Entry> entries = new ArrayList<Entry>();
+        String line;
+        // Parse everything first, so that lookups are not blocked on I/O.
+        while ((line = lines.readLine()) != null) {
+            final Entry entry = parseEntry(line);
+            if (entry != null) {
+                numbers.add(line.substring(0, line.indexOf('\t')));
+                entries.add(entry);
+            }
+        }
+
+        int count = 0;
+        mLock.writeLock().lock();
+        try {
+            for (int i = 0; i < entries.size(); i++) {
+                if (putLocked(numbers.get(i), entries.get(i))) {
+                    count++;
+                }
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        return count;
+    }
+
+    private static Entry parseEntry(String line) {
+        if (line.isEmpty() || line.charAt(0) == '#') {
+            return null;
+        }
+        final String[] fields = line.split("\t", -1);
+        if (fields.length < 2 || TextUtils.isEmpty(fields[1])) {
+            return null;
+        }
+        return new Entry(fields[1],
+                fields.length > 2 && !fields[2].isEmpty() ? fields[2] : null,
+                fields.length > 3 && !fields[3].isEmpty() ? fields[3] : null,
+                fields.length <= 4 || !"0".equals(fields[4]));
+    }
+
+    /**
+     * @return The number of entries in the directory.
+     */
+    public int size() {
+        mLock.readLock().lock();
+        try {
+            return mEntries.size();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+}
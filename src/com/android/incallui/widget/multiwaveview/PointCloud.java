@@ -22,20 +22,56 @@ import android.graphics.Paint;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
 
-import java.util.ArrayList;
-
 public class PointCloud {
     private static final float MIN_POINT_SIZE = 2.0f;
     private static final float MAX_POINT_SIZE = 4.0f;
     private static final int INNER_POINTS = 8;
     private static final String TAG = "PointCloud";
-    private ArrayList<Point> mPointCloud = new ArrayList<Point>();
+    private static final float PI = (float) Math.PI;
+
+    /**
+     * Number of steps of the falloff lookup tables. Each table has one more entry, so that the
+     * last step can be interpolated.
+     */
+    private static final int FALLOFF_STEPS = 256;
+    /**
+     * Glow falloff cos(PI/4 * d)^10, indexed by the squared distance d^2 in [0, 1] from the
+     * glow center, relative to the glow radius, so that drawing a point takes no square root.
+     */
+    private static final float[] GLOW_FALLOFF = new float[FALLOFF_STEPS + 1];
+    /**
+     * Wave falloff cos(PI/4 * d)^20, indexed by the distance d behind the wave ring relative to
+     * its width. The curve repeats every 4 widths, so the table only covers d in [0, 4].
+     */
+    private static final float[] WAVE_FALLOFF = new float[FALLOFF_STEPS + 1];
+    private static final float WAVE_FALLOFF_PERIOD = 4.0f;
+
+    static {
+        for (int i = 0; i <= FALLOFF_STEPS; i++) {
+            final double glowDistance = Math.sqrt((double) i / FALLOFF_STEPS);
+            GLOW_FALLOFF[i] = (float) Math.max(0.0d,
+                    Math.pow(Math.cos(Math.PI * 0.25d * glowDistance), 10.0d));
+            final double waveDistance = WAVE_FALLOFF_PERIOD * i / FALLOFF_STEPS;
+            WAVE_FALLOFF[i] = (float) Math.max(0.0d,
+                    Math.pow(Math.cos(Math.PI * 0.25d * waveDistance), 20.0d));
+        }
+    }
+
+    // Points of the cloud relative to its center, with their distance to the center and their
+    // size, in parallel arrays so that drawing a frame neither allocates nor boxes.
+    private int mPointCount = 0;
+    private float[] mPointX = new float[0];
+    private float[] mPointY = new float[0];
+    private float[] mPointRadius = new float[0];
+    private float[] mPointSize = new float[0];
+
     private Drawable mDrawable;
+    private float mDrawableHalfWidth;
+    private float mDrawableHalfHeight;
     private float mCenterX;
     private float mCenterY;
     private Paint mPaint;
     private float mScale = 1.0f;
-    private static final float PI = (float) Math.PI;
 
     // These allow us to have multiple concurrent animations.
     WaveManager waveManager = new WaveManager();
@@ -102,18 +138,6 @@ public class PointCloud {
         }
     }
 
-    class Point {
-        float x;
-        float y;
-        float radius;
-
-        public Point(float x2, float y2, float r) {
-            x = (float) x2;
-            y = (float) y2;
-            radius = r;
-        }
-    }
-
     public PointCloud(Drawable drawable) {
         mPaint = new Paint();
         mPaint.setFilterBitmap(true);
@@ -124,6 +148,8 @@ public class PointCloud {
         mDrawable = drawable;
         if (mDrawable != null) {
             drawable.setBounds(0, 0, drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight());
+            mDrawableHalfWidth = drawable.getIntrinsicWidth() * 0.5f;
+            mDrawableHalfHeight = drawable.getIntrinsicHeight() * 0.5f;
         }
     }
 
@@ -138,24 +164,40 @@ public class PointCloud {
             return;
         }
         mOuterRadius = outerRadius;
-        mPointCloud.clear();
         final float pointAreaRadius =  (outerRadius - innerRadius);
         final float ds = (2.0f * PI * innerRadius / INNER_POINTS);
         final int bands = (int) Math.round(pointAreaRadius / ds);
         final float dr = pointAreaRadius / bands;
+
+        int pointCount = 0;
         float r = innerRadius;
+        for (int b = 0; b <= bands; b++, r += dr) {
+            pointCount += (int) (2.0f * PI * r / ds);
+        }
+        if (mPointX.length < pointCount) {
+            mPointX = new float[pointCount];
+            mPointY = new float[pointCount];
+            mPointRadius = new float[pointCount];
+            mPointSize = new float[pointCount];
+        }
+
+        int p = 0;
+        r = innerRadius;
         for (int b = 0; b <= bands; b++, r += dr) {
             float circumference = 2.0f * PI * r;
             final int pointsInBand = (int) (circumference / ds);
+            final float pointSize = interp(MAX_POINT_SIZE, MIN_POINT_SIZE, r / mOuterRadius);
             float eta = PI/2.0f;
             float dEta = 2.0f * PI / pointsInBand;
-            for (int i = 0; i < pointsInBand; i++) {
-                float x = r * (float) Math.cos(eta);
-                float y = r * (float) Math.sin(eta);
+            for (int i = 0; i < pointsInBand; i++, p++) {
+                mPointX[p] = r * (float) Math.cos(eta);
+                mPointY[p] = r * (float) Math.sin(eta);
+                mPointRadius[p] = r;
+                mPointSize[p] = pointSize;
                 eta += dEta;
-                mPointCloud.add(new Point(x, y, r));
             }
         }
+        mPointCount = pointCount;
     }
 
     public void setScale(float scale) {
@@ -166,64 +208,79 @@ public class PointCloud {
         return mScale;
     }
 
-    private static float hypot(float x, float y) {
-        return (float) Math.hypot(x, y);
-    }
-
     private static float max(float a, float b) {
         return a > b ? a : b;
     }
 
-    public int getAlphaForPoint(Point point) {
+    /**
+     * @return The value of the table at the position in [0, 1], linearly interpolated.
+     */
+    private static float lookUp(float[] table, float position) {
+        final float index = position * FALLOFF_STEPS;
+        final int i = (int) index;
+        if (i >= FALLOFF_STEPS) {
+            return table[FALLOFF_STEPS];
+        }
+        return table[i] + (table[i + 1] - table[i]) * (index - i);
+    }
+
+    private int getAlphaForPoint(int point) {
         // Contribution from positional glow
-        float glowDistance = hypot(glowManager.x - point.x, glowManager.y - point.y);
         float glowAlpha = 0.0f;
-
-        if (glowDistance < glowManager.radius) {
-            double cos = Math.cos(Math.PI * 0.25d * glowDistance / glowManager.radius);
-            glowAlpha = glowManager.alpha * max(0.0f, (float) Math.pow(cos, 10.0d));
+        if (glowManager.alpha > 0.0f && glowManager.radius > 0.0f) {
+            final float dx = glowManager.x - mPointX[point];
+            final float dy = glowManager.y - mPointY[point];
+            final float glowDistanceSquared = dx * dx + dy * dy;
+            final float glowRadiusSquared = glowManager.radius * glowManager.radius;
+            if (glowDistanceSquared < glowRadiusSquared) {
+                glowAlpha = glowManager.alpha
+                        * lookUp(GLOW_FALLOFF, glowDistanceSquared / glowRadiusSquared);
+            }
         }
 
         // Compute contribution from Wave
-        float radius = hypot(point.x, point.y);
-        float distanceToWaveRing = (radius - waveManager.radius);
         float waveAlpha = 0.0f;
-        if (distanceToWaveRing < waveManager.width * 0.5f && distanceToWaveRing < 0.0f) {
-            double cos = Math.cos(Math.PI * 0.25d * distanceToWaveRing / waveManager.width);
-            waveAlpha = waveManager.alpha * max(0.0f, (float) Math.pow(cos, 20.0d));
+        if (waveManager.alpha > 0.0f) {
+            final float distanceToWaveRing = (mPointRadius[point] - waveManager.radius);
+            if (distanceToWaveRing < waveManager.width * 0.5f && distanceToWaveRing < 0.0f) {
+                final float period = -distanceToWaveRing / waveManager.width
+                        / WAVE_FALLOFF_PERIOD;
+                waveAlpha = waveManager.alpha
+                        * lookUp(WAVE_FALLOFF, period - (int) period);
+            }
         }
 
         return (int) (max(glowAlpha, waveAlpha) * 255);
     }
 
-    private float interp(float min, float max, float f) {
+    private static float interp(float min, float max, float f) {
         return min + (max - min) * f;
     }
 
     public void draw(Canvas canvas) {
-        ArrayList<Point> points = mPointCloud;
+        if (glowManager.alpha <= 0.0f && waveManager.alpha <= 0.0f) {
+            // No point is visible.
+            return;
+        }
         canvas.save(Canvas.MATRIX_SAVE_FLAG);
         canvas.scale(mScale, mScale, mCenterX, mCenterY);
-        for (int i = 0; i < points.size(); i++) {
-            Point point = points.get(i);
-            final float pointSize = interp(MAX_POINT_SIZE, MIN_POINT_SIZE,
-                    point.radius / mOuterRadius);
-            final float px = point.x + mCenterX;
-            final float py = point.y + mCenterY;
-            int alpha = getAlphaForPoint(point);
+        for (int i = 0; i < mPointCount; i++) {
+            int alpha = getAlphaForPoint(i);
 
             if (alpha == 0) continue;
 
+            final float pointSize = mPointSize[i];
+            final float px = mPointX[i] + mCenterX;
+            final float py = mPointY[i] + mCenterY;
             if (mDrawable != null) {
-                canvas.save(Canvas.MATRIX_SAVE_FLAG);
-                final float cx = mDrawable.getIntrinsicWidth() * 0.5f;
-                final float cy = mDrawable.getIntrinsicHeight() * 0.5f;
+                // Same as scaling the canvas around the point, without saving and restoring it.
                 final float s = pointSize / MAX_POINT_SIZE;
-                canvas.scale(s, s, px, py);
-                canvas.translate(px - cx, py - cy);
+                final float halfWidth = mDrawableHalfWidth * s;
+                final float halfHeight = mDrawableHalfHeight * s;
+                mDrawable.setBounds(Math.round(px - halfWidth), Math.round(py - halfHeight),
+                        Math.round(px + halfWidth), Math.round(py + halfHeight));
                 mDrawable.setAlpha(alpha);
                 mDrawable.draw(canvas);
-                canvas.restore();
             } else {
                 mPaint.setAlpha(alpha);
                 canvas.drawCircle(px, py, pointSize, mPaint);
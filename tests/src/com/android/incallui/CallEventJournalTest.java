@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.incallui.InCallPresenter.InCallState;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+@SmallTest
+public class CallEventJournalTest extends AndroidTestCase {
+
+    private CallEventJournal mJournal;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mJournal = new CallEventJournal(2);
+    }
+
+    public void testDump_decodesEvents() {
+        mJournal.record(CallEventJournal.EVENT_CALL_STATE, "TC@1", Call.State.DIALING,
+                Call.State.ACTIVE, Call.SessionModificationState.NO_REQUEST);
+        mJournal.recordInCallState(InCallState.OUTGOING, InCallState.INCALL);
+
+        final String dump = dump();
+        assertTrue(dump.contains("2 of 2 events"));
+        assertTrue(dump.contains("Call.onStateChanged TC@1: DIALING -> ACTIVE"));
+        assertTrue(dump.contains("InCallPresenter.onStateChange: OUTGOING -> INCALL"));
+    }
+
+    public void testDump_overwritesOldestEvents() {
+        mJournal.record(CallEventJournal.EVENT_CALL_ADDED, "TC@1", Call.State.INVALID,
+                Call.State.INCOMING, Call.SessionModificationState.NO_REQUEST);
+        mJournal.record(CallEventJournal.EVENT_CALL_ADDED, "TC@2", Call.State.INVALID,
+                Call.State.INCOMING, Call.SessionModificationState.NO_REQUEST);
+        mJournal.record(CallEventJournal.EVENT_CALL_ADDED, "TC@3", Call.State.INVALID,
+                Call.State.INCOMING, Call.SessionModificationState.NO_REQUEST);
+
+        final String dump = dump();
+        assertEquals(3, mJournal.getEventCount());
+        assertTrue(dump.contains("2 of 3 events"));
+        assertFalse(dump.contains("TC@1"));
+        assertTrue(dump.indexOf("TC@2") < dump.indexOf("TC@3"));
+    }
+
+    private String dump() {
+        final StringWriter writer = new StringWriter();
+        mJournal.dump(new PrintWriter(writer));
+        return writer.toString();
+    }
+}
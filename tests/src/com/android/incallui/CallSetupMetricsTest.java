@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.incallui.CallSetupMetrics.Histogram;
+
+@SmallTest
+public class CallSetupMetricsTest extends AndroidTestCase {
+
+    private long mNow = 0;
+    private CallSetupMetrics mMetrics;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMetrics = new CallSetupMetrics() {
+            @Override
+            protected long now() {
+                return mNow;
+            }
+        };
+    }
+
+    public void testHistogram_percentiles() {
+        final Histogram histogram = new Histogram();
+        for (int i = 0; i < 9; i++) {
+            histogram.record(80);
+        }
+        histogram.record(1200);
+
+        assertEquals(10, histogram.getCount());
+        assertEquals(100, histogram.getPercentileMs(50));
+        assertEquals(100, histogram.getPercentileMs(90));
+        assertEquals(1200, histogram.getPercentileMs(99));
+        assertEquals(1200, histogram.getMaxMs());
+    }
+
+    public void testHistogram_overflowBucketReportsMax() {
+        final Histogram histogram = new Histogram();
+        histogram.record(9000);
+
+        assertEquals(9000, histogram.getPercentileMs(50));
+    }
+
+    public void testIncomingCall_recordsEachMilestoneOnce() {
+        final Call call = new Call(Call.State.INCOMING);
+        mMetrics.onCallAdded(call);
+
+        mNow = 120;
+        mMetrics.onFrame();
+        mMetrics.onFrame();
+        mNow = 300;
+        mMetrics.onNameShown(call.getId());
+        mMetrics.onNameShown(call.getId());
+
+        assertEquals(1, mMetrics.getHistogram(
+                CallSetupMetrics.SPAN_INCOMING_TO_FIRST_FRAME).getCount());
+        assertEquals(120, mMetrics.getHistogram(
+                CallSetupMetrics.SPAN_ADDED_TO_FIRST_FRAME).getMaxMs());
+        assertEquals(1, mMetrics.getHistogram(CallSetupMetrics.SPAN_INCOMING_TO_NAME).getCount());
+        assertEquals(0, mMetrics.getHistogram(
+                CallSetupMetrics.SPAN_INCOMING_TO_PHOTO).getCount());
+    }
+}
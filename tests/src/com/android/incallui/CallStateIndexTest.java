@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+@SmallTest
+public class CallStateIndexTest extends AndroidTestCase {
+
+    private CallStateIndex mIndex;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mIndex = new CallStateIndex();
+    }
+
+    public void testGetCallWithState_ordersByInsertion() {
+        Call first = new Call(Call.State.ONHOLD);
+        Call second = new Call(Call.State.ONHOLD);
+        mIndex.update(first);
+        mIndex.update(second);
+
+        assertSame(first, mIndex.getCallWithState(Call.State.ONHOLD, 0));
+        assertSame(second, mIndex.getCallWithState(Call.State.ONHOLD, 1));
+        assertNull(mIndex.getCallWithState(Call.State.ONHOLD, 2));
+        assertNull(mIndex.getCallWithState(Call.State.ACTIVE, 0));
+    }
+
+    public void testUpdate_movesCallBetweenStates() {
+        Call call = new Call(Call.State.DIALING);
+        mIndex.update(call);
+        call.setState(Call.State.ACTIVE);
+        mIndex.update(call);
+
+        assertNull(mIndex.getCallWithState(Call.State.DIALING, 0));
+        assertSame(call, mIndex.getCallWithState(Call.State.ACTIVE, 0));
+        assertEquals(1, mIndex.size());
+    }
+
+    public void testUpdate_keepsCreationOrderAcrossStateChanges() {
+        Call older = new Call(Call.State.ACTIVE);
+        Call newer = new Call(Call.State.ONHOLD);
+        mIndex.update(older);
+        mIndex.update(newer);
+
+        older.setState(Call.State.ONHOLD);
+        mIndex.update(older);
+
+        assertSame(older, mIndex.getCallWithState(Call.State.ONHOLD, 0));
+        assertSame(newer, mIndex.getCallWithState(Call.State.ONHOLD, 1));
+    }
+
+    public void testRemove() {
+        Call call = new Call(Call.State.INCOMING);
+        mIndex.update(call);
+        mIndex.remove(call);
+
+        assertNull(mIndex.getCallWithState(Call.State.INCOMING, 0));
+        assertEquals(0, mIndex.size());
+    }
+
+    public void testGetCallWithStateForSub_includesCallsWithoutAccount() {
+        // Calls without an account handle match every subscription.
+        Call call = new Call(Call.State.ACTIVE);
+        mIndex.update(call);
+
+        assertSame(call, mIndex.getCallWithState(Call.State.ACTIVE, 0, 1));
+        assertSame(call, mIndex.getCallWithState(Call.State.ACTIVE, 0, 2));
+        assertNull(mIndex.getCallWithState(Call.State.ACTIVE, 1, 1));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.incallui.ContactInfoCache.ContactCacheEntry;
+
+@SmallTest
+public class ContactInfoNumberCacheTest extends AndroidTestCase {
+
+    private static final long TTL_MS = 1000;
+
+    private long mNow = 0;
+    private ContactInfoNumberCache mCache;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mCache = new ContactInfoNumberCache(2, TTL_MS, 1024) {
+            @Override
+            protected long now() {
+                return mNow;
+            }
+        };
+    }
+
+    public void testGet_normalizesNumber() {
+        mCache.put("(650) 555-1234", newEntry("Alice"));
+
+        assertEquals("Alice", mCache.get("6505551234").name);
+        assertEquals(1, mCache.getHitCount());
+    }
+
+    public void testGet_returnsCopy() {
+        mCache.put("6505551234", newEntry("Alice"));
+        mCache.get("6505551234").name = "Bob";
+
+        assertEquals("Alice", mCache.get("6505551234").name);
+    }
+
+    public void testGet_expiresAfterTtl() {
+        mCache.put("6505551234", newEntry("Alice"));
+        mNow += TTL_MS;
+
+        assertNull(mCache.get("6505551234"));
+        assertEquals(1, mCache.getMissCount());
+        assertEquals(1, mCache.getExpiredCount());
+        assertEquals(0, mCache.size());
+    }
+
+    public void testPut_evictsLeastRecentlyUsed() {
+        mCache.put("1111", newEntry("One"));
+        mCache.put("2222", newEntry("Two"));
+        mCache.get("1111");
+        mCache.put("3333", newEntry("Three"));
+
+        assertNotNull(mCache.get("1111"));
+        assertNull(mCache.get("2222"));
+        assertNotNull(mCache.get("3333"));
+        assertEquals(1, mCache.getEvictionCount());
+    }
+
+    public void testInvalidateAll() {
+        mCache.put("1111", newEntry("One"));
+        mCache.invalidateAll();
+
+        assertNull(mCache.get("1111"));
+        assertEquals(0, mCache.size());
+    }
+
+    private static ContactCacheEntry newEntry(String name) {
+        final ContactCacheEntry entry = new ContactCacheEntry();
+        entry.name = name;
+        return entry;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+@SmallTest
+public class ContactsAsyncHelperTest extends AndroidTestCase {
+
+    public void testGetSampleSize_smallerThanTarget() {
+        assertEquals(1, ContactsAsyncHelper.getSampleSize(96, 96, 1080));
+    }
+
+    public void testGetSampleSize_keepsShorterEdgeAboveTarget() {
+        assertEquals(2, ContactsAsyncHelper.getSampleSize(2160, 2160, 1080));
+        assertEquals(2, ContactsAsyncHelper.getSampleSize(3000, 4000, 1080));
+        assertEquals(4, ContactsAsyncHelper.getSampleSize(4320, 5000, 1080));
+    }
+
+    public void testGetSampleSize_invalidTarget() {
+        assertEquals(1, ContactsAsyncHelper.getSampleSize(720, 720, 0));
+    }
+}
@@ -17,6 +17,7 @@
 package com.android.incallui;
 
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -26,11 +27,14 @@ import android.telecom.PhoneAccountHandle;
 import android.test.InstrumentationTestCase;
 
 import com.android.incallui.InCallPresenter.InCallState;
+import com.android.incallui.InCallPresenter.InCallStateListener;
 
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import java.util.Collections;
+
 public class InCallPresenterTest extends InstrumentationTestCase {
     private MockCallListWrapper mCallList;
     @Mock private InCallActivity mInCallActivity;
@@ -38,6 +42,7 @@ public class InCallPresenterTest extends InstrumentationTestCase {
     @Mock private StatusBarNotifier mStatusBarNotifier;
     @Mock private ContactInfoCache mContactInfoCache;
     @Mock private ProximitySensor mProximitySensor;
+    @Mock private InCallStateListener mInCallStateListener;
 
     InCallPresenter mInCallPresenter;
     @Mock private Context mContext;
@@ -161,6 +166,32 @@ public class InCallPresenterTest extends InstrumentationTestCase {
         verify(mInCallActivity).finish();
     }
 
+    /**
+     * Verifies that switching the active subscription of a DSDA device reaches the listeners,
+     * although no call changed.
+     */
+    public void testOnCallListChange_activeSubSwitchNotifiesListeners() {
+        final CallListChange.Tracker tracker = new CallListChange.Tracker();
+        final CallList callList = mCallList.getCallList();
+        mCallList.setHasCall(Call.State.ACTIVE, true);
+        mInCallPresenter.addListener(mInCallStateListener);
+        tracker.computeAndReset(Collections.<String, Call>emptyMap(), 1);
+        mInCallPresenter.onCallListChange(callList);
+
+        // Nothing changed: suppressed.
+        mInCallPresenter.onCallListChange(callList,
+                tracker.computeAndReset(Collections.<String, Call>emptyMap(), 1));
+        verify(mInCallStateListener, times(1)).onStateChange(Mockito.any(InCallState.class),
+                Mockito.eq(InCallState.INCALL), Mockito.eq(callList));
+
+        final CallListChange change =
+                tracker.computeAndReset(Collections.<String, Call>emptyMap(), 2);
+        assertTrue(change.isActiveSubChanged());
+        assertFalse(change.isEmpty());
+        mInCallPresenter.onCallListChange(callList, change);
+        verify(mInCallStateListener, times(2)).onStateChange(Mockito.any(InCallState.class),
+                Mockito.eq(InCallState.INCALL), Mockito.eq(callList));
+    }
 
     //TODO
     public void testCircularReveal_startsCircularRevealForOutgoingCalls() {
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+@SmallTest
+public class SpecialNumberClassifierTest extends AndroidTestCase {
+
+    public void testNumberTrie_matchesWholeKeysOnly() {
+        final SpecialNumberClassifier.NumberTrie trie = new SpecialNumberClassifier.NumberTrie();
+        trie.put("UNA", SpecialNumberClassifier.CLASS_CNAP_UNKNOWN);
+        trie.put("UNAVAILABLE", SpecialNumberClassifier.CLASS_CNAP_UNKNOWN);
+        trie.put("123", SpecialNumberClassifier.CLASS_VOICEMAIL);
+
+        assertEquals(SpecialNumberClassifier.CLASS_CNAP_UNKNOWN, trie.get("UNA"));
+        assertEquals(SpecialNumberClassifier.CLASS_CNAP_UNKNOWN, trie.get("UNAVAILABLE"));
+        assertEquals(SpecialNumberClassifier.CLASS_NONE, trie.get("UNAV"));
+        assertEquals(SpecialNumberClassifier.CLASS_NONE, trie.get("U"));
+        assertEquals(SpecialNumberClassifier.CLASS_VOICEMAIL, trie.get("123"));
+        assertEquals(SpecialNumberClassifier.CLASS_NONE, trie.get("1234"));
+    }
+
+    public void testNumberTrie_firstClassWins() {
+        final SpecialNumberClassifier.NumberTrie trie = new SpecialNumberClassifier.NumberTrie();
+        trie.put("123", SpecialNumberClassifier.CLASS_VOICEMAIL);
+        trie.put("123", SpecialNumberClassifier.CLASS_ABSENT_NUMBER);
+
+        assertEquals(SpecialNumberClassifier.CLASS_VOICEMAIL, trie.get("123"));
+    }
+
+    public void testClassify_cnapStrings() {
+        final SpecialNumberClassifier classifier =
+                SpecialNumberClassifier.getInstance(getContext());
+
+        assertEquals(SpecialNumberClassifier.CLASS_CNAP_RESTRICTED,
+                classifier.classify("PRIVATE", null));
+        assertEquals(SpecialNumberClassifier.CLASS_CNAP_UNKNOWN, classifier.classify("U", null));
+        assertEquals(SpecialNumberClassifier.CLASS_ABSENT_NUMBER,
+                classifier.classify("ABSENT NUMBER", null));
+        assertEquals(SpecialNumberClassifier.CLASS_NONE, classifier.classify("private", null));
+    }
+
+    public void testIsEmergencyNumber_ignoresSeparatorsAndSipAddresses() {
+        assertTrue(SpecialNumberClassifier.isEmergencyNumber("112"));
+        assertTrue(SpecialNumberClassifier.isEmergencyNumber("1-1-2"));
+        assertFalse(SpecialNumberClassifier.isEmergencyNumber("1123"));
+        assertFalse(SpecialNumberClassifier.isEmergencyNumber("112@example.com"));
+        assertFalse(SpecialNumberClassifier.isEmergencyNumber(null));
+    }
+
+    public void testOnPhoneAccountsChanged_bumpsGeneration() {
+        final SpecialNumberClassifier classifier =
+                SpecialNumberClassifier.getInstance(getContext());
+        final int generation = classifier.getGeneration();
+
+        classifier.onPhoneAccountsChanged();
+
+        assertTrue(classifier.getGeneration() != generation);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui.service;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.StringReader;
+
+@SmallTest
+public class PhoneNumberDirectoryTest extends AndroidTestCase {
+
+    private PhoneNumberDirectory mDirectory;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new PhoneNumberDirectory();
+    }
+
+    public void testLookup_exactNumber() {
+        mDirectory.put("6505551234", newEntry("Pizza"));
+
+        assertEquals("Pizza", mDirectory.lookup("(650) 555-1234").name);
+        assertNull(mDirectory.lookup("6505551235"));
+    }
+
+    public void testLookup_longestPrefixWins() {
+        mDirectory.put("1800", newEntry("Toll free"));
+        mDirectory.put("1800555", newEntry("Airline"));
+
+        assertEquals("Airline", mDirectory.lookup("+1 800 555 0100").name);
+        assertEquals("Toll free", mDirectory.lookup("18004440100").name);
+        assertNull(mDirectory.lookup("1900"));
+    }
+
+    public void testLookup_e164NumberMatchesNationalEntry() {
+        final PhoneNumberDirectory directory = new PhoneNumberDirectory("US");
+        directory.put("6505551234", newEntry("Pizza"));
+        directory.put("1800", newEntry("Toll free"));
+
+        assertEquals("Pizza", directory.lookup("+16505551234").name);
+        assertEquals("Pizza", directory.lookup("(650) 555-1234").name);
+        assertEquals("Toll free", directory.lookup("+18004440100").name);
+        assertNull(directory.lookup("+441234567890"));
+    }
+
+    public void testPut_replacesEntry() {
+        mDirectory.put("123", newEntry("Old"));
+        mDirectory.put("1-2-3", newEntry("New"));
+
+        assertEquals("New", mDirectory.lookup("123").name);
+        assertEquals(1, mDirectory.size());
+    }
+
+    public void testPut_rejectsNumberWithoutDigits() {
+        assertFalse(mDirectory.put("+-", newEntry("Nothing")));
+        assertEquals(0, mDirectory.size());
+    }
+
+    public void testImportFrom() throws Exception {
+        final int count = mDirectory.importFrom(new StringReader(
+                "# Known lines\n"
+                + "\n"
+                + "6505550000\tBank\tSupport\tcontent://images/bank\n"
+                + "6505550001\tFriend\t\t\t0\n"
+                + "6505550002\n"));
+
+        assertEquals(2, count);
+        final PhoneNumberDirectory.Entry bank = mDirectory.lookup("6505550000");
+        assertEquals("Support", bank.label);
+        assertEquals("content://images/bank", bank.imageUrl);
+        assertTrue(bank.isBusiness);
+        final PhoneNumberDirectory.Entry friend = mDirectory.lookup("6505550001");
+        assertNull(friend.label);
+        assertNull(friend.imageUrl);
+        assertFalse(friend.isBusiness);
+        assertNull(mDirectory.lookup("6505550002"));
+    }
+
+    public void testLookup_growsPastInitialCapacity() {
+        for (int i = 0; i < 1000; i++) {
+            mDirectory.put(String.valueOf(5550000 + i), newEntry("Line " + i));
+        }
+
+        assertEquals(1000, mDirectory.size());
+        assertEquals("Line 0", mDirectory.lookup("5550000").name);
+        assertEquals("Line 999", mDirectory.lookup("5550999").name);
+    }
+
+    private static PhoneNumberDirectory.Entry newEntry(String name) {
+        return new PhoneNumberDirectory.Entry(name, null, null, true);
+    }
+}